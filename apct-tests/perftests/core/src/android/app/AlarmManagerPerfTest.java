@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures setting and cancelling an alarm while many other alarms are scheduled, which
+ * exercises batching and removal in AlarmManagerService.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerPerfTest {
+    private static final int SCHEDULED_ALARM_COUNT = 10000;
+    private static final long FIRST_ALARM_DELAY = 24 * 60 * 60 * 1000L;
+    private static final long ALARM_WINDOW = 60 * 1000L;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final AlarmManager.OnAlarmListener mListener = () -> { };
+    private final ArrayList<AlarmManager.OnAlarmListener> mScheduledListeners =
+            new ArrayList<>();
+    private AlarmManager mAlarmManager;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+        mHandler = new Handler(Looper.getMainLooper());
+        // Far enough in the future, and in non-overlapping windows, that none of them fire or
+        // coalesce during the test.
+        final long firstAlarm = SystemClock.elapsedRealtime() + FIRST_ALARM_DELAY;
+        for (int i = 0; i < SCHEDULED_ALARM_COUNT; i++) {
+            final AlarmManager.OnAlarmListener listener = () -> { };
+            mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME,
+                    firstAlarm + i * 2 * ALARM_WINDOW, ALARM_WINDOW, "AlarmManagerPerfTest",
+                    listener, mHandler);
+            mScheduledListeners.add(listener);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = 0; i < mScheduledListeners.size(); i++) {
+            mAlarmManager.cancel(mScheduledListeners.get(i));
+        }
+        mScheduledListeners.clear();
+    }
+
+    @Test
+    public void timeSetAndCancel() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long when = SystemClock.elapsedRealtime() + FIRST_ALARM_DELAY
+                + SCHEDULED_ALARM_COUNT * ALARM_WINDOW;
+        while (state.keepRunning()) {
+            mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME, when, ALARM_WINDOW,
+                    "AlarmManagerPerfTest", mListener, mHandler);
+            mAlarmManager.cancel(mListener);
+        }
+    }
+}
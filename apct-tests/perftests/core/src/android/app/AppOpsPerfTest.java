@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the common case of checking and noting an op that the app is allowed to use,
+ * including the binder call to system_server.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsPerfTest {
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOps;
+    private String mPackageName;
+    private int mUid;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOps = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getOpPackageName();
+        mUid = Process.myUid();
+        // Make sure the op exists so the loops measure the steady state.
+        mAppOps.noteOpNoThrow(AppOpsManager.OPSTR_WRITE_CLIPBOARD, mUid, mPackageName);
+    }
+
+    @Test
+    public void timeCheckOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OPSTR_WRITE_CLIPBOARD, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(AppOpsManager.OPSTR_WRITE_CLIPBOARD, mUid, mPackageName);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BatteryStatsImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures how long {@link BatteryStatsImpl} checkpoints hold the stats lock.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BatteryStatsImplPerfTest {
+    private static final int UID_COUNT = 1000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+    private HandlerThread mThread;
+    private BatteryStatsImpl mStats;
+
+    @Before
+    public void setUp() {
+        final File dir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "batterystats-perf");
+        dir.mkdirs();
+        mThread = new HandlerThread("BatteryStatsImplPerfTest");
+        mThread.start();
+        mStats = new BatteryStatsImpl(dir, new Handler(mThread.getLooper()), null, null);
+        synchronized (mStats) {
+            for (int i = 0; i < UID_COUNT; i++) {
+                final int uid = Process.FIRST_APPLICATION_UID + i;
+                mStats.noteJobStartLocked("job" + i, uid);
+                mStats.noteJobFinishLocked("job" + i, uid, 0);
+                mStats.noteSyncStartLocked("sync" + i, uid);
+                mStats.noteSyncFinishLocked("sync" + i, uid);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /** Serializes into a parcel that grows as it goes, for comparison. */
+    @Test
+    public void timeSerializeSummaryLocked() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel out = Parcel.obtain();
+            synchronized (mStats) {
+                mStats.writeSummaryToParcel(out, true);
+            }
+            state.pauseTiming();
+            out.recycle();
+            state.resumeTiming();
+        }
+    }
+
+    /** Serializes a checkpoint into a parcel sized for the previous one. */
+    @Test
+    public void timeWriteCheckpointLocked() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        // The first checkpoint has no size to go by.
+        synchronized (mStats) {
+            mStats.writeCheckpointLocked().recycle();
+        }
+        while (state.keepRunning()) {
+            final Parcel out;
+            synchronized (mStats) {
+                out = mStats.writeCheckpointLocked();
+            }
+            state.pauseTiming();
+            out.recycle();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void timeWriteAsyncLocked() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            synchronized (mStats) {
+                mStats.writeAsyncLocked();
+            }
+        }
+    }
+}
@@ -16,13 +16,20 @@
 
 package android.os;
 
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import com.android.internal.os.BinderCallsStats;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -34,6 +41,10 @@ import static org.junit.Assert.assertNull;
 
 /**
  * Performance tests for {@link BinderCallsStats}
+ * <p>
+ * The per-call cost of the timeCallSession* tests should be compared with
+ * {@link #timeCrossProcessCall}, the cheapest binder round trip being tracked. Sampled detailed
+ * tracking is expected to stay under 1% of it.
  */
 @RunWith(AndroidJUnit4.class)
 @LargeTest
@@ -64,6 +75,74 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    @Test
+    public void timeCallSessionSampled() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        mBinderCallsStats.setSamplingInterval(100);
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+    }
+
+    @Test
+    public void timeCallSessionSampledMultiThreaded() throws InterruptedException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        mBinderCallsStats.setSamplingInterval(100);
+        // Keep other threads recording calls to check that they don't contend with this one
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                Binder b = new Binder();
+                int i = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    mBinderCallsStats.callEnded(mBinderCallsStats.callStarted(b, i++ % 100));
+                }
+            });
+            threads[t].start();
+        }
+        Binder b = new Binder();
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void timeCrossProcessCall() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SettableFuture<IBinder> binder = SettableFuture.create();
+        ServiceConnection connection =
+                new ServiceConnection() {
+                    @Override
+                    public void onServiceConnected(ComponentName className, IBinder service) {
+                        binder.set(service);
+                    }
+
+                    @Override
+                    public void onServiceDisconnected(ComponentName arg0) {
+                        binder.set(null);
+                    }
+                };
+        context.bindService(
+                new Intent(context, SomeService.class), connection, Context.BIND_AUTO_CREATE);
+        ISomeService someService = ISomeService.Stub.asInterface(binder.get());
+        while (state.keepRunning()) {
+            someService.readDisk(0);
+        }
+        context.unbindService(connection);
+    }
+
     @Test
     public void timeCallSessionTrackingDisabled() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
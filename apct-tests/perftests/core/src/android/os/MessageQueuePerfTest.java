@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures sending messages to a Handler whose queue already holds many delayed messages,
+ * as on a busy system_server thread during a broadcast storm.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int QUEUED_MESSAGE_COUNT = 10000;
+    private static final int SENT_MESSAGE_COUNT = 1000;
+    private static final long QUEUED_MESSAGE_DELAY = 60 * 60 * 1000L;
+
+    private static final int WHAT_QUEUED = 1;
+    private static final int WHAT_SENT = 2;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        // Far enough in the future that none of them are dispatched during the test.
+        final long firstMessage = SystemClock.uptimeMillis() + QUEUED_MESSAGE_DELAY;
+        for (int i = 0; i < QUEUED_MESSAGE_COUNT; i++) {
+            mHandler.sendEmptyMessageAtTime(WHAT_QUEUED, firstMessage + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /** Sends messages due after all queued ones, which is what most sends are. */
+    @Test
+    public void timeSendLatest() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long when = SystemClock.uptimeMillis() + 2 * QUEUED_MESSAGE_DELAY;
+        int sent = 0;
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageAtTime(WHAT_SENT, when);
+            if (++sent == SENT_MESSAGE_COUNT) {
+                state.pauseTiming();
+                mHandler.removeMessages(WHAT_SENT);
+                sent = 0;
+                state.resumeTiming();
+            }
+        }
+    }
+
+    /**
+     * Sends messages due before all queued ones, like posts on a thread that has timeouts
+     * pending.
+     */
+    @Test
+    public void timeSendAheadOfQueued() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long when = SystemClock.uptimeMillis() + QUEUED_MESSAGE_DELAY / 2;
+        int sent = 0;
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageAtTime(WHAT_SENT, when);
+            if (++sent == SENT_MESSAGE_COUNT) {
+                state.pauseTiming();
+                mHandler.removeMessages(WHAT_SENT);
+                sent = 0;
+                state.resumeTiming();
+            }
+        }
+    }
+
+    /** Sends messages due in the middle of the queued ones. */
+    @Test
+    public void timeSendMiddle() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final long when = SystemClock.uptimeMillis() + QUEUED_MESSAGE_DELAY
+                + QUEUED_MESSAGE_COUNT / 2;
+        int sent = 0;
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageAtTime(WHAT_SENT, when);
+            if (++sent == SENT_MESSAGE_COUNT) {
+                state.pauseTiming();
+                mHandler.removeMessages(WHAT_SENT);
+                sent = 0;
+                state.resumeTiming();
+            }
+        }
+    }
+}
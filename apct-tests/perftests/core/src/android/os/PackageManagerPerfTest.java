@@ -23,6 +23,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -80,6 +81,42 @@ public class PackageManagerPerfTest {
         }
     }
 
+    @Test
+    public void testQueryIntentActivitiesViewHttp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://www.example.com"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, 0);
+        }
+    }
+
+    @Test
+    public void testQueryIntentActivitiesSendText() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, 0);
+        }
+    }
+
+    @Test
+    public void testQueryBroadcastReceivers() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_PACKAGE_ADDED,
+                Uri.fromParts("package", TEST_ACTIVITY.getPackageName(), null));
+
+        while (state.keepRunning()) {
+            pm.queryBroadcastReceivers(intent, 0);
+        }
+    }
+
     @Test
     public void testGetPackageInfo() throws Exception {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
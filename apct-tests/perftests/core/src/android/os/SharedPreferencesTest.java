@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
@@ -28,9 +29,15 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class SharedPreferencesTest {
+    // About 250KB of preferences, where writing and loading the whole file is noticeable.
+    private static final int LARGE_PREFS_COUNT = 1000;
+    private static final String LARGE_PREFS_VALUE = new String(new char[250]).replace('\0', 'x');
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
@@ -44,4 +51,82 @@ public class SharedPreferencesTest {
             prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
         }
     }
+
+    @Test
+    public void timeApplyToLargePrefs() {
+        timeApply(getLargePrefs("large", Context.MODE_PRIVATE));
+    }
+
+    @Test
+    public void timeApplyToLargeJournaledPrefs() {
+        timeApply(getLargePrefs("large_journaled", Context.MODE_JOURNALED));
+    }
+
+    @Test
+    public void timeCommitToLargePrefs() {
+        timeCommit(getLargePrefs("large", Context.MODE_PRIVATE));
+    }
+
+    @Test
+    public void timeCommitToLargeJournaledPrefs() {
+        timeCommit(getLargePrefs("large_journaled", Context.MODE_JOURNALED));
+    }
+
+    @Test
+    public void timeLoadLargePrefs() {
+        timeLoad("large", Context.MODE_PRIVATE, "");
+    }
+
+    @Test
+    public void timeLoadLargeJournaledPrefs() {
+        timeLoad("large_journaled", Context.MODE_JOURNALED, ".journal");
+    }
+
+    private void timeApply(SharedPreferences prefs) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).apply();
+        }
+        QueuedWork.waitToFinish();
+    }
+
+    private void timeCommit(SharedPreferences prefs) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
+    /** Measures loading a copy of the large preferences until the first value is read. */
+    private void timeLoad(String name, int mode, String fileSuffix) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getTargetContext();
+        getLargePrefs(name, mode);
+        final File source = new File(context.getSharedPreferencesPath(name) + fileSuffix);
+        final String copyName = name + "_copy";
+        final File copy = new File(context.getSharedPreferencesPath(copyName) + fileSuffix);
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            context.deleteSharedPreferences(copyName);
+            FileUtils.copyFile(source, copy);
+            state.resumeTiming();
+            context.getSharedPreferences(copyName, mode).getString("key0", null);
+        }
+        context.deleteSharedPreferences(copyName);
+    }
+
+    private SharedPreferences getLargePrefs(String name, int mode) {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SharedPreferences prefs = context.getSharedPreferences(name, mode);
+        if (!prefs.contains("key" + (LARGE_PREFS_COUNT - 1))) {
+            final SharedPreferences.Editor editor = prefs.edit().clear();
+            for (int i = 0; i < LARGE_PREFS_COUNT; i++) {
+                editor.putString("key" + i, LARGE_PREFS_VALUE);
+            }
+            editor.commit();
+        }
+        return prefs;
+    }
 }
@@ -1657,6 +1657,7 @@ public final class ActivityThread extends ClientTransactionHandler {
                     Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
                     break;
                 case EXIT_APPLICATION:
+                    QueuedWork.waitForDeferred("exitApplication");
                     if (mInitialApplication != null) {
                         mInitialApplication.onTerminate();
                     }
@@ -3708,7 +3709,7 @@ public final class ActivityThread extends ClientTransactionHandler {
                     res = Service.START_TASK_REMOVED_COMPLETE;
                 }
 
-                QueuedWork.waitToFinish();
+                QueuedWork.waitToFinishOrDefer("handleServiceArgs");
 
                 try {
                     ActivityManager.getService().serviceDoneExecuting(
@@ -3740,7 +3741,7 @@ public final class ActivityThread extends ClientTransactionHandler {
                     ((ContextImpl) context).scheduleFinalCleanup(who, "Service");
                 }
 
-                QueuedWork.waitToFinish();
+                QueuedWork.waitToFinishOrDefer("handleStopService");
 
                 try {
                     ActivityManager.getService().serviceDoneExecuting(
@@ -3977,7 +3978,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
             // Make sure any pending writes are now committed.
             if (r.isPreHoneycomb()) {
-                QueuedWork.waitToFinish();
+                QueuedWork.waitToFinishOrDefer("handlePauseActivity");
             }
             mSomeActivitiesChanged = true;
         }
@@ -4242,7 +4243,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
         // Make sure any pending writes are now committed.
         if (!r.isPreHoneycomb()) {
-            QueuedWork.waitToFinish();
+            QueuedWork.waitToFinishOrDefer("handleStopActivity");
         }
 
         stopInfo.setActivity(r);
@@ -4320,7 +4321,7 @@ public final class ActivityThread extends ClientTransactionHandler {
 
             // Make sure any pending writes are now committed.
             if (!r.isPreHoneycomb()) {
-                QueuedWork.waitToFinish();
+                QueuedWork.waitToFinishOrDefer("handleSleeping");
             }
 
             // Tell activity manager we slept.
@@ -5447,6 +5448,9 @@ public final class ActivityThread extends ClientTransactionHandler {
     }
 
     final void handleLowMemory() {
+        // The process may be killed soon, make sure deferred writes are durable.
+        QueuedWork.waitForDeferred("handleLowMemory");
+
         ArrayList<ComponentCallbacks2> callbacks = collectComponentCallbacks(true, null);
 
         final int N = callbacks.size();
@@ -5473,6 +5477,11 @@ public final class ActivityThread extends ClientTransactionHandler {
         Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "trimMemory");
         if (DEBUG_MEMORY_TRIM) Slog.v(TAG, "Trimming memory to level: " + level);
 
+        // Cached processes may be killed at any time, make sure deferred writes are durable.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            QueuedWork.waitForDeferred("handleTrimMemory");
+        }
+
         ArrayList<ComponentCallbacks2> callbacks = collectComponentCallbacks(true, null);
 
         final int N = callbacks.size();
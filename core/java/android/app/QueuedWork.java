@@ -22,6 +22,8 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
@@ -44,6 +46,10 @@ import java.util.LinkedList;
  *
  * The queued asynchronous work is performed on a separate, dedicated thread.
  *
+ * With async flush enabled, lifecycle transitions {@link #waitToFinishOrDefer don't wait} for the
+ * work, but only note its sequence number. The wait is then deferred until the process may be
+ * killed, see {@link #waitForDeferred}.
+ *
  * @hide
  */
 public class QueuedWork {
@@ -56,6 +62,10 @@ public class QueuedWork {
     /** If a {@link #waitToFinish()} takes more than {@value #MAX_WAIT_TIME_MILLIS} ms, warn */
     private static final long MAX_WAIT_TIME_MILLIS = 512;
 
+    /** If lifecycle transitions defer waiting for the work, see {@link #waitToFinishOrDefer} */
+    private static final boolean ASYNC_FLUSH =
+            SystemProperties.getBoolean("persist.sys.queuedwork.async_flush", false);
+
     /** Lock for this class */
     private static final Object sLock = new Object();
 
@@ -84,12 +94,21 @@ public class QueuedWork {
     @GuardedBy("sLock")
     private static boolean sCanDelay = true;
 
-    /** Time (and number of instances) waited for work to get processed */
+    /** Sequence number of the last work {@link #queue queued} */
+    @GuardedBy("sLock")
+    private static long sQueuedSequence;
+
+    /** Sequence number of the last work processed. Work is processed in sequence. */
+    @GuardedBy("sLock")
+    private static long sProcessedSequence;
+
+    /** Work up to this sequence number was {@link #waitToFinishOrDefer deferred} */
     @GuardedBy("sLock")
-    private final static ExponentiallyBucketedHistogram
-            mWaitTimes = new ExponentiallyBucketedHistogram(
-            16);
-    private static int mNumWaits = 0;
+    private static long sDeferredSequence;
+
+    /** Time waited for work to get processed, by call site */
+    @GuardedBy("sLock")
+    private static final ArrayMap<String, WaitStats> sWaitStats = new ArrayMap<>();
 
     /**
      * Lazily create a handler on a separate thread.
@@ -147,6 +166,15 @@ public class QueuedWork {
      * after Service command handling, etc. (so async work is never lost)
      */
     public static void waitToFinish() {
+        waitToFinish("waitToFinish");
+    }
+
+    /**
+     * Like {@link #waitToFinish()}, with the time waited reported for {@code callSite}.
+     *
+     * @param callSite Where the wait is from, for the wait time statistics
+     */
+    public static void waitToFinish(String callSite) {
         long startTime = System.currentTimeMillis();
         boolean hadMessages = false;
 
@@ -196,16 +224,70 @@ public class QueuedWork {
             long waitTime = System.currentTimeMillis() - startTime;
 
             if (waitTime > 0 || hadMessages) {
-                mWaitTimes.add(Long.valueOf(waitTime).intValue());
-                mNumWaits++;
+                final WaitStats stats = getWaitStatsLocked(callSite);
+                stats.waitTimes.add(Long.valueOf(waitTime).intValue());
+                stats.numWaits++;
 
-                if (DEBUG || mNumWaits % 1024 == 0 || waitTime > MAX_WAIT_TIME_MILLIS) {
-                    mWaitTimes.log(LOG_TAG, "waited: ");
+                if (DEBUG || stats.numWaits % 1024 == 0 || waitTime > MAX_WAIT_TIME_MILLIS) {
+                    stats.waitTimes.log(LOG_TAG, callSite + " waited (" + stats.numDeferred
+                            + " deferred): ");
                 }
             }
         }
     }
 
+    /**
+     * Called at lifecycle transitions instead of {@link #waitToFinish(String)}. Without async
+     * flush this is the same. With it, the queued work is only started right away and its
+     * sequence number recorded, so that {@link #waitForDeferred} waits for it later.
+     *
+     * @param callSite Where the wait is from, for the wait time statistics
+     */
+    public static void waitToFinishOrDefer(String callSite) {
+        if (!ASYNC_FLUSH) {
+            waitToFinish(callSite);
+            return;
+        }
+
+        Handler handler = getHandler();
+
+        synchronized (sLock) {
+            if (sProcessedSequence < sQueuedSequence) {
+                sDeferredSequence = sQueuedSequence;
+                getWaitStatsLocked(callSite).numDeferred++;
+
+                // Don't leave the work delayed, to keep the time it isn't durable short
+                handler.removeMessages(QueuedWorkHandler.MSG_RUN);
+                handler.sendEmptyMessage(QueuedWorkHandler.MSG_RUN);
+            }
+        }
+    }
+
+    /**
+     * Waits for the work {@link #waitToFinishOrDefer deferred} at lifecycle transitions, if it
+     * was not processed yet. Called when the process may be killed soon.
+     *
+     * @param callSite Where the wait is from, for the wait time statistics
+     */
+    public static void waitForDeferred(String callSite) {
+        synchronized (sLock) {
+            if (sProcessedSequence >= sDeferredSequence) {
+                return;
+            }
+        }
+        waitToFinish(callSite);
+    }
+
+    @GuardedBy("sLock")
+    private static WaitStats getWaitStatsLocked(String callSite) {
+        WaitStats stats = sWaitStats.get(callSite);
+        if (stats == null) {
+            stats = new WaitStats();
+            sWaitStats.put(callSite, stats);
+        }
+        return stats;
+    }
+
     /**
      * Queue a work-runnable for processing asynchronously.
      *
@@ -217,6 +299,7 @@ public class QueuedWork {
 
         synchronized (sLock) {
             sWork.add(work);
+            sQueuedSequence++;
 
             if (shouldDelay && sCanDelay) {
                 handler.sendEmptyMessageDelayed(QueuedWorkHandler.MSG_RUN, DELAY);
@@ -244,10 +327,12 @@ public class QueuedWork {
 
         synchronized (sProcessingWork) {
             LinkedList<Runnable> work;
+            long sequence;
 
             synchronized (sLock) {
                 work = (LinkedList<Runnable>) sWork.clone();
                 sWork.clear();
+                sequence = sQueuedSequence;
 
                 // Remove all msg-s as all work will be processed now
                 getHandler().removeMessages(QueuedWorkHandler.MSG_RUN);
@@ -263,9 +348,20 @@ public class QueuedWork {
                             +(System.currentTimeMillis() - startTime) + " ms");
                 }
             }
+
+            synchronized (sLock) {
+                sProcessedSequence = sequence;
+            }
         }
     }
 
+    /** Time (and number of instances) waited for work to get processed at a call site */
+    private static class WaitStats {
+        final ExponentiallyBucketedHistogram waitTimes = new ExponentiallyBucketedHistogram(16);
+        int numWaits = 0;
+        int numDeferred = 0;
+    }
+
     private static class QueuedWorkHandler extends Handler {
         static final int MSG_RUN = 1;
 
@@ -17,6 +17,8 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.app.SharedPreferencesJournal.EncodedValue;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -66,6 +68,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final File mFile;
     private final File mBackupFile;
     private final int mMode;
+    /** Set if opened with {@link Context#MODE_JOURNALED}; then mFile is only migrated */
+    @Nullable
+    private final SharedPreferencesJournal mJournal;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -86,6 +91,17 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    /** Commits not written to the journal yet, in the order they were made */
+    @GuardedBy("mLock")
+    private final ArrayList<MemoryCommitResult> mPendingJournalWrites = new ArrayList<>();
+
+    /** If the journal has to be rewritten from mMap, after migrating from mFile */
+    @GuardedBy("mLock")
+    private boolean mJournalNeedsRewrite;
+
+    @GuardedBy("mLock")
+    private boolean mCompactionScheduled;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -107,6 +123,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
         mFile = file;
         mBackupFile = makeBackupFile(file);
         mMode = mode;
+        mJournal = (mode & Context.MODE_JOURNALED) != 0
+                ? new SharedPreferencesJournal(SharedPreferencesJournal.makeJournalFile(file))
+                : null;
         mLoaded = false;
         mMap = null;
         mThrowable = null;
@@ -143,19 +162,30 @@ final class SharedPreferencesImpl implements SharedPreferences {
         Map<String, Object> map = null;
         StructStat stat = null;
         Throwable thrown = null;
+        boolean migrate = false;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
-                BufferedInputStream str = null;
+            if (mJournal != null && mJournal.getFile().exists()) {
+                stat = Os.stat(mJournal.getFile().getPath());
                 try {
-                    str = new BufferedInputStream(
-                            new FileInputStream(mFile), 16 * 1024);
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
-                } catch (Exception e) {
-                    Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
-                } finally {
-                    IoUtils.closeQuietly(str);
+                    map = mJournal.read();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot read " + mJournal.getFile().getAbsolutePath(), e);
                 }
+            } else {
+                stat = Os.stat(mFile.getPath());
+                if (mFile.canRead()) {
+                    BufferedInputStream str = null;
+                    try {
+                        str = new BufferedInputStream(
+                                new FileInputStream(mFile), 16 * 1024);
+                        map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
+                    } finally {
+                        IoUtils.closeQuietly(str);
+                    }
+                }
+                migrate = mJournal != null && map != null;
             }
         } catch (ErrnoException e) {
             // An errno exception means the stat failed. Treat as empty/non-existing by
@@ -180,6 +210,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     } else {
                         mMap = new HashMap<>();
                     }
+                    if (migrate) {
+                        mJournalNeedsRewrite = true;
+                        scheduleCompactionLocked();
+                    }
                 }
                 // In case of a thrown exception, we retain the old map. That allows
                 // any open editors to commit and store updates.
@@ -223,7 +257,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(mJournal != null ? mJournal.getFile().getPath() : mFile.getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -266,10 +300,28 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /** Gets a value, decoding it first if it was read from the journal and not used yet. */
+    @GuardedBy("mLock")
+    private Object getValueLocked(String key) {
+        Object v = mMap.get(key);
+        if (v instanceof EncodedValue) {
+            v = ((EncodedValue) v).decode();
+            mMap.put(key, v);
+        }
+        return v;
+    }
+
     @Override
     public Map<String, ?> getAll() {
         synchronized (mLock) {
             awaitLoadedLocked();
+            if (mJournal != null) {
+                for (Map.Entry<String, Object> e : mMap.entrySet()) {
+                    if (e.getValue() instanceof EncodedValue) {
+                        e.setValue(((EncodedValue) e.getValue()).decode());
+                    }
+                }
+            }
             //noinspection unchecked
             return new HashMap<String, Object>(mMap);
         }
@@ -280,7 +332,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public String getString(String key, @Nullable String defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            String v = (String)mMap.get(key);
+            String v = (String) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -290,7 +342,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
+            Set<String> v = (Set<String>) getValueLocked(key);
             return v != null ? v : defValues;
         }
     }
@@ -299,7 +351,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public int getInt(String key, int defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Integer v = (Integer)mMap.get(key);
+            Integer v = (Integer) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -307,7 +359,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public long getLong(String key, long defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Long v = (Long)mMap.get(key);
+            Long v = (Long) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -315,7 +367,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public float getFloat(String key, float defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Float v = (Float)mMap.get(key);
+            Float v = (Float) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -323,7 +375,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     public boolean getBoolean(String key, boolean defValue) {
         synchronized (mLock) {
             awaitLoadedLocked();
-            Boolean v = (Boolean)mMap.get(key);
+            Boolean v = (Boolean) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -358,6 +410,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** The changes to append to the journal, if there is one and anything changed */
+        @Nullable final byte[] journalRecord;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -366,11 +420,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, @Nullable byte[] journalRecord) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.journalRecord = journalRecord;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -495,12 +550,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            byte[] journalRecord = null;
+            final MemoryCommitResult mcr;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
-                // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                // writing to disk. Journal writes never read the
+                // map outside of mLock, so never need a copy.
+                if (mDiskWritesInFlight > 0 && mJournal == null) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
                     // modifying it.
@@ -518,11 +576,16 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
                 synchronized (mEditorLock) {
                     boolean changesMade = false;
+                    final SharedPreferencesJournal.RecordBuilder record = mJournal != null
+                            ? new SharedPreferencesJournal.RecordBuilder() : null;
 
                     if (mClear) {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (record != null) {
+                                record.clear();
+                            }
                         }
                         mClear = false;
                     }
@@ -538,14 +601,23 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 continue;
                             }
                             mapToWriteToDisk.remove(k);
+                            if (record != null) {
+                                record.remove(k);
+                            }
                         } else {
                             if (mapToWriteToDisk.containsKey(k)) {
                                 Object existingValue = mapToWriteToDisk.get(k);
+                                if (existingValue instanceof EncodedValue) {
+                                    existingValue = ((EncodedValue) existingValue).decode();
+                                }
                                 if (existingValue != null && existingValue.equals(v)) {
                                     continue;
                                 }
                             }
                             mapToWriteToDisk.put(k, v);
+                            if (record != null) {
+                                record.put(k, v);
+                            }
                         }
 
                         changesMade = true;
@@ -558,13 +630,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
                     if (changesMade) {
                         mCurrentMemoryStateGeneration++;
+                        if (record != null) {
+                            journalRecord = record.build();
+                        }
                     }
 
                     memoryStateGeneration = mCurrentMemoryStateGeneration;
                 }
+
+                mcr = new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
+                        mapToWriteToDisk, journalRecord);
+                if (journalRecord != null) {
+                    mPendingJournalWrites.add(mcr);
+                }
             }
-            return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+            return mcr;
         }
 
         @Override
@@ -639,7 +719,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 @Override
                 public void run() {
                     synchronized (mWritingToDiskLock) {
-                        writeToFile(mcr, isFromSyncCommit);
+                        if (mJournal != null) {
+                            writeToJournal(mcr);
+                        } else {
+                            writeToFile(mcr, isFromSyncCommit);
+                        }
                     }
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
@@ -844,4 +928,122 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToJournal(MemoryCommitResult mcr) {
+        synchronized (mLock) {
+            if (!mPendingJournalWrites.contains(mcr)) {
+                // Nothing changed, or an earlier write already included this commit.
+                if (mcr.writtenToDiskLatch.getCount() > 0) {
+                    mcr.setDiskWriteResult(false, true);
+                }
+                return;
+            }
+        }
+
+        if (!flushJournal(false)) {
+            mcr.setDiskWriteResult(false, false);
+            return;
+        }
+        if (mJournal.needsCompaction()) {
+            synchronized (mLock) {
+                scheduleCompactionLocked();
+            }
+        }
+    }
+
+    /**
+     * Writes every commit not in the journal yet with a single write and fsync, so that
+     * commits made while a write was queued share it. If {@code compact}, or if the
+     * preferences were just migrated, rewrites the journal from mMap instead.
+     *
+     * @return whether the journal was written.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean flushJournal(boolean compact) {
+        final ArrayList<MemoryCommitResult> batch;
+        Map<String, Object> snapshot = null;
+        synchronized (mLock) {
+            batch = new ArrayList<>(mPendingJournalWrites);
+            if (compact || mJournalNeedsRewrite) {
+                // mMap has all the changes of batch, and no others.
+                snapshot = new HashMap<>(mMap);
+            }
+        }
+
+        final long startTime = System.currentTimeMillis();
+        boolean created = false;
+        try {
+            if (snapshot != null) {
+                mJournal.rewrite(snapshot);
+                created = true;
+            } else if (!batch.isEmpty()) {
+                final ArrayList<byte[]> records = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    records.add(batch.get(i).journalRecord);
+                }
+                created = mJournal.append(records);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "flushJournal: Got exception:", e);
+            return false;
+        }
+        final long writeDuration = System.currentTimeMillis() - startTime;
+
+        final String path = mJournal.getFile().getPath();
+        if (created) {
+            ContextImpl.setFilePermissionsFromMode(path, mMode, 0);
+        }
+        StructStat stat = null;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+
+        synchronized (mLock) {
+            mPendingJournalWrites.subList(0, batch.size()).clear();
+            if (snapshot != null) {
+                mJournalNeedsRewrite = false;
+            }
+            if (stat != null) {
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            }
+        }
+        if (snapshot != null) {
+            // Everything is in the journal now, including what was migrated.
+            mFile.delete();
+            mBackupFile.delete();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setDiskWriteResult(true, true);
+        }
+
+        mSyncTimes.add((int) writeDuration);
+        mNumSync++;
+        if (DEBUG || mNumSync % 1024 == 0 || writeDuration > MAX_FSYNC_DURATION_MILLIS) {
+            mSyncTimes.log(TAG, "Time required to write and fsync " + path + ": ");
+        }
+        return true;
+    }
+
+    /** Compacts the journal, or finishes a migration, on a background thread. */
+    @GuardedBy("mLock")
+    private void scheduleCompactionLocked() {
+        if (mCompactionScheduled) {
+            return;
+        }
+        mCompactionScheduled = true;
+        new Thread("SharedPreferencesImpl-compact") {
+            public void run() {
+                synchronized (mWritingToDiskLock) {
+                    synchronized (mLock) {
+                        mCompactionScheduled = false;
+                    }
+                    flushJournal(true);
+                }
+            }
+        }.start();
+    }
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary, append-only storage of {@link SharedPreferencesImpl}s opened with
+ * {@link android.content.Context#MODE_JOURNALED}.
+ * <p>
+ * The file starts with {@link #MAGIC}, followed by records that each hold an int length and
+ * the operations of one or more editor commits. Compacting rewrites the file as a single
+ * record putting every preference. Values are not decoded when the file is read: each is
+ * kept as an {@link EncodedValue} pointing into the file contents until it is first used.
+ * A record torn by a crash at the end of the file is dropped on read, and cut off before
+ * the next append.
+ * </p>
+ * Not thread safe; SharedPreferencesImpl only uses it while loading and with its
+ * mWritingToDiskLock held.
+ */
+final class SharedPreferencesJournal {
+    private static final String TAG = "SharedPreferencesImpl";
+
+    private static final int MAGIC = 0x53504a31; // "SPJ1"
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_STRING_SET = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+
+    /** Appended records smaller than this never cause a compaction */
+    private static final long MIN_COMPACTION_SIZE = 32 * 1024;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    // Length of the valid part of the file, and what it was after the last compaction.
+    private long mLength;
+    private long mCompactedLength;
+
+    // Set when the file may end with garbage, after a torn record or a failed append.
+    private boolean mNeedsTruncate;
+
+    SharedPreferencesJournal(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Reads the preferences from the file, leaving their values encoded.
+     *
+     * @return the preferences, or {@code null} if there is no journal yet.
+     */
+    @Nullable
+    Map<String, Object> read() throws IOException {
+        mLength = 0;
+        mCompactedLength = 0;
+        mNeedsTruncate = false;
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        final byte[] data = IoUtils.readFileAsByteArray(mFile.getPath());
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final Map<String, Object> map = new HashMap<>();
+        if (data.length < 4 || buffer.getInt() != MAGIC) {
+            Log.w(TAG, "Bad header in " + mFile);
+            mNeedsTruncate = true;
+            return map;
+        }
+
+        int validLength = buffer.position();
+        try {
+            while (buffer.remaining() >= 4) {
+                final int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    // Torn by a crash while it was appended.
+                    break;
+                }
+                readRecord(buffer, buffer.position() + length, map);
+                validLength = buffer.position();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Bad record in " + mFile, e);
+        }
+
+        mLength = validLength;
+        mNeedsTruncate = validLength < data.length;
+        // What compacting the file now would leave, roughly.
+        mCompactedLength = 8;
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            final String key = e.getKey();
+            mCompactedLength += 10 + (key != null ? key.length() : 0)
+                    + ((EncodedValue) e.getValue()).length;
+        }
+        return map;
+    }
+
+    private static void readRecord(ByteBuffer buffer, int end, Map<String, Object> map) {
+        final byte[] data = buffer.array();
+        while (buffer.position() < end) {
+            final byte op = buffer.get();
+            switch (op) {
+                case OP_PUT: {
+                    final String key = readString(buffer);
+                    final byte type = buffer.get();
+                    final int length = buffer.getInt();
+                    if (length < 0 || length > end - buffer.position()) {
+                        throw new IllegalArgumentException("Bad value length " + length);
+                    }
+                    map.put(key, new EncodedValue(data, buffer.position(), length, type));
+                    buffer.position(buffer.position() + length);
+                    break;
+                }
+                case OP_REMOVE:
+                    map.remove(readString(buffer));
+                    break;
+                case OP_CLEAR:
+                    map.clear();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + op);
+            }
+        }
+    }
+
+    /** Returns whether enough was appended since the last compaction to compact again. */
+    boolean needsCompaction() {
+        return mLength - mCompactedLength > Math.max(MIN_COMPACTION_SIZE, mCompactedLength);
+    }
+
+    /**
+     * Appends {@code records} with a single write and syncs them to disk.
+     *
+     * @return whether the file was created.
+     */
+    boolean append(ArrayList<byte[]> records) throws IOException {
+        if (mNeedsTruncate) {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(mLength);
+            } finally {
+                file.close();
+            }
+            mNeedsTruncate = false;
+        }
+
+        final boolean create = mLength == 0;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (create) {
+            writeInt(bytes, MAGIC);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] record = records.get(i);
+            writeInt(bytes, record.length);
+            bytes.write(record, 0, record.length);
+        }
+
+        final FileOutputStream out = new FileOutputStream(mFile, !create);
+        try {
+            bytes.writeTo(out);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            mNeedsTruncate = true;
+            throw e;
+        } finally {
+            out.close();
+        }
+        mLength += bytes.size();
+        return create;
+    }
+
+    /** Atomically replaces the file with a single record putting all of {@code map}. */
+    void rewrite(Map<String, Object> map) throws IOException {
+        final RecordBuilder record = new RecordBuilder();
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            record.put(e.getKey(), e.getValue());
+        }
+        final byte[] recordBytes = record.build();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(recordBytes.length + 8);
+        writeInt(bytes, MAGIC);
+        writeInt(bytes, recordBytes.length);
+        bytes.write(recordBytes, 0, recordBytes.length);
+
+        final FileOutputStream out = new FileOutputStream(mTempFile);
+        try {
+            bytes.writeTo(out);
+            FileUtils.sync(out);
+        } finally {
+            out.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("Couldn't rename " + mTempFile + " to " + mFile);
+        }
+        mLength = bytes.size();
+        mCompactedLength = mLength;
+        mNeedsTruncate = false;
+    }
+
+    /** Reads a string written by {@link #writeString}, which may be a null key. */
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        final String s = new String(buffer.array(), buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long v) {
+        writeInt(out, (int) (v >>> 32));
+        writeInt(out, (int) v);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, @Nullable String s) {
+        if (s == null) {
+            writeInt(out, -1);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Encodes the changes of an editor commit as a record. */
+    static final class RecordBuilder {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        void clear() {
+            mOut.write(OP_CLEAR);
+        }
+
+        void remove(String key) {
+            mOut.write(OP_REMOVE);
+            writeString(mOut, key);
+        }
+
+        void put(String key, Object value) {
+            mOut.write(OP_PUT);
+            writeString(mOut, key);
+            if (value instanceof EncodedValue) {
+                // Copy values that were never decoded as they are.
+                final EncodedValue encoded = (EncodedValue) value;
+                mOut.write(encoded.type);
+                writeInt(mOut, encoded.length);
+                mOut.write(encoded.data, encoded.offset, encoded.length);
+            } else if (value instanceof String) {
+                mOut.write(TYPE_STRING);
+                writeString(mOut, (String) value);
+            } else if (value instanceof Set) {
+                final ByteArrayOutputStream set = new ByteArrayOutputStream();
+                writeInt(set, ((Set<?>) value).size());
+                for (Object s : (Set<?>) value) {
+                    writeString(set, (String) s);
+                }
+                mOut.write(TYPE_STRING_SET);
+                writeInt(mOut, set.size());
+                set.writeTo(mOut);
+            } else if (value instanceof Integer) {
+                mOut.write(TYPE_INT);
+                writeInt(mOut, 4);
+                writeInt(mOut, (Integer) value);
+            } else if (value instanceof Long) {
+                mOut.write(TYPE_LONG);
+                writeInt(mOut, 8);
+                writeLong(mOut, (Long) value);
+            } else if (value instanceof Float) {
+                mOut.write(TYPE_FLOAT);
+                writeInt(mOut, 4);
+                writeInt(mOut, Float.floatToIntBits((Float) value));
+            } else if (value instanceof Boolean) {
+                mOut.write(TYPE_BOOLEAN);
+                writeInt(mOut, 1);
+                mOut.write((Boolean) value ? 1 : 0);
+            } else {
+                throw new IllegalArgumentException("Unsupported value type for " + key + ": "
+                        + value.getClass());
+            }
+        }
+
+        byte[] build() {
+            return mOut.toByteArray();
+        }
+    }
+
+    /** A preference value as read from the file, decoded on first use. */
+    static final class EncodedValue {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final byte type;
+
+        EncodedValue(byte[] data, int offset, int length, byte type) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+        }
+
+        Object decode() {
+            final ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            switch (type) {
+                case TYPE_STRING:
+                    return new String(data, offset, length, StandardCharsets.UTF_8);
+                case TYPE_STRING_SET: {
+                    final int size = buffer.getInt();
+                    final HashSet<String> set = new HashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        final int length = buffer.getInt();
+                        if (length < 0) {
+                            set.add(null);
+                            continue;
+                        }
+                        set.add(new String(data, buffer.position(), length,
+                                StandardCharsets.UTF_8));
+                        buffer.position(buffer.position() + length);
+                    }
+                    return set;
+                }
+                case TYPE_INT:
+                    return buffer.getInt();
+                case TYPE_LONG:
+                    return buffer.getLong();
+                case TYPE_FLOAT:
+                    return buffer.getFloat();
+                case TYPE_BOOLEAN:
+                    return buffer.get() != 0;
+                default:
+                    throw new IllegalStateException("Unknown value type " + type);
+            }
+        }
+    }
+}
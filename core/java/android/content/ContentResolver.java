@@ -2123,6 +2123,25 @@ public abstract class ContentResolver {
         }
     }
 
+    /**
+     * Notify registered observers within the designated user(s) that the given rows were
+     * updated. Each observer is called back once with the distinct uris it watches, after
+     * a short delivery window in which other batches are coalesced with this one.
+     *
+     * @hide
+     */
+    public void notifyChange(@NonNull Uri[] uris, ContentObserver observer,
+            @NotifyFlags int flags, @UserIdInt int userHandle) {
+        try {
+            getContentService().notifyChangeBatch(
+                    uris, observer == null ? null : observer.getContentObserver(),
+                    observer != null && observer.deliverSelfNotifications(), flags,
+                    userHandle, mTargetSdkVersion);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Take a persistable URI permission grant that has been offered. Once
      * taken, the permission grant will be remembered across device reboots.
@@ -105,6 +105,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_JOURNALED,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -222,6 +223,18 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, the preferences are kept in a binary,
+     * append-only journal instead of an XML file, so that an edit only writes what it
+     * changed. Existing XML preferences are migrated on first load, after which they must
+     * keep being opened with this flag. Only takes effect when the preferences are first
+     * loaded in the process.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_JOURNALED = 0x0020;
+
     /** @hide */
     @IntDef(flag = true, prefix = { "BIND_" }, value = {
             BIND_AUTO_CREATE,
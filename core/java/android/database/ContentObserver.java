@@ -199,6 +199,23 @@ public abstract class ContentObserver {
         }
     }
 
+    /**
+     * Dispatches a batch of change notifications to the observer, in a single
+     * message if a {@link Handler} was supplied to the constructor.
+     */
+    private void dispatchChanges(boolean selfChange, Uri[] uris, int userId) {
+        if (mHandler == null) {
+            for (Uri uri : uris) {
+                onChange(selfChange, uri, userId);
+            }
+        } else {
+            mHandler.post(() -> {
+                for (Uri uri : uris) {
+                    onChange(selfChange, uri, userId);
+                }
+            });
+        }
+    }
 
     private final class NotificationRunnable implements Runnable {
         private final boolean mSelfChange;
@@ -232,6 +249,14 @@ public abstract class ContentObserver {
             }
         }
 
+        @Override
+        public void onChangeBatch(boolean selfChange, Uri[] uris, int userId) {
+            ContentObserver contentObserver = mContentObserver;
+            if (contentObserver != null) {
+                contentObserver.dispatchChanges(selfChange, uris, userId);
+            }
+        }
+
         public void releaseContentObserver() {
             mContentObserver = null;
         }
@@ -875,6 +875,8 @@ public class Handler {
 
     final Looper mLooper;
     final MessageQueue mQueue;
+    // Messages for this handler in mQueue; guarded by mQueue.
+    int mQueuedMessageCount;
     final Callback mCallback;
     final boolean mAsynchronous;
     IMessenger mMessenger;
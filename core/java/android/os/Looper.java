@@ -24,6 +24,8 @@ import android.util.Printer;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 /**
   * Class used to run a message loop for a thread.  Threads by default do
   * not have a message loop associated with them; to create one, call
@@ -77,6 +79,13 @@ public final class Looper {
     private Printer mLogging;
     private long mTraceTag;
 
+    /**
+     * If set, the time messages waited past their due time and the time they took to
+     * dispatch are counted, in ms.  Only written by the looper thread, so dumps may be off
+     * by a message or two.
+     */
+    private DispatchLatencyStats mDispatchLatencyStats;
+
     /**
      * If set, the looper will show a warning log if a message dispatch takes longer than this.
      */
@@ -171,6 +180,7 @@ public final class Looper {
             }
 
             final long traceTag = me.mTraceTag;
+            final DispatchLatencyStats latencyStats = me.mDispatchLatencyStats;
             long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
             long slowDeliveryThresholdMs = me.mSlowDeliveryThresholdMs;
             if (thresholdOverride > 0) {
@@ -180,8 +190,9 @@ public final class Looper {
             final boolean logSlowDelivery = (slowDeliveryThresholdMs > 0) && (msg.when > 0);
             final boolean logSlowDispatch = (slowDispatchThresholdMs > 0);
 
-            final boolean needStartTime = logSlowDelivery || logSlowDispatch;
-            final boolean needEndTime = logSlowDispatch;
+            final boolean needStartTime = logSlowDelivery || logSlowDispatch
+                    || latencyStats != null;
+            final boolean needEndTime = logSlowDispatch || latencyStats != null;
 
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
@@ -214,6 +225,9 @@ public final class Looper {
             if (logSlowDispatch) {
                 showSlowLog(slowDispatchThresholdMs, dispatchStart, dispatchEnd, "dispatch", msg);
             }
+            if (latencyStats != null) {
+                latencyStats.add(msg.when, dispatchStart, dispatchEnd);
+            }
 
             if (logging != null) {
                 logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
@@ -303,6 +317,19 @@ public final class Looper {
         mSlowDeliveryThresholdMs = slowDeliveryThresholdMs;
     }
 
+    /**
+     * Enables counting how late messages are delivered and how long they take to dispatch,
+     * which is included in {@link #dump}.  Disabling it drops what was counted.
+     * {@hide}
+     */
+    public void setDispatchLatencyTracking(boolean enabled) {
+        if (!enabled) {
+            mDispatchLatencyStats = null;
+        } else if (mDispatchLatencyStats == null) {
+            mDispatchLatencyStats = new DispatchLatencyStats();
+        }
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -365,6 +392,7 @@ public final class Looper {
      */
     public void dump(@NonNull Printer pw, @NonNull String prefix) {
         pw.println(prefix + toString());
+        dumpDispatchLatencyStats(pw, prefix + "  ");
         mQueue.dump(pw, prefix + "  ", null);
     }
 
@@ -378,9 +406,19 @@ public final class Looper {
      */
     public void dump(@NonNull Printer pw, @NonNull String prefix, Handler handler) {
         pw.println(prefix + toString());
+        dumpDispatchLatencyStats(pw, prefix + "  ");
         mQueue.dump(pw, prefix + "  ", handler);
     }
 
+    private void dumpDispatchLatencyStats(Printer pw, String prefix) {
+        final DispatchLatencyStats stats = mDispatchLatencyStats;
+        if (stats != null) {
+            pw.println(prefix + "Dispatched messages: " + stats.mCount);
+            pw.println(prefix + "Delivery delay (ms): " + stats.mDeliveryDelays);
+            pw.println(prefix + "Dispatch time (ms): " + stats.mDispatchTimes);
+        }
+    }
+
     /** @hide */
     public void writeToProto(ProtoOutputStream proto, long fieldId) {
         final long looperToken = proto.start(fieldId);
@@ -395,4 +433,22 @@ public final class Looper {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
+
+    private static final class DispatchLatencyStats {
+        // The last bucket is for >= 32s.
+        final ExponentiallyBucketedHistogram mDeliveryDelays =
+                new ExponentiallyBucketedHistogram(16);
+        final ExponentiallyBucketedHistogram mDispatchTimes =
+                new ExponentiallyBucketedHistogram(16);
+        long mCount;
+
+        void add(long when, long dispatchStart, long dispatchEnd) {
+            // Messages sent at the front of the queue have no due time.
+            if (when > 0) {
+                mDeliveryDelays.add((int) Math.min(dispatchStart - when, Integer.MAX_VALUE));
+            }
+            mDispatchTimes.add((int) Math.min(dispatchEnd - dispatchStart, Integer.MAX_VALUE));
+            mCount++;
+        }
+    }
 }
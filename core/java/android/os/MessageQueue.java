@@ -48,6 +48,13 @@ public final class MessageQueue {
     private long mPtr; // used by native code
 
     Message mMessages;
+    // Last message in the queue, so that messages due no earlier than everything already
+    // queued, which is what most posts during a burst are, are appended without a scan.
+    private Message mLast;
+    // Message last inserted in the middle of the queue, or null once it has left the queue.
+    // Messages sent with increasing times, like immediate posts while delayed ones are queued
+    // behind them, are inserted by scanning from here rather than from the head.
+    private Message mInsertHint;
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
@@ -344,12 +351,7 @@ public final class MessageQueue {
                     } else {
                         // Got a message.
                         mBlocked = false;
-                        if (prevMsg != null) {
-                            prevMsg.next = msg.next;
-                        } else {
-                            mMessages = msg.next;
-                        }
-                        msg.next = null;
+                        unlinkMessageLocked(prevMsg, msg);
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
                         return msg;
@@ -487,6 +489,9 @@ public final class MessageQueue {
                 msg.next = p;
                 mMessages = msg;
             }
+            if (p == null) {
+                mLast = msg;
+            }
             return token;
         }
     }
@@ -523,7 +528,10 @@ public final class MessageQueue {
                 mMessages = p.next;
                 needWake = mMessages == null || mMessages.target != null;
             }
-            p.recycleUnchecked();
+            if (p == mLast) {
+                mLast = prev;
+            }
+            recycleRemovedLocked(p);
 
             // If the loop is quitting then it is already awake.
             // We can assume mPtr != 0 when mQuitting is false.
@@ -552,18 +560,35 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            msg.target.mQueuedMessageCount++;
             Message p = mMessages;
             boolean needWake;
             if (p == null || when == 0 || when < p.when) {
                 // New head, wake up the event queue if blocked.
                 msg.next = p;
                 mMessages = msg;
+                if (p == null) {
+                    mLast = msg;
+                }
                 needWake = mBlocked;
+            } else if (when >= mLast.when && (p.target != null || !msg.isAsynchronous())) {
+                // Due no earlier than everything queued, append it.  Wakes aren't needed
+                // for the same reason as below; an asynchronous message behind a barrier
+                // takes the slow path to find out whether it is the earliest one.
+                msg.next = null;
+                mLast.next = msg;
+                mLast = msg;
+                needWake = false;
             } else {
                 // Inserted within the middle of the queue.  Usually we don't have to wake
                 // up the event queue unless there is a barrier at the head of the queue
                 // and the message is the earliest asynchronous message in the queue.
                 needWake = mBlocked && p.target == null && msg.isAsynchronous();
+                if (!needWake && mInsertHint != null && mInsertHint.when <= when) {
+                    // Everything before the hint is due no later than it, so it all stays
+                    // ahead of msg.  Not when waking depends on the messages skipped.
+                    p = mInsertHint;
+                }
                 Message prev;
                 for (;;) {
                     prev = p;
@@ -577,6 +602,10 @@ public final class MessageQueue {
                 }
                 msg.next = p; // invariant: p == prev.next
                 prev.next = msg;
+                if (p == null) {
+                    mLast = msg;
+                }
+                mInsertHint = msg;
             }
 
             // We can assume mPtr != 0 because mQuitting is false.
@@ -593,10 +622,15 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            // Stop after the last message of h rather than walking the rest of the queue.
+            int remaining = h.mQueuedMessageCount;
             Message p = mMessages;
-            while (p != null) {
-                if (p.target == h && p.what == what && (object == null || p.obj == object)) {
-                    return true;
+            while (p != null && remaining > 0) {
+                if (p.target == h) {
+                    if (p.what == what && (object == null || p.obj == object)) {
+                        return true;
+                    }
+                    remaining--;
                 }
                 p = p.next;
             }
@@ -610,10 +644,14 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            int remaining = h.mQueuedMessageCount;
             Message p = mMessages;
-            while (p != null) {
-                if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
-                    return true;
+            while (p != null && remaining > 0) {
+                if (p.target == h) {
+                    if (p.callback == r && (object == null || p.obj == object)) {
+                        return true;
+                    }
+                    remaining--;
                 }
                 p = p.next;
             }
@@ -627,14 +665,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-            while (p != null) {
-                if (p.target == h) {
-                    return true;
-                }
-                p = p.next;
-            }
-            return false;
+            return h.mQueuedMessageCount > 0;
         }
     }
 
@@ -644,6 +675,8 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            // Stop after the last message of h rather than walking the rest of the queue.
+            int remaining = h.mQueuedMessageCount;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -651,19 +684,28 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
+                remaining--;
                 p = n;
             }
+            if (p == null) {
+                mLast = null;
+            } else if (p.target == h) {
+                remaining--;
+            }
 
             // Remove all messages after front.
-            while (p != null) {
+            while (p != null && remaining > 0) {
                 Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.what == what
-                        && (object == null || n.obj == object)) {
+                if (n != null && n.target == h) {
+                    remaining--;
+                    if (n.what == what && (object == null || n.obj == object)) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
+                        if (nn == null) {
+                            mLast = p;
+                        }
                         continue;
                     }
                 }
@@ -678,6 +720,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            int remaining = h.mQueuedMessageCount;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -685,19 +728,28 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
+                remaining--;
                 p = n;
             }
+            if (p == null) {
+                mLast = null;
+            } else if (p.target == h) {
+                remaining--;
+            }
 
             // Remove all messages after front.
-            while (p != null) {
+            while (p != null && remaining > 0) {
                 Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.callback == r
-                        && (object == null || n.obj == object)) {
+                if (n != null && n.target == h) {
+                    remaining--;
+                    if (n.callback == r && (object == null || n.obj == object)) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
+                        if (nn == null) {
+                            mLast = p;
+                        }
                         continue;
                     }
                 }
@@ -712,6 +764,7 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            int remaining = h.mQueuedMessageCount;
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -719,18 +772,28 @@ public final class MessageQueue {
                     && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
+                remaining--;
                 p = n;
             }
+            if (p == null) {
+                mLast = null;
+            } else if (p.target == h) {
+                remaining--;
+            }
 
             // Remove all messages after front.
-            while (p != null) {
+            while (p != null && remaining > 0) {
                 Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || n.obj == object)) {
+                if (n != null && n.target == h) {
+                    remaining--;
+                    if (object == null || n.obj == object) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
+                        if (nn == null) {
+                            mLast = p;
+                        }
                         continue;
                     }
                 }
@@ -739,14 +802,48 @@ public final class MessageQueue {
         }
     }
 
+    /**
+     * Takes {@code msg}, which follows {@code prevMsg} or is the head of the queue if that is
+     * null, out of the queue.  Also used by {@code android.os.test.TestLooper}.
+     */
+    private void unlinkMessageLocked(Message prevMsg, Message msg) {
+        if (prevMsg != null) {
+            prevMsg.next = msg.next;
+        } else {
+            mMessages = msg.next;
+        }
+        if (msg == mLast) {
+            mLast = prevMsg;
+        }
+        if (msg == mInsertHint) {
+            mInsertHint = null;
+        }
+        if (msg.target != null) {
+            msg.target.mQueuedMessageCount--;
+        }
+        msg.next = null;
+    }
+
+    /** Recycles a message that one of the remove methods took out of the queue. */
+    private void recycleRemovedLocked(Message p) {
+        if (p.target != null) {
+            p.target.mQueuedMessageCount--;
+        }
+        if (p == mInsertHint) {
+            mInsertHint = null;
+        }
+        p.recycleUnchecked();
+    }
+
     private void removeAllMessagesLocked() {
         Message p = mMessages;
         while (p != null) {
             Message n = p.next;
-            p.recycleUnchecked();
+            recycleRemovedLocked(p);
             p = n;
         }
         mMessages = null;
+        mLast = null;
     }
 
     private void removeAllFutureMessagesLocked() {
@@ -768,10 +865,11 @@ public final class MessageQueue {
                     p = n;
                 }
                 p.next = null;
+                mLast = p;
                 do {
                     p = n;
                     n = p.next;
-                    p.recycleUnchecked();
+                    recycleRemovedLocked(p);
                 } while (n != null);
             }
         }
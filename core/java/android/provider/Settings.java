@@ -75,6 +75,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.provider.SettingsValidators.Validator;
 import android.speech.tts.TextToSpeech;
@@ -1626,6 +1627,17 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow wants a
+     * read-only snapshot of the whole table. If this key is mapped to a <code>null</code>
+     * string extra in the request bundle, the response bundle may contain the same key
+     * mapped to a {@link android.os.SharedMemory} holding a {@link SettingsTableSnapshot}
+     * for the current table generation. Only supported for the global table.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1995,15 +2007,35 @@ public final class Settings {
         private final String mCallGetCommand;
         private final String mCallSetCommand;
 
+        // Whether misses should be answered from a shared memory snapshot of the table.
+        private final boolean mUseTableSnapshot;
+
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        @GuardedBy("this")
+        private SettingsTableSnapshot mTableSnapshot;
+
+        // Whether the provider declined to send a snapshot, e.g. to an instant app, and the
+        // generation it did so at. It is asked again once the generation changes, or after
+        // the generation tracker is lost, e.g. because the provider restarted.
+        @GuardedBy("this")
+        private boolean mTableSnapshotDeclined;
+        @GuardedBy("this")
+        private int mTableSnapshotDeclinedGeneration;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
+            this(uri, getCommand, setCommand, providerHolder, false);
+        }
+
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                ContentProviderHolder providerHolder, boolean useTableSnapshot) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mProviderHolder = providerHolder;
+            mUseTableSnapshot = useTableSnapshot;
         }
 
         public boolean putStringForUser(ContentResolver cr, String name, String value,
@@ -2045,6 +2077,12 @@ public final class Settings {
                         }
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
+                            if (mTableSnapshot != null
+                                    && mTableSnapshot.getGeneration() == currentGeneration) {
+                                final String value = mTableSnapshot.getValue(name);
+                                mValues.put(name, value);
+                                return value;
+                            }
                         }
                     }
                 }
@@ -2067,6 +2105,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsTableSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -2080,6 +2119,15 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && mUseTableSnapshot && (!mTableSnapshotDeclined
+                                || mTableSnapshotDeclinedGeneration != currentGeneration)) {
+                            // Any snapshot we hold is stale, otherwise we would not be here.
+                            needsTableSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2131,11 +2179,26 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    closeTableSnapshotLocked();
+                                                    mTableSnapshotDeclined = false;
                                                 }
                                             }
                                         });
                                     }
                                 }
+                                if (needsTableSnapshot) {
+                                    SharedMemory snapshotMemory = b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY);
+                                    if (snapshotMemory != null) {
+                                        closeTableSnapshotLocked();
+                                        mTableSnapshot = SettingsTableSnapshot.map(
+                                                snapshotMemory);
+                                        mTableSnapshotDeclined = false;
+                                    } else {
+                                        mTableSnapshotDeclined = true;
+                                        mTableSnapshotDeclinedGeneration = currentGeneration;
+                                    }
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -2205,6 +2268,16 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                closeTableSnapshotLocked();
+                mTableSnapshotDeclined = false;
+            }
+        }
+
+        @GuardedBy("this")
+        private void closeTableSnapshotLocked() {
+            if (mTableSnapshot != null) {
+                mTableSnapshot.close();
+                mTableSnapshot = null;
             }
         }
     }
@@ -13581,7 +13654,8 @@ public final class Settings {
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
-                    sProviderHolder);
+                    sProviderHolder,
+                    true /* useTableSnapshot */);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
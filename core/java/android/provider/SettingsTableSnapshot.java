@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only image of a settings table in shared memory, stamped with the table
+ * generation it was taken at. The settings provider writes it once per generation
+ * and client processes map it to answer lookups without a binder call while the
+ * generation tracked by {@link Settings} still matches.
+ * <p>
+ * Layout: magic, generation, entry count, one offset per entry sorted by name,
+ * then the entries as (name length, name chars, value length or -1, value chars).
+ * </p>
+ *
+ * @hide
+ */
+public final class SettingsTableSnapshot {
+    private static final String TAG = "SettingsTableSnapshot";
+
+    private static final int MAGIC = 0x53544253; // "STBS"
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int NULL_LENGTH = -1;
+
+    private final SharedMemory mSharedMemory;
+    private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mCount;
+
+    private SettingsTableSnapshot(SharedMemory sharedMemory, ByteBuffer buffer) {
+        mSharedMemory = sharedMemory;
+        mBuffer = buffer;
+        mGeneration = buffer.getInt(Integer.BYTES);
+        mCount = buffer.getInt(2 * Integer.BYTES);
+    }
+
+    /**
+     * Serializes {@code names} and {@code values} into a new read-only shared memory
+     * region for the given table generation.
+     */
+    public static @NonNull SharedMemory write(@NonNull String[] names, @NonNull String[] values,
+            int generation) throws ErrnoException {
+        final int count = names.length;
+        final Integer[] order = new Integer[count];
+        int size = HEADER_SIZE + count * Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            size += 2 * Integer.BYTES + names[i].length() * Character.BYTES;
+            if (values[i] != null) {
+                size += values[i].length() * Character.BYTES;
+            }
+        }
+        Arrays.sort(order, (lhs, rhs) -> names[lhs].compareTo(names[rhs]));
+
+        final SharedMemory sharedMemory = SharedMemory.create(TAG, Math.max(size, 1));
+        final ByteBuffer buffer = sharedMemory.mapReadWrite();
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(generation);
+            buffer.putInt(count);
+            int offset = HEADER_SIZE + count * Integer.BYTES;
+            for (int i = 0; i < count; i++) {
+                final int index = order[i];
+                buffer.putInt(offset);
+                offset += 2 * Integer.BYTES + names[index].length() * Character.BYTES;
+                if (values[index] != null) {
+                    offset += values[index].length() * Character.BYTES;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                final int index = order[i];
+                putString(buffer, names[index]);
+                putString(buffer, values[index]);
+            }
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        sharedMemory.setProtect(OsConstants.PROT_READ);
+        return sharedMemory;
+    }
+
+    /**
+     * Maps a snapshot received from the settings provider, or returns {@code null}
+     * if it cannot be mapped or is not a snapshot.
+     */
+    public static @Nullable SettingsTableSnapshot map(@NonNull SharedMemory sharedMemory) {
+        try {
+            final ByteBuffer buffer = sharedMemory.mapReadOnly();
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                SharedMemory.unmap(buffer);
+                sharedMemory.close();
+                return null;
+            }
+            return new SettingsTableSnapshot(sharedMemory, buffer);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Error mapping settings snapshot", e);
+            sharedMemory.close();
+            return null;
+        }
+    }
+
+    /** Returns the table generation this snapshot was taken at. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns whether the table contained a setting called {@code name}. */
+    public boolean contains(@NonNull String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * Returns the value of {@code name}, or {@code null} if it is not set or not
+     * part of the table.
+     */
+    public @Nullable String getValue(@NonNull String name) {
+        final int index = indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        final int offset = entryOffset(index);
+        final int nameLength = mBuffer.getInt(offset);
+        return getString(offset + Integer.BYTES + nameLength * Character.BYTES);
+    }
+
+    /** Unmaps the snapshot; it must not be used afterwards. */
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mSharedMemory.close();
+    }
+
+    private int indexOf(String name) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareName(entryOffset(mid), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int entryOffset(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * Integer.BYTES);
+    }
+
+    // Same ordering as String.compareTo without materializing the stored name.
+    private int compareName(int offset, String name) {
+        final int length = mBuffer.getInt(offset);
+        final int charsOffset = offset + Integer.BYTES;
+        final int limit = Math.min(length, name.length());
+        for (int i = 0; i < limit; i++) {
+            final char c = mBuffer.getChar(charsOffset + i * Character.BYTES);
+            final char other = name.charAt(i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return length - name.length();
+    }
+
+    private String getString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        final int charsOffset = offset + Integer.BYTES;
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(charsOffset + i * Character.BYTES);
+        }
+        return new String(chars);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(NULL_LENGTH);
+            return;
+        }
+        final int length = value.length();
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(value.charAt(i));
+        }
+    }
+}
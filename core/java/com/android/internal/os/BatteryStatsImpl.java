@@ -140,7 +140,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 177 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 178 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -172,6 +172,16 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    // Once the live history buffer reaches this size it is spilled to disk as a chunk
+    // and a new one is started, so the in-memory history never reaches MAX_HISTORY_BUFFER.
+    static final int HISTORY_CHUNK_SIZE = MAX_HISTORY_BUFFER / 2;
+
+    // The number of spilled history chunks kept on disk before the oldest is dropped.
+    static final int MAX_HISTORY_CHUNKS = 32;
+
+    private static final String HISTORY_CHUNK_DIR = "battery-history";
+    private static final String HISTORY_CHUNK_SUFFIX = ".bh";
+
     // Number of transmit power states the Wifi controller can be in.
     private static final int NUM_WIFI_TX_LEVELS = 1;
 
@@ -714,6 +724,33 @@ public class BatteryStatsImpl extends BatteryStats {
     private boolean mReadOverflow;
     private boolean mIteratingHistory;
 
+    // Ids of the history chunks spilled to disk, oldest first. Null directory means
+    // history is never spilled and only lives in mHistoryBuffer.
+    private File mHistoryChunkDir;
+    private final IntArray mHistoryChunkIds = new IntArray();
+    private int mNextHistoryChunkId;
+    private long mHistoryChunksSpilled;
+    // Chunk currently being iterated, or null once iteration reached mHistoryBuffer.
+    private Parcel mReadHistoryChunk;
+    private int mReadHistoryChunkIndex;
+    // Spilled chunks that may not be on disk yet, by id. Their files, and those of dropped
+    // chunks, are written and deleted on BackgroundThread, never under the stats lock on the
+    // note paths.
+    @GuardedBy("this")
+    private final SparseArray<HistoryChunk> mPendingHistoryChunks = new SparseArray<>();
+    @GuardedBy("this")
+    private final IntArray mDroppedHistoryChunkIds = new IntArray();
+    // Serializes access to the chunk files. Never held while taking the stats lock.
+    private final Object mHistoryChunkFileLock = new Object();
+    // Data of the newest chunks, oldest first, handed out ahead of the live buffer to
+    // readers of the Parcel history.  Holds at most MAX_HISTORY_BUFFER bytes.
+    @GuardedBy("this")
+    private final ArrayList<byte[]> mRecentHistoryChunks = new ArrayList<>();
+    @GuardedBy("this")
+    private int mRecentHistoryChunkBytes;
+    // Scratch item for the time stamp that starts each chunk.
+    private final HistoryItem mHistoryChunkStartItem = new HistoryItem();
+
     int mStartCount;
 
     long mStartClockTime;
@@ -3737,6 +3774,16 @@ public class BatteryStatsImpl extends BatteryStats {
             mHistoryLastWritten.setTo(mHistoryLastLastWritten);
         }
 
+        if (mHistoryChunkDir != null && mHistoryBuffer.dataSize() >= HISTORY_CHUNK_SIZE) {
+            spillHistoryChunkLocked();
+            // Start every chunk with a time stamp so it can be read without the ones before it.
+            // Written from a copy, so the tags and event of cur still go out with it below.
+            mHistoryChunkStartItem.setTo(cur);
+            mHistoryChunkStartItem.currentTime = System.currentTimeMillis();
+            addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_CURRENT_TIME,
+                    mHistoryChunkStartItem);
+        }
+
         boolean recordResetDueToOverflow = false;
         final int dataSize = mHistoryBuffer.dataSize();
         if (dataSize >= MAX_MAX_HISTORY_BUFFER*3) {
@@ -3829,6 +3876,247 @@ public class BatteryStatsImpl extends BatteryStats {
                 + " size is now " + mHistoryBuffer.dataSize());
     }
 
+    /**
+     * Writes the live history buffer out as the newest chunk on disk and empties it,
+     * dropping the oldest chunk once there are more than MAX_HISTORY_CHUNKS.  The next
+     * item is written against a cleared item, like the first item of a new history.
+     */
+    private void spillHistoryChunkLocked() {
+        if (mIteratingHistory) {
+            throw new IllegalStateException("Can't do this while iterating history!");
+        }
+        final int id = mNextHistoryChunkId++;
+        final byte[] data = mHistoryBuffer.marshall();
+        mPendingHistoryChunks.put(id, new HistoryChunk(id, data));
+        addRecentHistoryChunkLocked(data);
+        mHistoryChunkIds.add(id);
+        mHistoryChunksSpilled++;
+        while (mHistoryChunkIds.size() > MAX_HISTORY_CHUNKS) {
+            dropHistoryChunkLocked(mHistoryChunkIds.get(0));
+            mHistoryChunkIds.remove(0);
+        }
+        postHistoryChunkWrites();
+        if (DEBUG_HISTORY) Slog.i(TAG, "Spilled history chunk " + id + " of "
+                + mHistoryBuffer.dataSize() + " bytes");
+
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryLastLastWritten.clear();
+        mHistoryLastWritten.clear();
+        mHistoryBufferLastPos = -1;
+    }
+
+    @GuardedBy("this")
+    private void addRecentHistoryChunkLocked(byte[] data) {
+        mRecentHistoryChunks.add(data);
+        mRecentHistoryChunkBytes += data.length;
+        while (mRecentHistoryChunkBytes > MAX_HISTORY_BUFFER) {
+            mRecentHistoryChunkBytes -= mRecentHistoryChunks.remove(0).length;
+        }
+    }
+
+    /** Reads back the newest chunks left on disk, for readers of the Parcel history. */
+    @GuardedBy("this")
+    private void loadRecentHistoryChunksLocked() {
+        mRecentHistoryChunks.clear();
+        mRecentHistoryChunkBytes = 0;
+        long bytes = 0;
+        int first = mHistoryChunkIds.size();
+        while (first > 0) {
+            final File file = getHistoryChunkFile(mHistoryChunkIds.get(first - 1));
+            if (bytes + file.length() > MAX_HISTORY_BUFFER) {
+                break;
+            }
+            bytes += file.length();
+            first--;
+        }
+        for (int i = first; i < mHistoryChunkIds.size(); i++) {
+            final File file = getHistoryChunkFile(mHistoryChunkIds.get(i));
+            try (FileInputStream stream = new FileInputStream(file)) {
+                addRecentHistoryChunkLocked(BatteryStatsHelper.readFully(stream));
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading battery history chunk " + file, e);
+            }
+        }
+    }
+
+    private File getHistoryChunkFile(int id) {
+        return new File(mHistoryChunkDir, id + HISTORY_CHUNK_SUFFIX);
+    }
+
+    /** Has the file of a chunk that is no longer part of the history deleted, once written. */
+    @GuardedBy("this")
+    private void dropHistoryChunkLocked(int id) {
+        final HistoryChunk pending = mPendingHistoryChunks.get(id);
+        if (pending != null) {
+            // Whoever is writing it deletes it again; if nobody is, it is never written.
+            pending.dropped = true;
+            mPendingHistoryChunks.remove(id);
+        } else {
+            mDroppedHistoryChunkIds.add(id);
+        }
+    }
+
+    private void postHistoryChunkWrites() {
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override public void run() {
+                writePendingHistoryChunks();
+            }
+        });
+    }
+
+    /** Writes out the pending chunks and deletes the dropped ones. Called without the lock. */
+    private void writePendingHistoryChunks() {
+        while (true) {
+            final HistoryChunk chunk;
+            synchronized (this) {
+                if (mPendingHistoryChunks.size() == 0) {
+                    break;
+                }
+                chunk = mPendingHistoryChunks.valueAt(0);
+            }
+            writeHistoryChunk(chunk);
+        }
+
+        final int[] droppedIds;
+        synchronized (this) {
+            droppedIds = mDroppedHistoryChunkIds.toArray();
+            mDroppedHistoryChunkIds.clear();
+        }
+        synchronized (mHistoryChunkFileLock) {
+            for (int id : droppedIds) {
+                getHistoryChunkFile(id).delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the file of {@code chunk} unless that was already done, and stops keeping it
+     * in memory.  The stats lock may be held, but must not be if called for every note.
+     */
+    private void writeHistoryChunk(HistoryChunk chunk) {
+        final File file = getHistoryChunkFile(chunk.id);
+        synchronized (mHistoryChunkFileLock) {
+            if (!chunk.written) {
+                // A chunk that failed to write is not retried; iteration skips it.
+                chunk.written = true;
+                mHistoryChunkDir.mkdirs();
+                try (FileOutputStream stream = new FileOutputStream(file)) {
+                    stream.write(chunk.data);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Error writing battery history chunk " + file, e);
+                    file.delete();
+                }
+            }
+        }
+
+        final boolean dropped;
+        synchronized (this) {
+            if (mPendingHistoryChunks.get(chunk.id) == chunk) {
+                mPendingHistoryChunks.remove(chunk.id);
+            }
+            dropped = chunk.dropped;
+        }
+        if (dropped) {
+            synchronized (mHistoryChunkFileLock) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Writes out the pending chunks right away, before a summary counting them is saved. */
+    @GuardedBy("this")
+    private void writePendingHistoryChunksLocked() {
+        while (mPendingHistoryChunks.size() > 0) {
+            writeHistoryChunk(mPendingHistoryChunks.valueAt(0));
+        }
+    }
+
+    /** Picks up the history chunks left on disk by a previous run, oldest first. */
+    private void loadHistoryChunkIdsLocked() {
+        mHistoryChunkIds.clear();
+        final String[] names = mHistoryChunkDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(HISTORY_CHUNK_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    mHistoryChunkIds.add(Integer.parseInt(
+                            name.substring(0, name.length() - HISTORY_CHUNK_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    new File(mHistoryChunkDir, name).delete();
+                }
+            }
+        }
+        final int[] ids = mHistoryChunkIds.toArray();
+        Arrays.sort(ids);
+        mHistoryChunkIds.clear();
+        mHistoryChunkIds.addAll(IntArray.wrap(ids));
+        mNextHistoryChunkId = ids.length > 0 ? ids[ids.length - 1] + 1 : 0;
+    }
+
+    /**
+     * Drops chunks that were spilled after the summary we restored was written; their
+     * items are also in the restored live buffer.
+     */
+    private void pruneHistoryChunksLocked(int nextChunkId) {
+        for (int i = mHistoryChunkIds.size() - 1; i >= 0; i--) {
+            final int id = mHistoryChunkIds.get(i);
+            if (id >= nextChunkId) {
+                getHistoryChunkFile(id).delete();
+                mHistoryChunkIds.remove(i);
+            }
+        }
+        mNextHistoryChunkId = nextChunkId;
+        loadRecentHistoryChunksLocked();
+    }
+
+    private void deleteHistoryChunksLocked() {
+        for (int i = 0; i < mHistoryChunkIds.size(); i++) {
+            dropHistoryChunkLocked(mHistoryChunkIds.get(i));
+        }
+        mHistoryChunkIds.clear();
+        mRecentHistoryChunks.clear();
+        mRecentHistoryChunkBytes = 0;
+        postHistoryChunkWrites();
+    }
+
+    private Parcel readHistoryChunkLocked(int id) {
+        final HistoryChunk pending = mPendingHistoryChunks.get(id);
+        final byte[] raw;
+        if (pending != null) {
+            raw = pending.data;
+        } else {
+            final File file = getHistoryChunkFile(id);
+            try (FileInputStream stream = new FileInputStream(file)) {
+                raw = BatteryStatsHelper.readFully(stream);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading battery history chunk " + file, e);
+                return null;
+            }
+        }
+        final Parcel chunk = Parcel.obtain();
+        chunk.unmarshall(raw, 0, raw.length);
+        chunk.setDataPosition(0);
+        return chunk;
+    }
+
+    /** A spilled history chunk, marshalled under the stats lock and written out later. */
+    private static final class HistoryChunk {
+        final int id;
+        final byte[] data;
+        // Guarded by mHistoryChunkFileLock.
+        boolean written;
+        // Guarded by the stats lock; set once the chunk is no longer part of the history.
+        boolean dropped;
+
+        HistoryChunk(int id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
     int mChangedStates = 0;
     int mChangedStates2 = 0;
 
@@ -3966,6 +4254,9 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
         mHistoryBuffer.setDataCapacity(MAX_HISTORY_BUFFER / 2);
+        if (mHistoryChunkDir != null) {
+            deleteHistoryChunksLocked();
+        }
         mHistoryLastLastWritten.clear();
         mHistoryLastWritten.clear();
         mHistoryTagPool.clear();
@@ -10210,6 +10501,10 @@ public class BatteryStatsImpl extends BatteryStats {
         mCurrentBatteryLevel = 0;
         initDischarge();
         clearHistoryLocked();
+        if (systemDir != null) {
+            mHistoryChunkDir = new File(systemDir, HISTORY_CHUNK_DIR);
+            loadHistoryChunkIdsLocked();
+        }
         updateDailyDeadlineLocked();
         mPlatformIdleStateCallback = cb;
         mUserInfoProvider = userInfoProvider;
@@ -10660,12 +10955,14 @@ public class BatteryStatsImpl extends BatteryStats {
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        if (mHistoryBuffer.dataSize() <= 0 && mHistoryChunkIds.size() == 0) {
             return false;
         }
         mHistoryBuffer.setDataPosition(0);
         mReadOverflow = false;
         mIteratingHistory = true;
+        mReadHistoryChunkIndex = 0;
+        nextReadHistoryChunkLocked();
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
         mReadHistoryUids = new int[mHistoryTagPool.size()];
         mReadHistoryChars = 0;
@@ -10703,18 +11000,23 @@ public class BatteryStatsImpl extends BatteryStats {
 
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
+        Parcel buffer = mReadHistoryChunk != null ? mReadHistoryChunk : mHistoryBuffer;
+        while (buffer != mHistoryBuffer && buffer.dataPosition() >= buffer.dataSize()) {
+            buffer = nextReadHistoryChunkLocked();
+        }
+        final int pos = buffer.dataPosition();
         if (pos == 0) {
+            // Each chunk is written against a cleared item.
             out.clear();
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
+        boolean end = pos >= buffer.dataSize();
         if (end) {
             return false;
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        readHistoryDelta(buffer, out);
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -10727,6 +11029,29 @@ public class BatteryStatsImpl extends BatteryStats {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
+        if (mReadHistoryChunk != null) {
+            mReadHistoryChunk.recycle();
+            mReadHistoryChunk = null;
+        }
+    }
+
+    /**
+     * Moves iteration on to the next spilled chunk that can be read, or to the live
+     * buffer once there are none left.  Only one chunk is held in memory at a time.
+     */
+    private Parcel nextReadHistoryChunkLocked() {
+        if (mReadHistoryChunk != null) {
+            mReadHistoryChunk.recycle();
+            mReadHistoryChunk = null;
+        }
+        while (mReadHistoryChunkIndex < mHistoryChunkIds.size()) {
+            mReadHistoryChunk = readHistoryChunkLocked(
+                    mHistoryChunkIds.get(mReadHistoryChunkIndex++));
+            if (mReadHistoryChunk != null) {
+                return mReadHistoryChunk;
+            }
+        }
+        return mHistoryBuffer;
     }
 
     @Override
@@ -13455,6 +13780,16 @@ public class BatteryStatsImpl extends BatteryStats {
     Parcel mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    // Cost of serializing checkpoints while holding the stats lock, reported in dumpsys.
+    @GuardedBy("this")
+    private int mCheckpointCount;
+    @GuardedBy("this")
+    private int mLastCheckpointBytes;
+    @GuardedBy("this")
+    private long mLastCheckpointMicros;
+    @GuardedBy("this")
+    private long mMaxCheckpointMicros;
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -13473,8 +13808,7 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        final Parcel out = writeCheckpointLocked();
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
@@ -13483,6 +13817,10 @@ public class BatteryStatsImpl extends BatteryStats {
         mPendingWrite = out;
 
         if (sync) {
+            // The summary counts the spilled chunks, so they must be on disk before it is.
+            if (mHistoryChunkDir != null) {
+                writePendingHistoryChunksLocked();
+            }
             commitPendingDataToDisk();
         } else {
             BackgroundThread.getHandler().post(new Runnable() {
@@ -13493,6 +13831,33 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /** Serializes the summary that is written to disk, recording how long that took. */
+    @VisibleForTesting
+    @GuardedBy("this")
+    public Parcel writeCheckpointLocked() {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final Parcel out = Parcel.obtain();
+        // Size the parcel for the previous checkpoint up front, so that a summary of many UIDs
+        // is not reallocated and copied over and over while it grows under the stats lock.
+        if (mLastCheckpointBytes > 0) {
+            out.setDataCapacity(mLastCheckpointBytes + mLastCheckpointBytes / 8);
+        }
+        writeSummaryToParcel(out, true);
+        noteCheckpointLocked(out.dataSize(), startNanos);
+        return out;
+    }
+
+    @GuardedBy("this")
+    private void noteCheckpointLocked(int bytes, long startNanos) {
+        final long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        mCheckpointCount++;
+        mLastCheckpointBytes = bytes;
+        mLastCheckpointMicros = micros;
+        if (micros > mMaxCheckpointMicros) {
+            mMaxCheckpointMicros = micros;
+        }
+    }
+
     public void commitPendingDataToDisk() {
         final Parcel next;
         synchronized (this) {
@@ -13538,6 +13903,10 @@ public class BatteryStatsImpl extends BatteryStats {
         try {
             File file = mFile.chooseForRead();
             if (!file.exists()) {
+                // Chunks without the summary that counts them can't be placed in time.
+                if (mHistoryChunkDir != null) {
+                    deleteHistoryChunksLocked();
+                }
                 return;
             }
             FileInputStream stream = new FileInputStream(file);
@@ -13661,7 +14030,11 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
-    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+    /**
+     * @param inclChunks whether to put the newest spilled chunks ahead of the live buffer;
+     *        false for the summary, which is restored next to the chunk files themselves
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean inclChunks, boolean andOldHistory) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -13683,9 +14056,21 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
+        // Every chunk starts with an absolute item, so they decode as one buffer.
+        final int chunkBytes = inclChunks ? mRecentHistoryChunkBytes : 0;
+        out.writeInt(chunkBytes + mHistoryBuffer.dataSize());
         if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+                + chunkBytes + " + " + mHistoryBuffer.dataSize() + " bytes at "
+                + out.dataPosition());
+        if (inclChunks) {
+            final Parcel chunk = Parcel.obtain();
+            for (int i = 0; i < mRecentHistoryChunks.size(); i++) {
+                final byte[] data = mRecentHistoryChunks.get(i);
+                chunk.unmarshall(data, 0, data.length);
+                out.appendFrom(chunk, 0, data.length);
+            }
+            chunk.recycle();
+        }
         out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
 
         if (andOldHistory) {
@@ -13710,10 +14095,17 @@ public class BatteryStatsImpl extends BatteryStats {
         if (version != VERSION) {
             Slog.w("BatteryStats", "readFromParcel: version got " + version
                 + ", expected " + VERSION + "; erasing old stats");
+            if (mHistoryChunkDir != null) {
+                deleteHistoryChunksLocked();
+            }
             return;
         }
 
         readHistory(in, true);
+        final int nextHistoryChunkId = in.readInt();
+        if (mHistoryChunkDir != null) {
+            pruneHistoryChunksLocked(nextHistoryChunkId);
+        }
 
         mStartCount = in.readInt();
         mUptime = in.readLong();
@@ -14181,7 +14573,8 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, false, true);
+        out.writeInt(mNextHistoryChunkId);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -14908,7 +15301,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(MAGIC);
 
-        writeHistory(out, true, false);
+        writeHistory(out, true, true, false);
 
         out.writeInt(mStartCount);
         out.writeLong(startClockTime);
@@ -15185,5 +15578,18 @@ public class BatteryStatsImpl extends BatteryStats {
         pw.println(mNumAllUidCpuTimeReads);
         pw.print("UIDs removed since the later of device start or stats reset: ");
         pw.println(mNumUidsRemoved);
+        pw.print("Checkpoints written: ");
+        pw.print(mCheckpointCount);
+        pw.print(", last ");
+        pw.print(mLastCheckpointBytes);
+        pw.print(" bytes serialized in ");
+        pw.print(mLastCheckpointMicros);
+        pw.print("us, max ");
+        pw.print(mMaxCheckpointMicros);
+        pw.println("us under lock");
+        pw.print("History chunks on disk: ");
+        pw.print(mHistoryChunkIds.size());
+        pw.print(", spilled since boot: ");
+        pw.println(mHistoryChunksSpilled);
     }
 }
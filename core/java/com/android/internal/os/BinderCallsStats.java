@@ -24,28 +24,48 @@ import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.internal.util.Preconditions;
 
 import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ * <p>
+ * Every calling thread accumulates into its own {@link ThreadStats}, so recording a call only
+ * takes a lock that is uncontended except while dumping. With detailed tracking, CPU time and
+ * latency are measured for one in every {@link #setSamplingInterval sampling interval} calls.
  */
 public class BinderCallsStats {
     private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    // Latency buckets have power-of-two microsecond bounds; the last one is for >= 2^22us.
+    private static final int LATENCY_BUCKET_COUNT = 24;
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
+    private volatile int mSamplingInterval = 1;
     @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
-    private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
+    private final ArrayList<ThreadStats> mThreadStats = new ArrayList<>();
+    // Calls made by threads that have exited, folded in so that their ThreadStats are dropped.
+    @GuardedBy("mLock")
+    private final SparseArray<UidEntry> mExitedThreadUidEntries = new SparseArray<>();
+    private final ThreadLocal<ThreadStats> mLocalThreadStats = new ThreadLocal<ThreadStats>() {
+        @Override
+        protected ThreadStats initialValue() {
+            final ThreadStats stats = new ThreadStats(Thread.currentThread());
+            synchronized (mLock) {
+                pruneExitedThreadsLocked();
+                mThreadStats.add(stats);
+            }
+            return stats;
+        }
+    };
     private final Object mLock = new Object();
     private long mStartTime = System.currentTimeMillis();
 
@@ -62,30 +82,41 @@ public class BinderCallsStats {
     }
 
     private CallSession callStarted(String className, int code) {
-        CallSession s = mCallSessionsPool.poll();
-        if (s == null) {
-            s = new CallSession();
-        }
+        final ThreadStats stats = mLocalThreadStats.get();
+        final ArrayList<CallSession> pool = stats.mCallSessionsPool;
+        final CallSession s = pool.isEmpty() ? new CallSession() : pool.remove(pool.size() - 1);
+        s.mThreadStats = stats;
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
 
-        s.mStarted = getThreadTimeMicro();
+        // currentThreadTimeMicro is expensive, so we measure cpu time only for sampled calls
+        s.mSampled = mDetailedTracking && stats.shouldSample(mSamplingInterval);
+        if (s.mSampled) {
+            s.mStarted = SystemClock.currentThreadTimeMicro();
+            s.mStartedRealtime = SystemClock.elapsedRealtimeNanos();
+        }
         return s;
     }
 
     public void callEnded(CallSession s) {
         Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
+        final ThreadStats stats = s.mThreadStats;
+        long duration = 0;
+        long latency = 0;
+        if (s.mSampled) {
+            duration = SystemClock.currentThreadTimeMicro() - s.mStarted;
+            latency = (SystemClock.elapsedRealtimeNanos() - s.mStartedRealtime) / 1000;
+        }
         s.mCallingUId = Binder.getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+        synchronized (stats) {
+            UidEntry uidEntry = stats.mUidEntries.get(s.mCallingUId);
             if (uidEntry == null) {
                 uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                stats.mUidEntries.put(s.mCallingUId, uidEntry);
             }
 
-            if (mDetailedTracking) {
+            if (s.mSampled) {
                 // Find CallDesc entry and update its total time
                 CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
                 // Only create CallStat if it's a new entry, otherwise update existing instance
@@ -95,13 +126,15 @@ public class BinderCallsStats {
                 }
                 callStat.callCount++;
                 callStat.time += duration;
+                callStat.noteLatency(latency);
+                uidEntry.time += duration;
+                uidEntry.sampledCallCount++;
             }
-
-            uidEntry.time += duration;
             uidEntry.callCount++;
         }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
+        s.mThreadStats = null;
+        if (stats.mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
+            stats.mCallSessionsPool.add(s);
         }
     }
 
@@ -112,25 +145,19 @@ public class BinderCallsStats {
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
-        List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        final List<UidEntry> entries = getMergedUidEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            UidEntry e = entries.get(i);
+            totalCallsTime += e.getEstimatedTime();
+            // Update per-uid totals
+            uidTimeMap.put(e.uid, e.getEstimatedTime());
+            uidCallCountMap.put(e.uid, e.callCount);
+            totalCallsCount += e.callCount;
         }
         if (mDetailedTracking) {
-            pw.println("Raw data (uid,call_desc,time):");
+            pw.print("Sampling interval: ");
+            pw.println(mSamplingInterval);
+            pw.println("Raw data (uid,call_desc,time,sampled_calls):");
             entries.sort((o1, o2) -> {
                 if (o1.time < o2.time) {
                     return 1;
@@ -153,7 +180,8 @@ public class BinderCallsStats {
                 for (CallStat e : callStats) {
                     sb.setLength(0);
                     sb.append("    ")
-                            .append(uidEntry.uid).append(",").append(e).append(',').append(e.time);
+                            .append(uidEntry.uid).append(",").append(e).append(',').append(e.time)
+                            .append(',').append(e.callCount);
                     pw.println(sb);
                 }
             }
@@ -172,22 +200,91 @@ public class BinderCallsStats {
                             + "calls_count=%d, avg_call_time=%.0f",
                     totalCallsTime, totalCallsCount,
                     (double)totalCallsTime / totalCallsCount));
+            pw.println();
+            dumpLatencyHistograms(pw, entries);
         } else {
             pw.println("Per UID Summary(UID: calls_count, % of total calls_count):");
-            List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
+            List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidCallCountMap.entrySet());
             uidTotals.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
             for (Map.Entry<Integer, Long> uidTotal : uidTotals) {
-                Long callCount = uidCallCountMap.get(uidTotal.getKey());
                 pw.println(String.format("    %7d: %8d %3.0f%%",
-                        uidTotal.getKey(), callCount, 100d * uidTotal.getValue() / totalCallsTime));
+                        uidTotal.getKey(), uidTotal.getValue(),
+                        100d * uidTotal.getValue() / totalCallsCount));
             }
         }
     }
 
-    private long getThreadTimeMicro() {
-        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
-        // enabled
-        return mDetailedTracking ? SystemClock.currentThreadTimeMicro() : 0;
+    private void dumpLatencyHistograms(PrintWriter pw, List<UidEntry> entries) {
+        // Merge the per-uid call stats into one histogram per interface and method
+        final Map<CallStat, CallStat> calls = new ArrayMap<>();
+        for (UidEntry uidEntry : entries) {
+            for (CallStat e : uidEntry.mCallStats.keySet()) {
+                CallStat merged = calls.get(e);
+                if (merged == null) {
+                    merged = new CallStat(e.className, e.msg);
+                    calls.put(merged, merged);
+                }
+                merged.add(e);
+            }
+        }
+        final List<CallStat> callStats = new ArrayList<>(calls.keySet());
+        callStats.sort((o1, o2) -> Long.compare(o2.callCount, o1.callCount));
+        pw.println("Latency histograms of sampled calls in us (call_desc: count [bound: count]):");
+        StringBuilder sb = new StringBuilder();
+        for (CallStat e : callStats) {
+            sb.setLength(0);
+            sb.append("    ").append(e).append(": ").append(e.callCount).append(' ')
+                    .append(e.latencies);
+            pw.println(sb);
+        }
+    }
+
+    private List<UidEntry> getMergedUidEntries() {
+        final SparseArray<UidEntry> merged = new SparseArray<>();
+        synchronized (mLock) {
+            pruneExitedThreadsLocked();
+            addUidEntries(merged, mExitedThreadUidEntries);
+            for (int i = 0; i < mThreadStats.size(); i++) {
+                final ThreadStats stats = mThreadStats.get(i);
+                synchronized (stats) {
+                    addUidEntries(merged, stats.mUidEntries);
+                }
+            }
+        }
+        final List<UidEntry> entries = new ArrayList<>(merged.size());
+        for (int i = 0; i < merged.size(); i++) {
+            entries.add(merged.valueAt(i));
+        }
+        return entries;
+    }
+
+    private static void addUidEntries(SparseArray<UidEntry> totals, SparseArray<UidEntry> entries) {
+        for (int i = 0; i < entries.size(); i++) {
+            final UidEntry e = entries.valueAt(i);
+            UidEntry total = totals.get(e.uid);
+            if (total == null) {
+                total = new UidEntry(e.uid);
+                totals.put(e.uid, total);
+            }
+            total.add(e);
+        }
+    }
+
+    /**
+     * Folds the calls of threads that have exited into {@link #mExitedThreadUidEntries} and
+     * drops their ThreadStats, so threads that only ever made a few calls don't add up.
+     */
+    @GuardedBy("mLock")
+    private void pruneExitedThreadsLocked() {
+        for (int i = mThreadStats.size() - 1; i >= 0; i--) {
+            final ThreadStats stats = mThreadStats.get(i);
+            if (!stats.isThreadAlive()) {
+                synchronized (stats) {
+                    addUidEntries(mExitedThreadUidEntries, stats.mUidEntries);
+                }
+                mThreadStats.remove(i);
+            }
+        }
     }
 
     public static BinderCallsStats getInstance() {
@@ -201,9 +298,28 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Sets how many calls each thread makes per call whose CPU time and latency are measured
+     * with detailed tracking. 1 measures every call.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        Preconditions.checkArgument(samplingInterval > 0, "samplingInterval must be positive");
+        if (samplingInterval != mSamplingInterval) {
+            reset();
+            mSamplingInterval = samplingInterval;
+        }
+    }
+
     public void reset() {
         synchronized (mLock) {
-            mUidEntries.clear();
+            pruneExitedThreadsLocked();
+            mExitedThreadUidEntries.clear();
+            for (int i = 0; i < mThreadStats.size(); i++) {
+                final ThreadStats stats = mThreadStats.get(i);
+                synchronized (stats) {
+                    stats.mUidEntries.clear();
+                }
+            }
             mStartTime = System.currentTimeMillis();
         }
     }
@@ -213,6 +329,7 @@ public class BinderCallsStats {
         int msg;
         long time;
         long callCount;
+        ExponentiallyBucketedHistogram latencies;
 
         CallStat() {
         }
@@ -220,6 +337,17 @@ public class BinderCallsStats {
         CallStat(String className, int msg) {
             this.className = className;
             this.msg = msg;
+            this.latencies = new ExponentiallyBucketedHistogram(LATENCY_BUCKET_COUNT);
+        }
+
+        void noteLatency(long latencyMicros) {
+            latencies.add((int) Math.min(latencyMicros, Integer.MAX_VALUE));
+        }
+
+        void add(CallStat other) {
+            time += other.time;
+            callCount += other.callCount;
+            latencies.addAll(other.latencies);
         }
 
         @Override
@@ -249,13 +377,48 @@ public class BinderCallsStats {
     public static class CallSession {
         int mCallingUId;
         long mStarted;
+        long mStartedRealtime;
+        boolean mSampled;
+        ThreadStats mThreadStats;
         CallStat mCallStat = new CallStat();
     }
 
+    /**
+     * Accumulators owned by one calling thread. Entries are guarded by the instance lock,
+     * which is only contended by dump and reset.
+     */
+    private static class ThreadStats {
+        // Weak so that the stats of an exited thread don't keep it around until pruned.
+        final WeakReference<Thread> mThread;
+        @GuardedBy("this")
+        final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+        // Only used by the owning thread
+        final ArrayList<CallSession> mCallSessionsPool = new ArrayList<>();
+        int mCallsUntilSample;
+
+        ThreadStats(Thread thread) {
+            mThread = new WeakReference<>(thread);
+        }
+
+        boolean isThreadAlive() {
+            final Thread thread = mThread.get();
+            return thread != null && thread.isAlive();
+        }
+
+        boolean shouldSample(int samplingInterval) {
+            if (--mCallsUntilSample > 0) {
+                return false;
+            }
+            mCallsUntilSample = samplingInterval;
+            return true;
+        }
+    }
+
     private static class UidEntry {
         int uid;
         long time;
         long callCount;
+        long sampledCallCount;
 
         UidEntry(int uid) {
             this.uid = uid;
@@ -264,6 +427,25 @@ public class BinderCallsStats {
         // Aggregate time spent per each call name: call_desc -> cpu_time_micros
         Map<CallStat, CallStat> mCallStats = new ArrayMap<>();
 
+        /** Returns the CPU time of all calls, extrapolated from the sampled ones. */
+        long getEstimatedTime() {
+            return sampledCallCount == 0 ? 0 : time * callCount / sampledCallCount;
+        }
+
+        void add(UidEntry other) {
+            time += other.time;
+            callCount += other.callCount;
+            sampledCallCount += other.sampledCallCount;
+            for (CallStat e : other.mCallStats.keySet()) {
+                CallStat callStat = mCallStats.get(e);
+                if (callStat == null) {
+                    callStat = new CallStat(e.className, e.msg);
+                    mCallStats.put(callStat, callStat);
+                }
+                callStat.add(e);
+            }
+        }
+
         @Override
         public String toString() {
             return "UidEntry{" +
@@ -57,6 +57,19 @@ public class ExponentiallyBucketedHistogram {
         }
     }
 
+    /**
+     * Add all values of another histogram with the same number of buckets.
+     *
+     * @param other The histogram to add
+     */
+    public void addAll(@NonNull ExponentiallyBucketedHistogram other) {
+        Preconditions.checkArgument(other.mData.length == mData.length,
+                "histograms have different numbers of buckets");
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] += other.mData[i];
+        }
+    }
+
     /**
      * Clear all data from the histogram
      */
@@ -72,6 +85,19 @@ public class ExponentiallyBucketedHistogram {
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
+        appendTo(builder);
+
+        Log.d(tag, builder.toString());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        appendTo(builder);
+        return builder.toString();
+    }
+
+    private void appendTo(@NonNull StringBuilder builder) {
         builder.append('[');
 
         for (int i = 0; i < mData.length; i++) {
@@ -91,7 +117,5 @@ public class ExponentiallyBucketedHistogram {
             builder.append(mData[i]);
         }
         builder.append("]");
-
-        Log.d(tag, builder.toString());
     }
 }
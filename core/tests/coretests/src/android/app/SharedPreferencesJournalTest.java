@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.SharedPreferencesJournal.EncodedValue;
+import android.app.SharedPreferencesJournal.RecordBuilder;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedPreferencesJournalTest {
+    private static final int MODE_JOURNALED = Context.MODE_PRIVATE | Context.MODE_JOURNALED;
+
+    private File mPrefsFile;
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        mPrefsFile = new File(context.getCacheDir(), "SharedPreferencesJournalTest.xml");
+        mJournalFile = SharedPreferencesJournal.makeJournalFile(mPrefsFile);
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        mPrefsFile.delete();
+        SharedPreferencesImpl.makeBackupFile(mPrefsFile).delete();
+        mJournalFile.delete();
+        new File(mJournalFile.getPath() + ".tmp").delete();
+    }
+
+    /** One value of every type, plus a null key. */
+    private static Map<String, Object> makeValues() {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("string", "bananas");
+        values.put("emptyString", "");
+        values.put("stringSet", new HashSet<>(Arrays.asList("a", "b", "été")));
+        values.put("emptyStringSet", new HashSet<String>());
+        values.put("int", Integer.MIN_VALUE);
+        values.put("long", Long.MAX_VALUE);
+        values.put("float", 1.5f);
+        values.put("boolean", true);
+        values.put(null, 42);
+        return values;
+    }
+
+    private static void putAll(SharedPreferences.Editor editor, Map<String, Object> values) {
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            final Object v = e.getValue();
+            if (v instanceof String) {
+                editor.putString(e.getKey(), (String) v);
+            } else if (v instanceof Set) {
+                editor.putStringSet(e.getKey(), (Set<String>) v);
+            } else if (v instanceof Integer) {
+                editor.putInt(e.getKey(), (Integer) v);
+            } else if (v instanceof Long) {
+                editor.putLong(e.getKey(), (Long) v);
+            } else if (v instanceof Float) {
+                editor.putFloat(e.getKey(), (Float) v);
+            } else {
+                editor.putBoolean(e.getKey(), (Boolean) v);
+            }
+        }
+    }
+
+    private static Map<String, Object> decodeAll(Map<String, Object> map) {
+        final Map<String, Object> decoded = new HashMap<>();
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            decoded.put(e.getKey(), ((EncodedValue) e.getValue()).decode());
+        }
+        return decoded;
+    }
+
+    private static byte[] putRecord(Map<String, Object> values) {
+        final RecordBuilder record = new RecordBuilder();
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            record.put(e.getKey(), e.getValue());
+        }
+        return record.build();
+    }
+
+    private static void append(SharedPreferencesJournal journal, byte[]... records)
+            throws Exception {
+        journal.append(new ArrayList<>(Arrays.asList(records)));
+    }
+
+    @Test
+    public void testRead_noJournal() throws Exception {
+        assertNull(new SharedPreferencesJournal(mJournalFile).read());
+    }
+
+    @Test
+    public void testRoundTrip_allTypes() throws Exception {
+        final Map<String, Object> values = makeValues();
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        assertNull(journal.read());
+        append(journal, putRecord(values));
+
+        assertEquals(values, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+    }
+
+    @Test
+    public void testRoundTrip_stringSetWithNull() throws Exception {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("stringSet", new HashSet<>(Arrays.asList("a", null)));
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.read();
+        append(journal, putRecord(values));
+
+        assertEquals(values, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+    }
+
+    @Test
+    public void testRoundTrip_removeAndClear() throws Exception {
+        final Map<String, Object> values = makeValues();
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.read();
+        final RecordBuilder remove = new RecordBuilder();
+        remove.remove("string");
+        remove.remove(null);
+        append(journal, putRecord(values), remove.build());
+
+        values.remove("string");
+        values.remove(null);
+        assertEquals(values, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+
+        final RecordBuilder clear = new RecordBuilder();
+        clear.clear();
+        clear.put("int", 7);
+        append(journal, clear.build());
+
+        final Map<String, Object> expected = new HashMap<>();
+        expected.put("int", 7);
+        assertEquals(expected, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+    }
+
+    @Test
+    public void testCompaction_keepsEncodedValues() throws Exception {
+        final Map<String, Object> values = makeValues();
+        final Map<String, Object> overwritten = new HashMap<>(values);
+        overwritten.put("int", 0);
+        overwritten.put("string", "apples");
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.read();
+        append(journal, putRecord(overwritten), putRecord(values));
+        final long appendedLength = mJournalFile.length();
+
+        // Values that were never decoded are copied to the compacted file as they are.
+        journal.rewrite(journal.read());
+        assertTrue(mJournalFile.length() < appendedLength);
+        assertEquals(values, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+
+        // Appends after a compaction go after the compacted record.
+        final Map<String, Object> more = new HashMap<>();
+        more.put("more", "more");
+        append(journal, putRecord(more));
+        values.putAll(more);
+        assertEquals(values, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+    }
+
+    @Test
+    public void testTruncatedLastRecord_isDroppedAndCutOff() throws Exception {
+        final Map<String, Object> first = makeValues();
+        final Map<String, Object> torn = new HashMap<>();
+        torn.put("torn", "torn");
+        final SharedPreferencesJournal journal = new SharedPreferencesJournal(mJournalFile);
+        journal.read();
+        append(journal, putRecord(first), putRecord(torn));
+
+        // Simulate a crash part way through appending the last record.
+        final RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        final SharedPreferencesJournal reopened = new SharedPreferencesJournal(mJournalFile);
+        assertEquals(first, decodeAll(reopened.read()));
+
+        // The torn bytes are cut off before the next append, so it reads back.
+        final Map<String, Object> next = new HashMap<>();
+        next.put("next", 1L);
+        append(reopened, putRecord(next));
+        first.putAll(next);
+        assertEquals(first, decodeAll(new SharedPreferencesJournal(mJournalFile).read()));
+    }
+
+    @Test
+    public void testSharedPreferences_roundTripThroughReload() throws Exception {
+        final Map<String, Object> values = makeValues();
+        SharedPreferences prefs = new SharedPreferencesImpl(mPrefsFile, MODE_JOURNALED);
+        SharedPreferences.Editor editor = prefs.edit();
+        putAll(editor, values);
+        editor.putString("removed", "removed");
+        assertTrue(editor.commit());
+
+        // Putting a null value removes the preference.
+        editor = prefs.edit();
+        editor.putString("removed", null);
+        assertTrue(editor.commit());
+        assertTrue(mJournalFile.exists());
+        assertFalse(mPrefsFile.exists());
+
+        prefs = new SharedPreferencesImpl(mPrefsFile, MODE_JOURNALED);
+        assertEquals(values, prefs.getAll());
+        assertFalse(prefs.contains("removed"));
+        assertEquals(42, prefs.getInt(null, 0));
+        assertEquals("bananas", prefs.getString("string", null));
+        assertEquals(Long.MAX_VALUE, prefs.getLong("long", 0));
+        assertEquals(1.5f, prefs.getFloat("float", 0), 0);
+        assertTrue(prefs.getBoolean("boolean", false));
+    }
+
+    @Test
+    public void testSharedPreferences_migratesFromXml() throws Exception {
+        final Map<String, Object> values = makeValues();
+        values.remove(null);
+        SharedPreferences prefs = new SharedPreferencesImpl(mPrefsFile, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        putAll(editor, values);
+        assertTrue(editor.commit());
+        assertTrue(mPrefsFile.exists());
+        assertFalse(mJournalFile.exists());
+
+        prefs = new SharedPreferencesImpl(mPrefsFile, MODE_JOURNALED);
+        assertEquals(values, prefs.getAll());
+
+        // The first write finishes the migration if the background one has not yet.
+        editor = prefs.edit();
+        editor.putInt("int", 1);
+        assertTrue(editor.commit());
+        values.put("int", 1);
+        assertTrue(mJournalFile.exists());
+        assertFalse(mPrefsFile.exists());
+
+        prefs = new SharedPreferencesImpl(mPrefsFile, MODE_JOURNALED);
+        assertEquals(values, prefs.getAll());
+    }
+}
@@ -20,10 +20,14 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 import junit.framework.TestCase;
 
-@Suppress  // Failing.
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class MessageQueueTest extends TestCase {
 
     private static class BaseTestHandler extends TestHandlerThread {
@@ -63,6 +67,7 @@ public class MessageQueueTest extends TestCase {
         }
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testMessageOrder() throws Exception {
         TestHandlerThread tester = new BaseTestHandler() {
@@ -82,6 +87,7 @@ public class MessageQueueTest extends TestCase {
         tester.doTest(1000);
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testAtFrontOfQueue() throws Exception {
         TestHandlerThread tester = new BaseTestHandler() {
@@ -143,6 +149,7 @@ public class MessageQueueTest extends TestCase {
         }
     }
 
+    @Suppress  // Failing.
     @MediumTest
     public void testFieldIntegrity() throws Exception {
 
@@ -275,4 +282,141 @@ public class MessageQueueTest extends TestCase {
 
         tester.doTest(1000);
     }
+
+    // The tests below check the queue itself rather than dispatching from it: a queue that
+    // nothing loops on, and the order its messages are linked in.
+
+    private MessageQueue mQueue;
+    private Handler mHandler;
+    private long mNow;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new MessageQueue(true);
+        // Only the target of the messages; they are never dispatched.
+        mHandler = new Handler(Looper.getMainLooper());
+        // Far enough in the future that nothing is due, unless sent in the past.
+        mNow = SystemClock.uptimeMillis() + 60 * 1000;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueue.quit(false);
+        super.tearDown();
+    }
+
+    private void send(int what, long when) {
+        assertTrue(mQueue.enqueueMessage(mHandler.obtainMessage(what), when));
+    }
+
+    /** Checks the messages in the queue, -1 for a barrier, and that its tail is the last. */
+    private void assertQueue(Integer... expected) throws Exception {
+        final ArrayList<Integer> actual = new ArrayList<>();
+        int handlerMessages = 0;
+        Message last = null;
+        synchronized (mQueue) {
+            for (Message m = mQueue.mMessages; m != null; m = m.next) {
+                actual.add(m.target != null ? m.what : -1);
+                if (m.target == mHandler) {
+                    handlerMessages++;
+                }
+                last = m;
+            }
+            final Field tail = MessageQueue.class.getDeclaredField("mLast");
+            tail.setAccessible(true);
+            assertSame("tail", last, tail.get(mQueue));
+            assertEquals(handlerMessages, mHandler.mQueuedMessageCount);
+        }
+        assertEquals(Arrays.asList(expected), actual);
+        assertEquals(handlerMessages > 0, mQueue.hasMessages(mHandler));
+    }
+
+    @SmallTest
+    public void testAppend() throws Exception {
+        send(1, mNow + 1);
+        send(2, mNow + 2);
+        send(3, mNow + 2);
+        send(4, mNow + 3);
+        assertQueue(1, 2, 3, 4);
+    }
+
+    @SmallTest
+    public void testRemoveLastThenAppend() throws Exception {
+        send(1, mNow + 1);
+        send(2, mNow + 2);
+        send(3, mNow + 3);
+        mQueue.removeMessages(mHandler, 3, null);
+        assertQueue(1, 2);
+
+        send(4, mNow + 4);
+        assertQueue(1, 2, 4);
+    }
+
+    @SmallTest
+    public void testRemoveAllThenAppend() throws Exception {
+        send(1, mNow + 1);
+        send(2, mNow + 2);
+        mQueue.removeCallbacksAndMessages(mHandler, null);
+        assertQueue();
+        assertFalse(mQueue.hasMessages(mHandler));
+
+        send(3, mNow + 3);
+        assertQueue(3);
+    }
+
+    @SmallTest
+    public void testRemoveFutureMessages() throws Exception {
+        final long now = SystemClock.uptimeMillis();
+        send(1, now - 2);
+        send(2, now - 1);
+        send(3, now + 60 * 1000);
+        send(4, now + 120 * 1000);
+        mQueue.quit(true /* safe */);
+        assertQueue(1, 2);
+        assertFalse(mQueue.hasMessages(mHandler, 3, null));
+    }
+
+    @SmallTest
+    public void testRemoveBarrierAtTailThenAppend() throws Exception {
+        send(1, 0);
+        final int token = mQueue.postSyncBarrier();
+        assertQueue(1, -1);
+        mQueue.removeSyncBarrier(token);
+        assertQueue(1);
+
+        send(2, mNow + 2);
+        assertQueue(1, 2);
+    }
+
+    @SmallTest
+    public void testInsertBehindQueuedDelayedMessages() throws Exception {
+        send(9, mNow + 1000);
+        send(1, mNow);
+        send(2, mNow);
+        send(3, mNow);
+        assertQueue(1, 2, 3, 9);
+
+        // Removing the message inserted last must not leave the queue pointing at it.
+        mQueue.removeMessages(mHandler, 3, null);
+        send(4, mNow);
+        send(0, mNow - 1);
+        send(5, mNow);
+        assertQueue(0, 1, 2, 4, 5, 9);
+    }
+
+    @SmallTest
+    public void testHasAndRemoveMessagesOfOtherHandlers() throws Exception {
+        final Handler other = new Handler(Looper.getMainLooper());
+        send(1, mNow + 1);
+        assertTrue(mQueue.enqueueMessage(other.obtainMessage(1), mNow + 2));
+        send(2, mNow + 3);
+        assertTrue(mQueue.hasMessages(other, 1, null));
+        assertFalse(mQueue.hasMessages(other, 2, null));
+
+        mQueue.removeMessages(other, 1, null);
+        assertFalse(mQueue.hasMessages(other));
+        assertTrue(mQueue.hasMessages(mHandler, 2, null));
+        assertQueue(1, 2);
+    }
 }
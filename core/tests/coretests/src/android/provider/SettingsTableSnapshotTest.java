@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SharedMemory;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link SettingsTableSnapshot}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SettingsTableSnapshotTest {
+    @Test
+    public void testLookup() throws Exception {
+        final String[] names = {"zeta", "alpha", "alphabet", "empty", "unset", "\ud800x"};
+        final String[] values = {"1", "two", "three", "", null, "\udc00"};
+        final SharedMemory memory = SettingsTableSnapshot.write(names, values, 42);
+
+        final SettingsTableSnapshot snapshot = SettingsTableSnapshot.map(memory);
+        assertNotNull(snapshot);
+        try {
+            assertEquals(42, snapshot.getGeneration());
+            for (int i = 0; i < names.length; i++) {
+                assertTrue(snapshot.contains(names[i]));
+                assertEquals(values[i], snapshot.getValue(names[i]));
+            }
+            assertFalse(snapshot.contains("alph"));
+            assertFalse(snapshot.contains("missing"));
+            assertNull(snapshot.getValue("missing"));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        final SettingsTableSnapshot snapshot = SettingsTableSnapshot.map(
+                SettingsTableSnapshot.write(new String[0], new String[0], 1));
+        assertNotNull(snapshot);
+        try {
+            assertFalse(snapshot.contains("anything"));
+        } finally {
+            snapshot.close();
+        }
+    }
+}
@@ -382,7 +382,11 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                Bundle result = packageValueForCallResult(setting, isTrackingGeneration(args));
+                if (isTrackingSnapshot(args)) {
+                    result = addGlobalTableSnapshot(result);
+                }
+                return result;
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
@@ -1897,6 +1901,20 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    private Bundle addGlobalTableSnapshot(Bundle result) {
+        // Instant apps only get access to individual whitelisted settings.
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return result;
+        }
+        Bundle snapshotResult = new Bundle(result);
+        synchronized (mLock) {
+            mSettingsRegistry.addTableSnapshotLocked(snapshotResult, SETTINGS_TYPE_GLOBAL,
+                    UserHandle.USER_SYSTEM);
+        }
+        return snapshotResult;
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -1907,6 +1925,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isTrackingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2128,6 +2150,8 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        private final TableSnapshotRegistry mTableSnapshotRegistry;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2137,6 +2161,7 @@ public class SettingsProvider extends ContentProvider {
         public SettingsRegistry() {
             mHandler = new MyHandler(getContext().getMainLooper());
             mGenerationRegistry = new GenerationRegistry(mLock);
+            mTableSnapshotRegistry = new TableSnapshotRegistry(mLock);
             mBackupManager = new BackupManager(getContext());
             migrateAllLegacySettingsIfNeeded();
             syncSsaidTableOnStart();
@@ -2276,6 +2301,12 @@ public class SettingsProvider extends ContentProvider {
             return users;
         }
 
+        public void addTableSnapshotLocked(Bundle bundle, int type, int userId) {
+            final int key = makeKey(type, userId);
+            mTableSnapshotRegistry.addSnapshotData(bundle, key,
+                    mGenerationRegistry.getGeneration(key), peekSettingsStateLocked(key));
+        }
+
         @Nullable
         public SettingsState getSettingsLocked(int type, int userId) {
             final int key = makeKey(type, userId);
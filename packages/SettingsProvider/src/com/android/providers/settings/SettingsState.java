@@ -27,6 +27,7 @@ import android.content.pm.PackageManagerInternal;
 import android.content.pm.Signature;
 import android.os.Binder;
 import android.os.Build;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -38,6 +39,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -57,6 +59,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -74,6 +81,12 @@ import java.util.Set;
  * for saving the state asynchronously to an XML file after a mutation and
  * loading the from an XML file on construction.
  * <p>
+ * To avoid rewriting the whole XML file for every small batch of changes,
+ * mutations are appended to a binary journal next to the XML snapshot. The
+ * journal is folded back into a new snapshot once it grows larger than the
+ * table itself, and replayed on top of the snapshot when loading.
+ * </p>
+ * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
  * etc, are atomically persisted since the asynchronous persistence is using
@@ -106,6 +119,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_GENERATION = "journalGeneration";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -138,6 +152,17 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x534a524e; // "SJRN"
+    private static final byte JOURNAL_RECORD_PUT = 1;
+    private static final byte JOURNAL_RECORD_DELETE = 2;
+
+    /**
+     * The journal is compacted into a new XML snapshot once it holds more records
+     * than this or than the number of settings in the table, whichever is larger.
+     */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 128;
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -170,6 +195,24 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final String mStatePersistTag;
 
+    @GuardedBy("mLock")
+    private final File mJournalFile;
+
+    // Names of settings changed since the last write, persisted as journal records.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mJournalPendingNames = new ArraySet<>();
+
+    // Whether the next write has to be a full XML snapshot rather than a journal append.
+    @GuardedBy("mLock")
+    private boolean mSnapshotRequired;
+
+    // Generation of the current XML snapshot; only a journal with the same generation applies.
+    @GuardedBy("mWriteLock")
+    private long mJournalGeneration;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalRecordCount;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -255,6 +298,7 @@ final class SettingsState {
         mLock = lock;
         mStatePersistFile = file;
         mStatePersistTag = "settings-" + getTypeFromKey(key) + "-" + getUserIdFromKey(key);
+        mJournalFile = getJournalFile(file);
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -288,6 +332,7 @@ final class SettingsState {
             return;
         }
         mVersion = version;
+        mSnapshotRequired = true;
 
         scheduleWriteIfNeededLocked();
     }
@@ -307,6 +352,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mJournalPendingNames.add(name);
                 removedSomething = true;
             }
         }
@@ -359,6 +405,7 @@ final class SettingsState {
                     oldSetting.getPackageName(), oldSetting.getTag(), false,
                     oldSetting.getId());
             mSettings.put(name, newSetting);
+            mJournalPendingNames.add(name);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
             scheduleWriteIfNeededLocked();
@@ -386,6 +433,7 @@ final class SettingsState {
             newState = new Setting(name, value, makeDefault, packageName, tag);
             mSettings.put(name, newState);
         }
+        mJournalPendingNames.add(name);
 
         StatsLog.write(StatsLog.SETTING_CHANGED, name, value, newState.value, oldValue, tag,
             makeDefault, getUserIdFromKey(mKey), StatsLog.SETTING_CHANGED__REASON__UPDATED);
@@ -413,6 +461,7 @@ final class SettingsState {
         }
 
         Setting oldState = mSettings.remove(name);
+        mJournalPendingNames.add(name);
 
         StatsLog.write(StatsLog.SETTING_CHANGED, name, /* value= */ "", /* newValue= */ "",
             oldState.value, /* tag */ "", false, getUserIdFromKey(mKey),
@@ -443,6 +492,7 @@ final class SettingsState {
         if (!setting.reset()) {
             return false;
         }
+        mJournalPendingNames.add(name);
 
         String newValue = setting.getValue();
         String newDefaultValue = setting.getDefaultValue();
@@ -633,75 +683,216 @@ final class SettingsState {
         boolean wroteState = false;
         final int version;
         final ArrayMap<String, Setting> settings;
+        final ArrayMap<String, Setting> changes;
+        final boolean snapshotRequired;
 
         synchronized (mLock) {
             version = mVersion;
             settings = new ArrayMap<>(mSettings);
+            snapshotRequired = mSnapshotRequired;
+            // Settings are mutated in place, so copy the changed ones for the journal.
+            final int changeCount = mJournalPendingNames.size();
+            changes = new ArrayMap<>(changeCount);
+            for (int i = 0; i < changeCount; i++) {
+                final String name = mJournalPendingNames.valueAt(i);
+                final Setting setting = mSettings.get(name);
+                changes.put(name, setting != null ? new Setting(setting) : null);
+            }
+            mJournalPendingNames.clear();
+            mSnapshotRequired = false;
             mDirty = false;
             mWriteScheduled = false;
         }
 
+        boolean journaled = false;
         synchronized (mWriteLock) {
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+            if (!snapshotRequired && mJournalRecordCount + changes.size()
+                    <= Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION, settings.size())) {
+                journaled = true;
+                wroteState = appendJournalRecords(changes);
+            } else {
+                wroteState = writeSnapshot(version, settings);
             }
+        }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    if (setting.isTransient()) {
-                        if (DEBUG_PERSISTENCE) {
-                            Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
-                        }
-                        continue;
-                    }
+        if (wroteState) {
+            synchronized (mLock) {
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            }
+        } else {
+            synchronized (mLock) {
+                // Fall back to a full snapshot which also covers the dropped changes.
+                mSnapshotRequired = true;
+                if (journaled) {
+                    scheduleWriteIfNeededLocked();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends one record per changed setting to the journal and syncs it to disk.
+     * A {@code null} value in {@code changes} records a deletion.
+     */
+    @GuardedBy("mWriteLock")
+    private boolean appendJournalRecords(ArrayMap<String, Setting> changes) {
+        int recordCount = 0;
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            final Setting setting = changes.valueAt(i);
+            if (setting == null || !setting.isTransient()) {
+                recordCount++;
+            }
+        }
+        if (recordCount == 0) {
+            return true;
+        }
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[JOURNAL START] " + recordCount + " records");
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            if (mJournalRecordCount == 0) {
+                data.writeInt(JOURNAL_MAGIC);
+                data.writeLong(mJournalGeneration);
+            }
+            final int changeCount = changes.size();
+            for (int i = 0; i < changeCount; i++) {
+                final Setting setting = changes.valueAt(i);
+                if (setting == null) {
+                    data.writeByte(JOURNAL_RECORD_DELETE);
+                    writeJournalString(data, changes.keyAt(i));
+                } else if (setting.isTransient()) {
+                    continue;
+                } else {
+                    data.writeByte(JOURNAL_RECORD_PUT);
+                    writeJournalString(data, setting.getId());
+                    writeJournalString(data, setting.getName());
+                    writeJournalString(data, setting.getValue());
+                    writeJournalString(data, setting.getDefaultValue());
+                    writeJournalString(data, setting.getPackageName());
+                    writeJournalString(data, setting.getTag());
+                    data.writeBoolean(setting.isDefaultFromSystem());
+                }
+            }
+            data.flush();
+        } catch (IOException e) {
+            // Writing to memory cannot fail.
+            throw new IllegalStateException(e);
+        }
+
+        // A new journal overwrites whatever an older generation left behind.
+        try (FileOutputStream out = new FileOutputStream(mJournalFile,
+                mJournalRecordCount != 0)) {
+            bytes.writeTo(out);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Failed to append to settings journal " + mJournalFile, e);
+            return false;
+        }
+        mJournalRecordCount += recordCount;
 
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[JOURNAL END] " + bytes.size() + " bytes");
+        }
+        return true;
+    }
 
+    @GuardedBy("mWriteLock")
+    private boolean writeSnapshot(int version, ArrayMap<String, Setting> settings) {
+        boolean wroteState = false;
+        final long generation = mJournalGeneration + 1;
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
+
+        AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+
+            XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                    true);
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_SETTINGS);
+            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+            serializer.attribute(null, ATTR_JOURNAL_GENERATION, String.valueOf(generation));
+
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                Setting setting = settings.valueAt(i);
+
+                if (setting.isTransient()) {
                     if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
+                        Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
                     }
+                    continue;
                 }
 
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
-                destination.finishWrite(out);
-
-                wroteState = true;
+                writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
+                        setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                        setting.getTag(), setting.isDefaultFromSystem());
 
                 if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
+                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                            + setting.getValue());
                 }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
             }
-        }
 
-        if (wroteState) {
-            synchronized (mLock) {
-                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            serializer.endTag(null, TAG_SETTINGS);
+            serializer.endDocument();
+            destination.finishWrite(out);
+
+            // The journal belongs to the previous generation and is now folded in.
+            mJournalGeneration = generation;
+            mJournalRecordCount = 0;
+            mJournalFile.delete();
+
+            wroteState = true;
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
             }
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            destination.failWrite(out);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        return wroteState;
+    }
+
+    private static void writeJournalString(DataOutputStream out, String value)
+            throws IOException {
+        // Written as raw UTF-16 so unpaired surrogates round-trip like the XML encoding.
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
         }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the journal file that accompanies the XML snapshot {@code stateFile}.
+     */
+    static File getJournalFile(File stateFile) {
+        return new File(stateFile.getPath() + JOURNAL_FILE_SUFFIX);
     }
 
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
@@ -778,6 +969,8 @@ final class SettingsState {
         } catch (FileNotFoundException fnfe) {
             Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+            mJournalFile.delete();
+            mSnapshotRequired = true;
             return;
         }
         try {
@@ -791,6 +984,58 @@ final class SettingsState {
         } finally {
             IoUtils.closeQuietly(in);
         }
+        replayJournalLocked();
+    }
+
+    /**
+     * Applies the journal records written since the loaded snapshot. A journal left
+     * over from an older snapshot generation has already been folded in and is ignored.
+     */
+    private void replayJournalLocked() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        int recordCount = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mJournalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != mJournalGeneration) {
+                Slog.i(LOG_TAG, "Ignoring stale settings journal " + mJournalFile);
+                mJournalFile.delete();
+                return;
+            }
+            while (true) {
+                final int record = in.read();
+                if (record == -1) {
+                    break;
+                } else if (record == JOURNAL_RECORD_PUT) {
+                    final String id = readJournalString(in);
+                    final String name = readJournalString(in);
+                    final String value = readJournalString(in);
+                    final String defaultValue = readJournalString(in);
+                    final String packageName = readJournalString(in);
+                    final String tag = readJournalString(in);
+                    final boolean fromSystem = in.readBoolean();
+                    mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                            fromSystem, id));
+                } else if (record == JOURNAL_RECORD_DELETE) {
+                    mSettings.remove(readJournalString(in));
+                } else {
+                    throw new IOException("Unknown journal record " + record);
+                }
+                recordCount++;
+            }
+        } catch (EOFException e) {
+            // A crash in the middle of an append leaves a partial last record behind.
+            Slog.w(LOG_TAG, "Truncated settings journal " + mJournalFile);
+        } catch (IOException e) {
+            Slog.wtf(LOG_TAG, "Failed reading settings journal " + mJournalFile, e);
+        }
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[REPLAYED] " + recordCount + " journal records");
+        }
+        // Fold the journal into a snapshot on the next write so appends never follow a
+        // damaged tail.
+        mSnapshotRequired = true;
     }
 
     /**
@@ -824,6 +1069,10 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
+        final String generation = parser.getAttributeValue(null, ATTR_JOURNAL_GENERATION);
+        synchronized (mWriteLock) {
+            mJournalGeneration = (generation != null) ? Long.parseLong(generation) : 0;
+        }
 
         final int outerDepth = parser.getDepth();
         int type;
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.provider.Settings;
+import android.provider.SettingsTableSnapshot;
+import android.system.ErrnoException;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.List;
+
+/**
+ * This class keeps one read-only shared memory snapshot per settings table,
+ * stamped with the table generation from {@link GenerationRegistry}. Snapshots
+ * are rebuilt lazily the first time a client asks for one after the generation
+ * moved on, so a burst of changes costs a single rebuild.
+ */
+final class TableSnapshotRegistry {
+    private static final String LOG_TAG = "TableSnapshotRegistry";
+
+    private static final boolean DEBUG = false;
+
+    private final Object mLock;
+
+    @GuardedBy("mLock")
+    private final SparseArray<SharedMemory> mSnapshots = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseIntArray mSnapshotGenerations = new SparseIntArray();
+
+    public TableSnapshotRegistry(Object lock) {
+        mLock = lock;
+    }
+
+    public void addSnapshotData(Bundle bundle, int key, int generation,
+            SettingsState settingsState) {
+        synchronized (mLock) {
+            if (generation < 0 || settingsState == null) {
+                return;
+            }
+            SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot == null || mSnapshotGenerations.get(key, -1) != generation) {
+                snapshot = buildSnapshotLocked(generation, settingsState);
+                if (snapshot == null) {
+                    return;
+                }
+                // The previous snapshot may still be in flight in a reply parcel, so
+                // its descriptor is left for the garbage collector to close.
+                mSnapshots.put(key, snapshot);
+                mSnapshotGenerations.put(key, generation);
+                if (DEBUG) {
+                    Slog.i(LOG_TAG, "Rebuilt snapshot for key:"
+                            + SettingsProvider.keyToString(key) + " generation:" + generation);
+                }
+            }
+            bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY, snapshot);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private static SharedMemory buildSnapshotLocked(int generation,
+            SettingsState settingsState) {
+        final List<String> names = settingsState.getSettingNamesLocked();
+        final int count = names.size();
+        final String[] nameArray = new String[count];
+        final String[] valueArray = new String[count];
+        for (int i = 0; i < count; i++) {
+            nameArray[i] = names.get(i);
+            valueArray[i] = settingsState.getSettingLocked(nameArray[i]).getValue();
+        }
+        try {
+            return SettingsTableSnapshot.write(nameArray, valueArray, generation);
+        } catch (ErrnoException e) {
+            Slog.e(LOG_TAG, "Error creating settings snapshot", e);
+            return null;
+        }
+    }
+}
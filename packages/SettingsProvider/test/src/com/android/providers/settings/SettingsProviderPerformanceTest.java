@@ -19,11 +19,15 @@ package com.android.providers.settings;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
+import android.os.Looper;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
 import android.util.Log;
 import org.junit.Test;
 
+import java.io.File;
+
 /**
 * Performance tests for the SettingContentProvider.
 */
@@ -36,6 +40,8 @@ public class SettingsProviderPerformanceTest extends BaseSettingsProviderTest {
 
     private static final long MAX_AVERAGE_SET_AND_GET_SETTING_DURATION_MILLIS = 20;
 
+    private static final int LARGE_TABLE_SETTING_COUNT = 5000;
+
     @Test
     public void testSetAndGetPerformanceForGlobalViaFrontEndApi() throws Exception {
         // Start with a clean slate.
@@ -124,4 +130,62 @@ public class SettingsProviderPerformanceTest extends BaseSettingsProviderTest {
         assertTrue("Setting and getting a settings takes too long.", averageTimePerIterationMillis
                 < MAX_AVERAGE_SET_AND_GET_SETTING_DURATION_MILLIS);
     }
+
+    @Test
+    public void testJournalWriteAmplificationAndLoadTime() throws Exception {
+        final File file = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "settings_perf.xml");
+        final File journalFile = SettingsState.getJournalFile(file);
+        file.delete();
+        journalFile.delete();
+        final Object lock = new Object();
+
+        try {
+            final SettingsState settingsState = new SettingsState(
+                    InstrumentationRegistry.getContext(), lock, file, 1,
+                    SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+            synchronized (lock) {
+                settingsState.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+                for (int i = 0; i < LARGE_TABLE_SETTING_COUNT; i++) {
+                    settingsState.insertSettingLocked(FAKE_SETTING_NAME + i,
+                            FAKE_SETTING_VALUE + i, null, false, "p" + (i % 50));
+                }
+                settingsState.persistSyncLocked();
+            }
+            final long snapshotBytes = file.length();
+
+            // Each small batch of changes should only append to the journal.
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                synchronized (lock) {
+                    settingsState.insertSettingLocked(FAKE_SETTING_NAME + i,
+                            FAKE_SETTING_VALUE_1, null, false, "p" + (i % 50));
+                    settingsState.persistSyncLocked();
+                }
+            }
+            final long journalBytes = journalFile.length();
+            final float bytesPerUpdate = (float) journalBytes / ITERATION_COUNT;
+
+            Log.i(LOG_TAG, "Snapshot of " + LARGE_TABLE_SETTING_COUNT + " settings: "
+                    + snapshotBytes + " bytes, journal bytes per update: " + bytesPerUpdate);
+            assertTrue("Journal writes should be much smaller than a full snapshot",
+                    bytesPerUpdate * 100 < snapshotBytes);
+
+            final long startTimeMicro = SystemClock.currentTimeMicro();
+            final SettingsState reader = new SettingsState(InstrumentationRegistry.getContext(),
+                    lock, file, 1, SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED,
+                    Looper.getMainLooper());
+            final long loadTimeMillis = (SystemClock.currentTimeMicro() - startTimeMicro)
+                    / MICRO_SECONDS_IN_MILLISECOND;
+
+            Log.i(LOG_TAG, "Time to load " + LARGE_TABLE_SETTING_COUNT
+                    + " settings with journal replay: " + loadTimeMillis + " ms");
+            synchronized (lock) {
+                assertEquals(FAKE_SETTING_VALUE_1,
+                        reader.getSettingLocked(FAKE_SETTING_NAME + 0).getValue());
+            }
+        } finally {
+            file.delete();
+            journalFile.delete();
+        }
+    }
 }
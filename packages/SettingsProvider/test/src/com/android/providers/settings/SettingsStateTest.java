@@ -182,4 +182,55 @@ public class SettingsStateTest extends AndroidTestCase {
             assertEquals("p2", s.getPackageName());
         }
     }
+
+    /**
+     * Make sure changes appended to the journal are replayed on top of the snapshot.
+     */
+    public void testJournalReadWrite() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journalFile = SettingsState.getJournalFile(file);
+        file.delete();
+        journalFile.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+        assertFalse(journalFile.exists());
+
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", null, null, false, "p3");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(journalFile.exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertFalse(ssReader.getSettingLocked("k3").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+
+            // The next write folds the replayed journal into a new snapshot.
+            ssReader.insertSettingLocked("k4", "v4", null, false, "p4");
+            ssReader.persistSyncLocked();
+        }
+        assertFalse(journalFile.exists());
+
+        final SettingsState ssCompacted = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssCompacted.getSettingLocked("k1").getValue());
+            assertTrue(ssCompacted.getSettingLocked("k2").isNull());
+            assertEquals("v4", ssCompacted.getSettingLocked("k4").getValue());
+        }
+    }
 }
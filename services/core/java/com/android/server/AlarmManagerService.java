@@ -247,11 +247,13 @@ public class AlarmManagerService extends SystemService {
     interface Stats {
         int REBATCH_ALL_ALARMS = 0;
         int REORDER_ALARMS_FOR_STANDBY = 1;
+        int REBATCH_AFTER_REMOVAL = 2;
     }
 
     private final StatLogger mStatLogger = new StatLogger(new String[] {
             "REBATCH_ALL_ALARMS",
             "REORDER_ALARMS_FOR_STANDBY",
+            "REBATCH_AFTER_REMOVAL",
     });
 
     /**
@@ -515,6 +517,7 @@ public class AlarmManagerService extends SystemService {
             if (seed.operation == mTimeTickSender) {
                 mLastTickAdded = System.currentTimeMillis();
             }
+            noteBatchSpanLocked(start, end);
         }
 
         int size() {
@@ -594,6 +597,9 @@ public class AlarmManagerService extends SystemService {
                 start = newStart;
                 end = newEnd;
                 flags = newFlags;
+                if (alarms.size() > 0) {
+                    noteBatchSpanLocked(start, end);
+                }
             }
             return didRemove;
         }
@@ -731,6 +737,15 @@ public class AlarmManagerService extends SystemService {
     static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
     final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
 
+    // Upper bound of end - start over the batches, so that coalescing only has to look at
+    // batches starting that long before an alarm. Only reset when rebatching all alarms.
+    long mMaxBatchSpan;
+
+    // Batches that still have alarms after the last removeFromBatchesLocked(), and whether it
+    // removed an alarm that affects device idle. See rebatchAfterRemovalLocked().
+    final ArraySet<Batch> mRemovalChangedBatches = new ArraySet<>();
+    boolean mRemovedIdleAlarm;
+
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
     Alarm mPendingIdleUntil = null;
@@ -797,15 +812,108 @@ public class AlarmManagerService extends SystemService {
 
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        // A batch that starts more than mMaxBatchSpan before whenElapsed has ended before it,
+        // so skip straight past those. Any batch starting at or after whenElapsed is still open,
+        // so the scan stops at the first of them, or as soon as batches start after maxWhen.
+        long minStart = whenElapsed - mMaxBatchSpan;
+        if (minStart > whenElapsed) {
+            minStart = Long.MIN_VALUE;
+        }
         final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
+        for (int i = firstBatchStartingAtOrAfterLocked(minStart); i < N; i++) {
             Batch b = mAlarmBatches.get(i);
+            if (b.start > maxWhen) {
+                break;
+            }
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
                 return i;
             }
         }
         return -1;
     }
+
+    // Binary search of the sorted batches for the first one that starts at or after whenElapsed.
+    private int firstBatchStartingAtOrAfterLocked(long whenElapsed) {
+        int low = 0;
+        int high = mAlarmBatches.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mAlarmBatches.get(mid).start < whenElapsed) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    void noteBatchSpanLocked(long start, long end) {
+        final long span = end - start;
+        mMaxBatchSpan = Math.max(mMaxBatchSpan, span >= 0 ? span : Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes the alarms matching {@code whichAlarms} from the scheduled batches. Batches left
+     * with other alarms stay in {@link #mAlarmBatches}, so every scheduled alarm can still be
+     * found there, and are noted to be batched again by {@link #rebatchAfterRemovalLocked}.
+     * Until then their bounds may be out of order with the other batches.
+     *
+     * @return whether any alarm was removed.
+     */
+    boolean removeFromBatchesLocked(Predicate<Alarm> whichAlarms) {
+        mRemovalChangedBatches.clear();
+        mRemovedIdleAlarm = false;
+        final Predicate<Alarm> predicate = (Alarm a) -> {
+            if (!whichAlarms.test(a)) {
+                return false;
+            }
+            if ((a.flags & (AlarmManager.FLAG_IDLE_UNTIL | AlarmManager.FLAG_WAKE_FROM_IDLE))
+                    != 0) {
+                mRemovedIdleAlarm = true;
+            }
+            return true;
+        };
+        boolean didRemove = false;
+        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+            Batch b = mAlarmBatches.get(i);
+            if (b.remove(predicate)) {
+                didRemove = true;
+                if (b.size() == 0) {
+                    mAlarmBatches.remove(i);
+                } else {
+                    mRemovalChangedBatches.add(b);
+                }
+            }
+        }
+        return didRemove;
+    }
+
+    /**
+     * Batches again the alarms left in the batches changed by {@link #removeFromBatchesLocked},
+     * whose windows may have widened enough to merge with others. The other batches are left
+     * alone, unless an idle until or wake from idle alarm was removed: that can move the idle
+     * until alarm, so then every alarm is rebatched.
+     */
+    void rebatchAfterRemovalLocked() {
+        final long start = mStatLogger.getTime();
+        final ArraySet<Batch> changedBatches = mRemovalChangedBatches;
+        if (mRemovedIdleAlarm) {
+            changedBatches.clear();
+            rebatchAllAlarmsLocked(true);
+            return;
+        }
+        mAlarmBatches.removeAll(changedBatches);
+        for (int i = 0; i < changedBatches.size(); i++) {
+            final Batch batch = changedBatches.valueAt(i);
+            for (int j = 0; j < batch.size(); j++) {
+                insertAndBatchAlarmLocked(batch.get(j));
+            }
+        }
+        changedBatches.clear();
+        rescheduleKernelAlarmsLocked();
+        updateNextAlarmClockLocked();
+        mStatLogger.logDurationStat(Stats.REBATCH_AFTER_REMOVAL, start);
+    }
     /** @return total count of the alarms in a set of alarm batches. */
     static int getAlarmCount(ArrayList<Batch> batches) {
         int ret = 0;
@@ -856,6 +964,7 @@ public class AlarmManagerService extends SystemService {
 
         ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
         mAlarmBatches.clear();
+        mMaxBatchSpan = 0;
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -2722,15 +2831,8 @@ public class AlarmManagerService extends SystemService {
             return;
         }
 
-        boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final boolean didRemove = removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
                 // Don't set didRemove, since this doesn't impact the scheduled alarms.
@@ -2761,7 +2863,7 @@ public class AlarmManagerService extends SystemService {
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked();
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2774,15 +2876,8 @@ public class AlarmManagerService extends SystemService {
             Slog.wtf(TAG, "removeLocked: Shouldn't for UID=" + uid);
             return;
         }
-        boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.uid == uid;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final boolean didRemove = removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -2805,7 +2900,7 @@ public class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(uid) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2820,16 +2915,9 @@ public class AlarmManagerService extends SystemService {
             return;
         }
 
-        boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(packageName);
         final boolean oldHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final boolean didRemove = removeFromBatchesLocked(whichAlarms);
         final boolean newHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
         if (oldHasTick != newHasTick) {
             Slog.wtf(TAG, "removeLocked: hasTick changed from " + oldHasTick + " to " + newHasTick);
@@ -2857,7 +2945,7 @@ public class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2868,7 +2956,6 @@ public class AlarmManagerService extends SystemService {
             Slog.wtf(TAG, "removeForStoppedLocked: Shouldn't for UID=" + uid);
             return;
         }
-        boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> {
             try {
                 if (a.uid == uid && ActivityManager.getService().isAppStartModeDisabled(
@@ -2878,13 +2965,7 @@ public class AlarmManagerService extends SystemService {
             } catch (RemoteException e) { /* fall through */}
             return false;
         };
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final boolean didRemove = removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
             if (a.uid == uid) {
@@ -2901,7 +2982,7 @@ public class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2912,16 +2993,9 @@ public class AlarmManagerService extends SystemService {
             Slog.wtf(TAG, "removeForStoppedLocked: Shouldn't for user=" + userHandle);
             return;
         }
-        boolean didRemove = false;
         final Predicate<Alarm> whichAlarms =
                 (Alarm a) -> UserHandle.getUserId(a.creatorUid) == userHandle;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
-        }
+        final boolean didRemove = removeFromBatchesLocked(whichAlarms);
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
                     == userHandle) {
@@ -2944,7 +3018,7 @@ public class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -17,6 +17,7 @@
 package com.android.server;
 
 import android.Manifest;
+import android.annotation.Nullable;
 import android.app.ActivityManager;
 import android.app.ActivityThread;
 import android.app.AppGlobals;
@@ -35,6 +36,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
@@ -71,12 +73,19 @@ import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
 
+import libcore.io.IoUtils;
 import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -94,6 +103,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static android.app.AppOpsManager._NUM_UID_STATE;
 import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
@@ -113,8 +123,16 @@ public class AppOpsService extends IAppOpsService.Stub {
      *  {@link #upgradeLocked(int)} below. The first version was 1 */
     private static final int CURRENT_VERSION = 1;
 
-    // Write at most every 30 minutes.
-    static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
+    // Append changes to the journal at most every minute.
+    static final long JOURNAL_DELAY = DEBUG ? 1000 : 60*1000;
+
+    // Fold the journal back into the state file once it is larger than this.
+    static final long MAX_JOURNAL_SIZE = 64*1024;
+
+    // Record types in the journal, see writeJournal().
+    private static final int JOURNAL_OP = 1;
+    private static final int JOURNAL_REMOVE_OP = 2;
+    private static final int JOURNAL_UID_MODES = 3;
 
     // Constant meaning that any UID should be matched when dispatching callbacks
     private static final int UID_ANY = -2;
@@ -172,6 +190,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     Context mContext;
     final AtomicFile mFile;
+    @VisibleForTesting
+    final File mJournalFile;
     final Handler mHandler;
 
     private final AppOpsManagerInternalImpl mAppOpsManagerInternal
@@ -195,9 +215,42 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    // Ops and uid modes changed since they were last written to the journal or state file.
+    // An op is in mJournalOps at most once, see Op.inJournal.
+    final ArrayList<Op> mJournalOps = new ArrayList<>();
+    final SparseBooleanArray mJournalUidModes = new SparseBooleanArray();
+    // Bytes in the journal; guarded by mFile.
+    long mJournalSize;
+    boolean mJournalWriteScheduled;
+    final Runnable mJournalRunner = new Runnable() {
+        public void run() {
+            synchronized (AppOpsService.this) {
+                mJournalWriteScheduled = false;
+                AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+                    @Override protected Void doInBackground(Void... params) {
+                        writeJournal();
+                        return null;
+                    }
+                };
+                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[])null);
+            }
+        }
+    };
+
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /**
+     * Results of checkOperation, so that checking an op again doesn't take the service lock.
+     * Entries are immutable and only used while mModeGeneration is the one they were computed
+     * at; everything that can change the result of checkOperation calls
+     * invalidateCheckCacheLocked().
+     */
+    private static final int CHECK_CACHE_SIZE = 256;
+    private final AtomicReferenceArray<CheckCacheEntry> mCheckCache =
+            new AtomicReferenceArray<>(CHECK_CACHE_SIZE);
+    private volatile int mModeGeneration;
+
     long mLastUptime;
 
     /*
@@ -408,6 +461,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         long rejectTime[] = new long[_NUM_UID_STATE];
         int startNesting;
         long startRealtime;
+        // Whether the op is in mJournalOps.
+        boolean inJournal;
 
         Op(UidState _uidState, String _packageName, int _op) {
             uidState = _uidState;
@@ -576,6 +631,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mJournalFile = new File(storagePath.getParentFile(), storagePath.getName() + ".journal");
         mHandler = handler;
         mConstants = new Constants(mHandler);
         readState();
@@ -591,6 +647,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         mConstants.startMonitoring(mContext.getContentResolver());
 
         synchronized (this) {
+            invalidateCheckCacheLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -685,6 +742,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void packageRemoved(int uid, String packageName) {
         synchronized (this) {
+            invalidateCheckCacheLocked();
             UidState uidState = mUidStates.get(uid);
             if (uidState == null) {
                 return;
@@ -741,6 +799,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void uidRemoved(int uid) {
         synchronized (this) {
+            invalidateCheckCacheLocked();
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
                 scheduleFastWriteLocked();
@@ -794,14 +853,20 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void shutdown() {
         Slog.w(TAG, "Writing app ops before shutdown...");
         boolean doWrite = false;
+        boolean doJournal = false;
         synchronized (this) {
             if (mWriteScheduled) {
                 mWriteScheduled = false;
                 doWrite = true;
+            } else if (mJournalWriteScheduled) {
+                mJournalWriteScheduled = false;
+                doJournal = true;
             }
         }
         if (doWrite) {
             writeState();
+        } else if (doJournal) {
+            writeJournal();
         }
     }
 
@@ -990,6 +1055,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         code = AppOpsManager.opToSwitch(code);
 
         synchronized (this) {
+            invalidateCheckCacheLocked();
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
 
             UidState uidState = getUidStateLocked(uid, false);
@@ -1001,12 +1067,12 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
-                scheduleWriteLocked();
+                scheduleJournalUidModesLocked(uid);
             } else if (uidState.opModes == null) {
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
-                    scheduleWriteLocked();
+                    scheduleJournalUidModesLocked(uid);
                 }
             } else {
                 if (uidState.opModes.get(code) == mode) {
@@ -1020,7 +1086,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
-                scheduleWriteLocked();
+                scheduleJournalUidModesLocked(uid);
             }
         }
 
@@ -1093,6 +1159,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         ArraySet<ModeCallback> repCbs = null;
         code = AppOpsManager.opToSwitch(code);
         synchronized (this) {
+            invalidateCheckCacheLocked();
             UidState uidState = getUidStateLocked(uid, false);
             Op op = getOpLocked(code, uid, packageName, true);
             if (op != null) {
@@ -1191,6 +1258,23 @@ public class AppOpsService extends IAppOpsService.Stub {
         return callbacks;
     }
 
+    /** A result of checkOperation, see mCheckCache. */
+    private static final class CheckCacheEntry {
+        final int generation;
+        final int code;
+        final int uid;
+        final String packageName;
+        final int mode;
+
+        CheckCacheEntry(int generation, int code, int uid, String packageName, int mode) {
+            this.generation = generation;
+            this.code = code;
+            this.uid = uid;
+            this.packageName = packageName;
+            this.mode = mode;
+        }
+    }
+
     static final class ChangeRec {
         final int op;
         final int uid;
@@ -1224,6 +1308,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
+            invalidateCheckCacheLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1419,22 +1504,48 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final int cacheIndex = (31 * (31 * uid + code) + resolvedPackageName.hashCode())
+                & (CHECK_CACHE_SIZE - 1);
+        final CheckCacheEntry cached = mCheckCache.get(cacheIndex);
+        if (cached != null && cached.generation == mModeGeneration && cached.code == code
+                && cached.uid == uid && cached.packageName.equals(resolvedPackageName)) {
+            return cached.mode;
+        }
         synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
-            }
-            return op.mode;
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            mCheckCache.set(cacheIndex, new CheckCacheEntry(mModeGeneration, code, uid,
+                    resolvedPackageName, mode));
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String resolvedPackageName) {
+        if (isOpRestrictedLocked(uid, code, resolvedPackageName, null)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        final int uidModeIndex = uidState.opModes != null
+                ? uidState.opModes.indexOfKey(code) : -1;
+        if (uidModeIndex >= 0) {
+            return uidState.opModes.valueAt(uidModeIndex);
+        }
+        // Same as getOpLocked(), without looking up the uid state again.
+        final Ops ops = uidState.pkgOps != null
+                ? uidState.pkgOps.get(resolvedPackageName) : null;
+        final Op op = ops != null ? ops.get(code) : null;
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
         }
+        return op.mode;
+    }
+
+    /** Called with the lock held by everything that changes modes, restrictions or packages. */
+    private void invalidateCheckCacheLocked() {
+        mModeGeneration++;
     }
 
     @Override
@@ -1564,6 +1675,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private int noteOperationUnchecked(int code, int uid, String packageName,
             int proxyUid, String proxyPackageName) {
+        // Read the clock before taking the lock to keep it as short as possible.
+        final long now = System.currentTimeMillis();
         synchronized (this) {
             final Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
                     false /* uidMismatchExpected */);
@@ -1573,7 +1686,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return AppOpsManager.MODE_ERRORED;
             }
             final Op op = getOpLocked(ops, code, true);
-            if (isOpRestrictedLocked(uid, code, packageName)) {
+            if (isOpRestrictedLocked(uid, code, packageName, ops)) {
                 return AppOpsManager.MODE_IGNORED;
             }
             if( code == AppOpsManager.OP_RUN_ANY_IN_BACKGROUND || code == AppOpsManager.OP_RUN_IN_BACKGROUND ) {
@@ -1589,13 +1702,15 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int switchCode = AppOpsManager.opToSwitch(code);
             // If there is a non-default per UID policy (we set UID op mode only if
             // non-default) it takes over, otherwise use the per package policy.
-            if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
-                final int uidMode = uidState.evalMode(uidState.opModes.get(switchCode));
+            final int uidModeIndex = uidState.opModes != null
+                    ? uidState.opModes.indexOfKey(switchCode) : -1;
+            if (uidModeIndex >= 0) {
+                final int uidMode = uidState.evalMode(uidState.opModes.valueAt(uidModeIndex));
                 if (uidMode != AppOpsManager.MODE_ALLOWED) {
                     if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode + " for code "
                             + switchCode + " (" + code + ") uid " + uid + " package "
                             + packageName);
-                    op.rejectTime[uidState.state] = System.currentTimeMillis();
+                    op.rejectTime[uidState.state] = now;
                     return uidMode;
                 }
             } else {
@@ -1605,13 +1720,13 @@ public class AppOpsService extends IAppOpsService.Stub {
                     if (DEBUG) Slog.d(TAG, "noteOperation: reject #" + mode + " for code "
                             + switchCode + " (" + code + ") uid " + uid + " package "
                             + packageName);
-                    op.rejectTime[uidState.state] = System.currentTimeMillis();
+                    op.rejectTime[uidState.state] = now;
                     return mode;
                 }
             }
             if (DEBUG) Slog.d(TAG, "noteOperation: allowing code " + code + " uid " + uid
                     + " package " + packageName);
-            op.time[uidState.state] = System.currentTimeMillis();
+            op.time[uidState.state] = now;
             op.rejectTime[uidState.state] = 0;
             op.proxyUid = proxyUid;
             op.proxyPackageName = proxyPackageName;
@@ -1689,7 +1804,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return AppOpsManager.MODE_ERRORED;
             }
             final Op op = getOpLocked(ops, code, true);
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+            if (isOpRestrictedLocked(uid, code, resolvedPackageName, ops)) {
                 return AppOpsManager.MODE_IGNORED;
             }
             final int switchCode = AppOpsManager.opToSwitch(code);
@@ -1841,6 +1956,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op.startNesting == 1 || finishNested) {
                 op.duration = (int)(SystemClock.elapsedRealtime() - op.startRealtime);
                 op.time[op.uidState.state] = System.currentTimeMillis();
+                scheduleJournalOpLocked(op);
             } else {
                 Slog.w(TAG, "Finishing op nesting under-run: uid " + op.uid + " pkg "
                         + op.packageName + " code " + op.op + " time=" + op.time
@@ -2002,10 +2118,31 @@ public class AppOpsService extends IAppOpsService.Stub {
         return ops;
     }
 
-    private void scheduleWriteLocked() {
-        if (!mWriteScheduled) {
-            mWriteScheduled = true;
-            mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
+    private void scheduleJournalOpLocked(Op op) {
+        // Noting an op that is already waiting to be journaled costs nothing more.
+        if (!op.inJournal) {
+            op.inJournal = true;
+            mJournalOps.add(op);
+            scheduleJournalWriteLocked();
+        }
+    }
+
+    private void clearJournalOpsLocked() {
+        for (int i = mJournalOps.size() - 1; i >= 0; i--) {
+            mJournalOps.get(i).inJournal = false;
+        }
+        mJournalOps.clear();
+    }
+
+    private void scheduleJournalUidModesLocked(int uid) {
+        mJournalUidModes.put(uid, true);
+        scheduleJournalWriteLocked();
+    }
+
+    private void scheduleJournalWriteLocked() {
+        if (!mJournalWriteScheduled && !mWriteScheduled) {
+            mJournalWriteScheduled = true;
+            mHandler.postDelayed(mJournalRunner, JOURNAL_DELAY);
         }
     }
 
@@ -2037,12 +2174,17 @@ public class AppOpsService extends IAppOpsService.Stub {
             ops.put(code, op);
         }
         if (edit) {
-            scheduleWriteLocked();
+            scheduleJournalOpLocked(op);
         }
         return op;
     }
 
-    private boolean isOpRestrictedLocked(int uid, int code, String packageName) {
+    /**
+     * @param ops the ops of the package if the caller already has them, otherwise they are
+     *            only looked up when a restriction applies
+     */
+    private boolean isOpRestrictedLocked(int uid, int code, String packageName,
+            @Nullable Ops ops) {
         int userHandle = UserHandle.getUserId(uid);
         final int restrictionSetCount = mOpUserRestrictions.size();
 
@@ -2053,12 +2195,12 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (restrictionState.hasRestriction(code, packageName, userHandle)) {
                 if (AppOpsManager.opAllowSystemBypassRestriction(code)) {
                     // If we are the system, bypass user restrictions for certain codes
-                    synchronized (this) {
-                        Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
+                    if (ops == null) {
+                        ops = getOpsRawLocked(uid, packageName, true /* edit */,
                                 false /* uidMismatchExpected */);
-                        if ((ops != null) && ops.isPrivileged) {
-                            return false;
-                        }
+                    }
+                    if ((ops != null) && ops.isPrivileged) {
+                        return false;
                     }
                 }
                 return true;
@@ -2072,10 +2214,14 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (mFile) {
             synchronized (this) {
                 FileInputStream stream;
+                invalidateCheckCacheLocked();
+                clearJournalOpsLocked();
+                mJournalUidModes.clear();
                 try {
                     stream = mFile.openRead();
                 } catch (FileNotFoundException e) {
                     Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+                    readJournalLocked();
                     return;
                 }
                 boolean success = false;
@@ -2138,13 +2284,227 @@ public class AppOpsService extends IAppOpsService.Stub {
                     } catch (IOException e) {
                     }
                 }
+                readJournalLocked();
             }
         }
         synchronized (this) {
+            invalidateCheckCacheLocked();
             upgradeLocked(oldVersion);
         }
     }
 
+    /**
+     * Replays the changes appended to the journal since the state file was written.
+     */
+    private void readJournalLocked() {
+        mJournalSize = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            while (true) {
+                final int length = in.readInt();
+                if (length < 0) {
+                    Slog.w(TAG, "Bad record length " + length + " in " + mJournalFile);
+                    break;
+                }
+                final byte[] records = new byte[length];
+                in.readFully(records);
+                readJournalRecordsLocked(records);
+                mJournalSize += 4 + length;
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing changed since the state file was written.
+        } catch (EOFException e) {
+            // End of the journal, possibly in the middle of a torn write.
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading " + mJournalFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void readJournalRecordsLocked(byte[] records) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final int type = in.readByte();
+            switch (type) {
+                case JOURNAL_OP: {
+                    final int uid = in.readInt();
+                    final String pkgName = in.readUTF();
+                    final boolean isPrivileged = in.readBoolean();
+                    final UidState uidState = getUidStateLocked(uid, true);
+                    if (uidState.pkgOps == null) {
+                        uidState.pkgOps = new ArrayMap<>();
+                    }
+                    Ops ops = uidState.pkgOps.get(pkgName);
+                    if (ops == null) {
+                        ops = new Ops(pkgName, uidState, isPrivileged);
+                        uidState.pkgOps.put(pkgName, ops);
+                    }
+                    final Op op = new Op(uidState, pkgName, in.readInt());
+                    op.mode = in.readInt();
+                    op.duration = in.readInt();
+                    op.proxyUid = in.readInt();
+                    if (in.readBoolean()) {
+                        op.proxyPackageName = in.readUTF();
+                    }
+                    final int stateCount = in.readInt();
+                    for (int k = 0; k < stateCount; k++) {
+                        final long time = in.readLong();
+                        final long rejectTime = in.readLong();
+                        if (k < _NUM_UID_STATE) {
+                            op.time[k] = time;
+                            op.rejectTime[k] = rejectTime;
+                        }
+                    }
+                    ops.put(op.op, op);
+                    uidState.evalForegroundOps(mOpModeWatchers);
+                    break;
+                }
+                case JOURNAL_REMOVE_OP: {
+                    final int uid = in.readInt();
+                    final String pkgName = in.readUTF();
+                    final int code = in.readInt();
+                    final UidState uidState = mUidStates.get(uid);
+                    final Ops ops = uidState != null && uidState.pkgOps != null
+                            ? uidState.pkgOps.get(pkgName) : null;
+                    if (ops != null) {
+                        ops.remove(code);
+                        if (ops.size() <= 0) {
+                            uidState.pkgOps.remove(pkgName);
+                            if (uidState.pkgOps.isEmpty()) {
+                                uidState.pkgOps = null;
+                            }
+                            if (uidState.isDefault()) {
+                                mUidStates.remove(uid);
+                            }
+                        }
+                    }
+                    break;
+                }
+                case JOURNAL_UID_MODES: {
+                    final int uid = in.readInt();
+                    final int modeCount = in.readInt();
+                    SparseIntArray opModes = null;
+                    for (int j = 0; j < modeCount; j++) {
+                        if (opModes == null) {
+                            opModes = new SparseIntArray();
+                        }
+                        opModes.put(in.readInt(), in.readInt());
+                    }
+                    final UidState uidState = getUidStateLocked(uid, opModes != null);
+                    if (uidState != null) {
+                        uidState.opModes = opModes;
+                        if (uidState.isDefault()) {
+                            mUidStates.remove(uid);
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record " + type);
+            }
+        }
+    }
+
+    /**
+     * Appends the ops and uid modes changed since they were last written, rather than
+     * rewriting the whole state file. Each change carries the full state of the op or uid,
+     * so replaying them on top of an older state file is safe.
+     */
+    void writeJournal() {
+        synchronized (mFile) {
+            final byte[] records;
+            synchronized (this) {
+                if (mJournalOps.isEmpty() && mJournalUidModes.size() == 0) {
+                    return;
+                }
+                records = collectJournalRecordsLocked();
+            }
+            FileOutputStream stream = null;
+            try {
+                stream = new FileOutputStream(mJournalFile, true);
+                final DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(records.length);
+                out.write(records);
+                out.flush();
+                FileUtils.sync(stream);
+                mJournalSize += 4 + records.length;
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to write journal, writing state instead", e);
+                mJournalSize = Long.MAX_VALUE;
+            } finally {
+                IoUtils.closeQuietly(stream);
+            }
+            if (mJournalSize > MAX_JOURNAL_SIZE) {
+                synchronized (this) {
+                    scheduleFastWriteLocked();
+                }
+            }
+        }
+    }
+
+    private byte[] collectJournalRecordsLocked() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mJournalUidModes.size() + mJournalOps.size());
+            for (int i = 0; i < mJournalUidModes.size(); i++) {
+                final int uid = mJournalUidModes.keyAt(i);
+                final UidState uidState = mUidStates.get(uid);
+                final SparseIntArray opModes = uidState != null ? uidState.opModes : null;
+                out.writeByte(JOURNAL_UID_MODES);
+                out.writeInt(uid);
+                out.writeInt(opModes != null ? opModes.size() : 0);
+                for (int j = 0; opModes != null && j < opModes.size(); j++) {
+                    out.writeInt(opModes.keyAt(j));
+                    out.writeInt(opModes.valueAt(j));
+                }
+            }
+            final long elapsedNow = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mJournalOps.size(); i++) {
+                final Op op = mJournalOps.get(i);
+                final UidState uidState = mUidStates.get(op.uid);
+                final Ops ops = uidState != null && uidState.pkgOps != null
+                        ? uidState.pkgOps.get(op.packageName) : null;
+                if (ops == null || ops.get(op.op) != op) {
+                    // Pruned, or removed with its package or uid.
+                    out.writeByte(JOURNAL_REMOVE_OP);
+                    out.writeInt(op.uid);
+                    out.writeUTF(op.packageName);
+                    out.writeInt(op.op);
+                    continue;
+                }
+                out.writeByte(JOURNAL_OP);
+                out.writeInt(op.uid);
+                out.writeUTF(op.packageName);
+                out.writeBoolean(ops.isPrivileged);
+                out.writeInt(op.op);
+                out.writeInt(op.mode);
+                out.writeInt(op.duration == -1
+                        ? (int) (elapsedNow - op.startRealtime) : op.duration);
+                out.writeInt(op.proxyUid);
+                out.writeBoolean(op.proxyPackageName != null);
+                if (op.proxyPackageName != null) {
+                    out.writeUTF(op.proxyPackageName);
+                }
+                out.writeInt(_NUM_UID_STATE);
+                for (int k = 0; k < _NUM_UID_STATE; k++) {
+                    out.writeLong(op.time[k]);
+                    out.writeLong(op.rejectTime[k]);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        clearJournalOpsLocked();
+        mJournalUidModes.clear();
+        return bytes.toByteArray();
+    }
+
     private void upgradeRunAnyInBackgroundLocked() {
         for (int i = 0; i < mUidStates.size(); i++) {
             final UidState uidState = mUidStates.valueAt(i);
@@ -2389,6 +2749,11 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return;
             }
 
+            // Everything changed so far is in this write, later changes go to a new journal.
+            synchronized (this) {
+                clearJournalOpsLocked();
+                mJournalUidModes.clear();
+            }
             List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
 
             try {
@@ -2487,6 +2852,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.endTag(null, "app-ops");
                 out.endDocument();
                 mFile.finishWrite(stream);
+                if (mJournalFile.exists() && !mJournalFile.delete()) {
+                    Slog.w(TAG, "Failed to delete " + mJournalFile);
+                }
+                mJournalSize = 0;
             } catch (IOException e) {
                 Slog.w(TAG, "Failed to write state, restoring backup.", e);
                 mFile.failWrite(stream);
@@ -3479,6 +3848,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     private void setUserRestrictionNoCheck(int code, boolean restricted, IBinder token,
             int userHandle, String[] exceptionPackages) {
         synchronized (AppOpsService.this) {
+            invalidateCheckCacheLocked();
             ClientRestrictionState restrictionState = mOpUserRestrictions.get(token);
 
             if (restrictionState == null) {
@@ -3519,6 +3889,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void removeUser(int userHandle) throws RemoteException {
         checkSystemUid("removeUser");
         synchronized (AppOpsService.this) {
+            invalidateCheckCacheLocked();
             final int tokenCount = mOpUserRestrictions.size();
             for (int i = tokenCount - 1; i >= 0; i--) {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
@@ -3736,6 +4107,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         @Override
         public void binderDied() {
             synchronized (AppOpsService.this) {
+                invalidateCheckCacheLocked();
                 mOpUserRestrictions.remove(token);
                 if (perUserRestrictions == null) {
                     return;
@@ -47,6 +47,7 @@ public final class FgThread extends ServiceThread {
             looper.setTraceTag(Trace.TRACE_TAG_SYSTEM_SERVER);
             looper.setSlowLogThresholdMs(
                     SLOW_DISPATCH_THRESHOLD_MS, SLOW_DELIVERY_THRESHOLD_MS);
+            looper.setDispatchLatencyTracking(true);
             sHandler = new Handler(sInstance.getLooper());
         }
     }
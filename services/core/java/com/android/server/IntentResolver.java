@@ -70,6 +70,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        invalidateCandidateCache();
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -213,6 +214,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        invalidateCandidateCache();
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -409,6 +411,53 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        final String action = intent.getAction();
+        F[][] cuts = null;
+        final String cacheKey;
+        if (!debug) {
+            cacheKey = candidateCacheKey(action, resolvedType, scheme);
+            synchronized (mCandidateCache) {
+                cuts = mCandidateCache.get(cacheKey);
+            }
+        } else {
+            cacheKey = null;
+        }
+        if (cuts == null) {
+            cuts = computeCandidateCuts(intent, resolvedType, scheme, debug);
+            if (cacheKey != null) {
+                synchronized (mCandidateCache) {
+                    if (mCandidateCache.size() >= MAX_CANDIDATE_CACHE_SIZE) {
+                        mCandidateCache.clear();
+                    }
+                    mCandidateCache.put(cacheKey, cuts);
+                }
+            }
+        }
+
+        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        for (int i = 0; i < cuts.length; i++) {
+            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                    scheme, cuts[i], finalList, userId);
+        }
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Collects the filter arrays that may match an intent with the given action, type and
+     * scheme.  Filters that can never match the action are dropped up front so that
+     * {@link #buildResolveList} only runs the full match against real candidates.
+     */
+    private F[][] computeCandidateCuts(Intent intent, String resolvedType, String scheme,
+            boolean debug) {
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -468,33 +517,83 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final String action = intent.getAction();
+        int count = 0;
+        final F[][] cuts = newCutArray(4);
         if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+            cuts[count++] = narrowByAction(firstTypeCut, action);
         }
         if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+            cuts[count++] = narrowByAction(secondTypeCut, action);
         }
         if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+            cuts[count++] = narrowByAction(thirdTypeCut, action);
         }
         if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+            cuts[count++] = narrowByAction(schemeCut, action);
         }
-        filterResults(finalList);
-        sortResults(finalList);
+        return count == cuts.length ? cuts : Arrays.copyOf(cuts, count);
+    }
 
-        if (debug) {
-            Slog.v(TAG, "Final result list:");
-            for (int i=0; i<finalList.size(); i++) {
-                Slog.v(TAG, "  " + finalList.get(i));
+    @SuppressWarnings("unchecked")
+    private F[][] newCutArray(int size) {
+        return (F[][]) new IntentFilter[size][];
+    }
+
+    /**
+     * Returns the filters of {@code src} that accept {@code action}, in their original order.
+     * A null action matches every filter, in which case {@code src} is returned as-is.
+     */
+    private F[] narrowByAction(F[] src, String action) {
+        if (action == null) {
+            return src;
+        }
+        final int N = src.length;
+        int matching = 0;
+        int i;
+        F filter;
+        for (i = 0; i < N && (filter = src[i]) != null; i++) {
+            if (filter.matchAction(action)) {
+                matching++;
             }
         }
-        return finalList;
+        if (matching == i) {
+            return src;
+        }
+        final F[] res = newArray(matching);
+        int out = 0;
+        for (int j = 0; j < i; j++) {
+            if (src[j].matchAction(action)) {
+                res[out++] = src[j];
+            }
+        }
+        return res;
+    }
+
+    private static String candidateCacheKey(String action, String resolvedType, String scheme) {
+        final StringBuilder key = new StringBuilder();
+        appendCacheKeyField(key, action);
+        appendCacheKeyField(key, resolvedType);
+        appendCacheKeyField(key, scheme);
+        return key.toString();
+    }
+
+    /**
+     * Length-prefixes non-null fields so that no value, not even "null" or one containing the
+     * marker characters, encodes like another field list.
+     */
+    private static void appendCacheKeyField(StringBuilder key, String field) {
+        if (field == null) {
+            key.append('-');
+        } else {
+            key.append(field.length()).append(':').append(field);
+        }
+    }
+
+    private void invalidateCandidateCache() {
+        synchronized (mCandidateCache) {
+            mCandidateCache.clear();
+        }
     }
 
     /**
@@ -833,6 +932,19 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     };
 
+    /**
+     * Upper bound on the number of distinct (action, type, scheme) keys kept in
+     * {@link #mCandidateCache}; the cache is simply dropped when it fills up.
+     */
+    private static final int MAX_CANDIDATE_CACHE_SIZE = 256;
+
+    /**
+     * Candidate filter arrays for previously resolved (action, type, scheme) keys, as
+     * returned by {@link #computeCandidateCuts}.  Cleared whenever a filter is added or
+     * removed.
+     */
+    private final ArrayMap<String, F[][]> mCandidateCache = new ArrayMap<>();
+
     /**
      * All filters that have been registered.
      */
@@ -3082,6 +3082,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mHandlerThread = new ServiceThread(TAG,
                 THREAD_PRIORITY_FOREGROUND, false /*allowIo*/);
         mHandlerThread.start();
+        mHandlerThread.getLooper().setDispatchLatencyTracking(true);
         mHandler = new MainHandler(mHandlerThread.getLooper());
         mUiHandler = mInjector.getUiHandler(this);
 
@@ -53,6 +53,8 @@ import android.util.Slog;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -129,6 +131,30 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Distribution of the time broadcasts spent waiting in this queue before being
+     * dispatched, and of the time from dispatch until all receivers finished, split
+     * by parallel and ordered delivery.
+     */
+    final LatencyHistogram mParallelEnqueueLatency = new LatencyHistogram();
+    final LatencyHistogram mParallelDeliveryLatency = new LatencyHistogram();
+    final LatencyHistogram mOrderedEnqueueLatency = new LatencyHistogram();
+    final LatencyHistogram mOrderedDeliveryLatency = new LatencyHistogram();
+
+    /**
+     * Time each receiver of an ordered broadcast held up the ordered queue, and the receiver
+     * that held it up the longest, to find who is behind a backlog.
+     */
+    final LatencyHistogram mOrderedReceiverLatency = new LatencyHistogram();
+    String mSlowestOrderedReceiver;
+    long mSlowestOrderedReceiverMillis;
+
+    /**
+     * Number of queued broadcasts that were replaced by a newer one because of
+     * {@link Intent#FLAG_RECEIVER_REPLACE_PENDING}.
+     */
+    int mReplacedBroadcastCount = 0;
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -264,12 +290,25 @@ public final class BroadcastQueue {
                             + typeForLogging + " [" + mQueueName + "]: " + intent);
                 }
                 queue.set(i, r);
+                mReplacedBroadcastCount++;
                 return old;
             }
         }
         return null;
     }
 
+    private void noteOrderedReceiverFinishedLocked(BroadcastRecord r) {
+        final long latency = SystemClock.uptimeMillis() - r.receiverTime;
+        mOrderedReceiverLatency.record(latency);
+        if (latency > mSlowestOrderedReceiverMillis) {
+            mSlowestOrderedReceiverMillis = latency;
+            mSlowestOrderedReceiver = (r.curComponent != null
+                    ? r.curComponent.flattenToShortString()
+                    : r.curFilter != null ? r.curFilter.packageName : null)
+                    + " for " + r.intent.getAction();
+        }
+    }
+
     private final void processCurBroadcastLocked(BroadcastRecord r,
             ProcessRecord app, boolean skipOomAdj) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
@@ -412,6 +451,8 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else if (state != BroadcastRecord.WAITING_SERVICES) {
+            noteOrderedReceiverFinishedLocked(r);
         }
         r.receiver = null;
         r.intent.setComponent(null);
@@ -1593,6 +1634,17 @@ public final class BroadcastQueue {
         mSummaryHistoryDispatchTime[mSummaryHistoryNext] = historyRecord.dispatchClockTime;
         mSummaryHistoryFinishTime[mSummaryHistoryNext] = System.currentTimeMillis();
         mSummaryHistoryNext = ringAdvance(mSummaryHistoryNext, 1, MAX_BROADCAST_SUMMARY_HISTORY);
+
+        final long enqueueLatency = historyRecord.dispatchClockTime
+                - historyRecord.enqueueClockTime;
+        final long deliveryLatency = original.finishTime - original.dispatchTime;
+        if (original.ordered) {
+            mOrderedEnqueueLatency.record(enqueueLatency);
+            mOrderedDeliveryLatency.record(deliveryLatency);
+        } else {
+            mParallelEnqueueLatency.record(enqueueLatency);
+            mParallelDeliveryLatency.record(deliveryLatency);
+        }
     }
 
     boolean cleanupDisabledPackageReceiversLocked(
@@ -1863,8 +1915,57 @@ public final class BroadcastQueue {
                     pw.print("    extras: "); pw.println(bundle.toString());
                 }
             } while (ringIndex != lastIndex);
+
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Broadcast latency [" + mQueueName + "]:");
+            pw.print("    replaced pending: "); pw.println(mReplacedBroadcastCount);
+            mParallelEnqueueLatency.dump(pw, "    ", "parallel enqueue->dispatch");
+            mParallelDeliveryLatency.dump(pw, "    ", "parallel dispatch->finish");
+            mOrderedEnqueueLatency.dump(pw, "    ", "ordered enqueue->dispatch");
+            mOrderedDeliveryLatency.dump(pw, "    ", "ordered dispatch->finish");
+            mOrderedReceiverLatency.dump(pw, "    ", "ordered per receiver");
+            if (mSlowestOrderedReceiver != null) {
+                pw.print("    slowest ordered receiver: "); pw.print(mSlowestOrderedReceiver);
+                pw.print(" "); pw.print(mSlowestOrderedReceiverMillis); pw.println("ms");
+            }
         }
 
         return needSep;
     }
+
+    /**
+     * Count, average, maximum and histogram of latencies in milliseconds.
+     */
+    static final class LatencyHistogram {
+        // The last bucket is for >= 2^16 ms, about a minute.
+        final ExponentiallyBucketedHistogram mHistogram = new ExponentiallyBucketedHistogram(18);
+        long mCount;
+        long mTotalMillis;
+        long mMaxMillis;
+
+        void record(long latencyMillis) {
+            if (latencyMillis < 0) {
+                // Wall clock changed while the broadcast was queued.
+                return;
+            }
+            mHistogram.add((int) Math.min(latencyMillis, Integer.MAX_VALUE));
+            mCount++;
+            mTotalMillis += latencyMillis;
+            mMaxMillis = Math.max(mMaxMillis, latencyMillis);
+        }
+
+        void dump(PrintWriter pw, String prefix, String label) {
+            pw.print(prefix); pw.print(label); pw.print(": count="); pw.print(mCount);
+            if (mCount == 0) {
+                pw.println();
+                return;
+            }
+            pw.print(" avg="); pw.print(mTotalMillis / mCount);
+            pw.print("ms max="); pw.print(mMaxMillis); pw.println("ms");
+            pw.print(prefix); pw.print("  "); pw.println(mHistogram);
+        }
+    }
 }
@@ -53,9 +53,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ShellCallback;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
@@ -63,6 +65,8 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -132,6 +136,30 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    /**
+     * How long, in milliseconds, batched change notifications are held so that batches
+     * arriving close together reach each observer in one callback. 0 delivers at once.
+     */
+    static final String NOTIFY_BATCH_WINDOW_PROPERTY =
+            "persist.sys.content_notify_batch_window_ms";
+    private static final long DEFAULT_NOTIFY_BATCH_WINDOW_MS = 20;
+
+    /** Batched changes not delivered yet, by observer binder. */
+    @GuardedBy("mPendingChanges")
+    private final ArrayMap<IBinder, ArrayList<PendingChange>> mPendingChanges = new ArrayMap<>();
+    @GuardedBy("mPendingChanges")
+    private boolean mPendingChangesScheduled;
+    @GuardedBy("mPendingChanges")
+    private long mBatchedUriCount;
+    @GuardedBy("mPendingChanges")
+    private long mBatchedCallbackCount;
+
+    private final Runnable mDeliverPendingChanges = this::deliverPendingChanges;
+
+    /** Replaces {@link #NOTIFY_BATCH_WINDOW_PROPERTY} when not negative. */
+    @VisibleForTesting
+    long mNotifyBatchWindowMillisOverride = -1;
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -238,6 +266,16 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
 
+            synchronized (mPendingChanges) {
+                pw.println();
+                pw.print("Batched notifications: "); pw.print(mBatchedUriCount);
+                pw.print(" uris in "); pw.print(mBatchedCallbackCount);
+                pw.print(" callbacks, "); pw.print(mPendingChanges.size());
+                pw.print(" observers pending, window ");
+                pw.print(getNotifyBatchWindowMillis());
+                pw.println("ms");
+            }
+
             synchronized (mCache) {
                 pw.println();
                 pw.println("Cached content:");
@@ -400,20 +438,8 @@ public final class ContentService extends IContentService.Stub {
         userHandle = handleIncomingUser(uri, pid, uid,
                 Intent.FLAG_GRANT_WRITE_URI_PERMISSION, true, userHandle);
 
-        final String msg = LocalServices.getService(ActivityManagerInternal.class)
-                .checkContentProviderAccess(uri.getAuthority(), userHandle);
-        if (msg != null) {
-            if (targetSdkVersion >= Build.VERSION_CODES.O) {
-                throw new SecurityException(msg);
-            } else {
-                if (msg.startsWith("Failed to find provider")) {
-                    // Sigh, we need to quietly let apps targeting older API
-                    // levels notify on non-existent providers.
-                } else {
-                    Log.w(TAG, "Ignoring notify for " + uri + " from " + uid + ": " + msg);
-                    return;
-                }
-            }
+        if (!checkNotifyAccess(uri, uid, userHandle, targetSdkVersion)) {
+            return;
         }
 
         // This makes it so that future permission checks will be in the context of this
@@ -467,6 +493,204 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    /**
+     * Notify observers of a batch of changes to a particular user's view of the providers.
+     * Permissions are checked as for {@link #notifyChange}. Each observer gets the distinct
+     * uris it matched in a single callback, after the delivery window set by
+     * {@link #NOTIFY_BATCH_WINDOW_PROPERTY}; changes notified by other batches within the
+     * same window are coalesced into that callback.
+     */
+    @Override
+    public void notifyChangeBatch(Uri[] uris, IContentObserver observer,
+            boolean observerWantsSelfNotifications, int flags, int userHandle,
+            int targetSdkVersion) {
+        if (DEBUG) Slog.d(TAG, "Notifying update of " + (uris != null ? uris.length : 0)
+                + " uris for user " + userHandle + " from observer " + observer + ", flags "
+                + Integer.toHexString(flags));
+
+        if (uris == null) {
+            throw new NullPointerException("Uris must not be null");
+        }
+
+        final int uid = Binder.getCallingUid();
+        final int pid = Binder.getCallingPid();
+        final int callingUserHandle = UserHandle.getCallingUserId();
+
+        // Resolve the user and check provider access once per distinct uri and authority.
+        final ArraySet<Uri> accepted = new ArraySet<>(uris.length);
+        final ArrayMap<String, Boolean> authorityAccess = new ArrayMap<>();
+        int resolvedUserHandle = userHandle;
+        for (Uri uri : uris) {
+            if (uri == null) {
+                throw new NullPointerException("Uri must not be null");
+            }
+            if (accepted.contains(uri)) {
+                continue;
+            }
+            resolvedUserHandle = handleIncomingUser(uri, pid, uid,
+                    Intent.FLAG_GRANT_WRITE_URI_PERMISSION, true, userHandle);
+            final String authority = uri.getAuthority();
+            Boolean allowed = authorityAccess.get(authority);
+            if (allowed == null) {
+                allowed = checkNotifyAccess(uri, uid, resolvedUserHandle, targetSdkVersion);
+                authorityAccess.put(authority, allowed);
+            }
+            if (allowed) {
+                accepted.add(uri);
+            }
+        }
+        final int numUris = accepted.size();
+        if (numUris == 0) {
+            return;
+        }
+        userHandle = resolvedUserHandle;
+
+        // This makes it so that future permission checks will be in the context of this
+        // process rather than the caller's process. We will restore this before returning.
+        long identityToken = clearCallingIdentity();
+        try {
+            final ArrayList<ObserverCall> calls = new ArrayList<ObserverCall>();
+            final int[] callsEnd = new int[numUris];
+            synchronized (mRootNode) {
+                for (int i = 0; i < numUris; i++) {
+                    mRootNode.collectObserversLocked(accepted.valueAt(i), 0, observer,
+                            observerWantsSelfNotifications, flags, userHandle, calls);
+                    callsEnd[i] = calls.size();
+                }
+            }
+
+            final long window = getNotifyBatchWindowMillis();
+            synchronized (mPendingChanges) {
+                int start = 0;
+                for (int i = 0; i < numUris; i++) {
+                    final Uri uri = accepted.valueAt(i);
+                    for (int j = start; j < callsEnd[i]; j++) {
+                        addPendingChangeLocked(calls.get(j), uri, userHandle);
+                    }
+                    start = callsEnd[i];
+                }
+                mBatchedUriCount += numUris;
+                if (window > 0 && !mPendingChangesScheduled && !mPendingChanges.isEmpty()) {
+                    mPendingChangesScheduled = true;
+                    BackgroundThread.getHandler().postDelayed(mDeliverPendingChanges, window);
+                }
+            }
+            if (window <= 0) {
+                deliverPendingChanges();
+            }
+
+            final ArrayMap<String, String> providerPackageNames = new ArrayMap<>();
+            for (int i = 0; i < numUris; i++) {
+                final Uri uri = accepted.valueAt(i);
+                final String authority = uri.getAuthority();
+                if (providerPackageNames.containsKey(authority)) {
+                    synchronized (mCache) {
+                        invalidateCacheLocked(userHandle, providerPackageNames.get(authority),
+                                uri);
+                    }
+                    continue;
+                }
+                if ((flags&ContentResolver.NOTIFY_SYNC_TO_NETWORK) != 0) {
+                    SyncManager syncManager = getSyncManager();
+                    if (syncManager != null) {
+                        syncManager.scheduleLocalSync(null /* all accounts */, callingUserHandle,
+                                uid, authority, getSyncExemptionForCaller(uid));
+                    }
+                }
+                final String providerPackageName = getProviderPackageName(uri);
+                providerPackageNames.put(authority, providerPackageName);
+                synchronized (mCache) {
+                    invalidateCacheLocked(userHandle, providerPackageName, uri);
+                }
+            }
+        } finally {
+            restoreCallingIdentity(identityToken);
+        }
+    }
+
+    @GuardedBy("mPendingChanges")
+    private void addPendingChangeLocked(ObserverCall oc, Uri uri, int userHandle) {
+        final IBinder binder = oc.mObserver.asBinder();
+        ArrayList<PendingChange> changes = mPendingChanges.get(binder);
+        if (changes == null) {
+            changes = new ArrayList<>(1);
+            mPendingChanges.put(binder, changes);
+        }
+        PendingChange change = null;
+        for (int i = 0; i < changes.size(); i++) {
+            final PendingChange candidate = changes.get(i);
+            if (candidate.mSelfChange == oc.mSelfChange
+                    && candidate.mUserHandle == userHandle) {
+                change = candidate;
+                break;
+            }
+        }
+        if (change == null) {
+            change = new PendingChange(oc.mObserver, oc.mSelfChange, userHandle);
+            changes.add(change);
+        }
+        change.mUris.add(uri);
+    }
+
+    private long getNotifyBatchWindowMillis() {
+        if (mNotifyBatchWindowMillisOverride >= 0) {
+            return mNotifyBatchWindowMillisOverride;
+        }
+        return SystemProperties.getLong(NOTIFY_BATCH_WINDOW_PROPERTY,
+                DEFAULT_NOTIFY_BATCH_WINDOW_MS);
+    }
+
+    @VisibleForTesting
+    void deliverPendingChanges() {
+        final ArrayList<PendingChange> changes = new ArrayList<>();
+        synchronized (mPendingChanges) {
+            for (int i = 0; i < mPendingChanges.size(); i++) {
+                changes.addAll(mPendingChanges.valueAt(i));
+            }
+            mPendingChanges.clear();
+            mPendingChangesScheduled = false;
+            mBatchedCallbackCount += changes.size();
+        }
+        final int numChanges = changes.size();
+        for (int i = 0; i < numChanges; i++) {
+            final PendingChange change = changes.get(i);
+            try {
+                change.mObserver.onChangeBatch(change.mSelfChange,
+                        change.mUris.toArray(new Uri[change.mUris.size()]), change.mUserHandle);
+                if (DEBUG) Slog.d(TAG, "Notified " + change.mObserver + " of "
+                        + change.mUris.size() + " updates");
+            } catch (RemoteException ex) {
+                synchronized (mRootNode) {
+                    Log.w(TAG, "Found dead observer, removing");
+                    mRootNode.removeObserverLocked(change.mObserver);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the caller may notify changes to {@code uri}: throws for callers
+     * targeting O or later, otherwise logs and returns false.
+     */
+    private boolean checkNotifyAccess(Uri uri, int uid, int userHandle, int targetSdkVersion) {
+        final String msg = LocalServices.getService(ActivityManagerInternal.class)
+                .checkContentProviderAccess(uri.getAuthority(), userHandle);
+        if (msg != null) {
+            if (targetSdkVersion >= Build.VERSION_CODES.O) {
+                throw new SecurityException(msg);
+            } else {
+                if (msg.startsWith("Failed to find provider")) {
+                    // Sigh, we need to quietly let apps targeting older API
+                    // levels notify on non-existent providers.
+                } else {
+                    Log.w(TAG, "Ignoring notify for " + uri + " from " + uid + ": " + msg);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private int checkUriPermission(Uri uri, int pid, int uid, int modeFlags, int userHandle) {
         try {
             return ActivityManager.getService().checkUriPermission(
@@ -503,6 +727,20 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    /** Changes held for one observer until the batch delivery window closes. */
+    private static final class PendingChange {
+        final IContentObserver mObserver;
+        final boolean mSelfChange;
+        final int mUserHandle;
+        final ArraySet<Uri> mUris = new ArraySet<>();
+
+        PendingChange(IContentObserver observer, boolean selfChange, int userHandle) {
+            mObserver = observer;
+            mSelfChange = selfChange;
+            mUserHandle = userHandle;
+        }
+    }
+
     @Override
     public void requestSync(Account account, String authority, Bundle extras) {
         Bundle.setDefusable(extras, true);
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.content;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Append-only log of changes made since a state file was last written, so that small
+ * changes don't rewrite the whole file. Each record is self-contained and replayed in order
+ * on top of the state file; the owner calls {@link #reset} once a new state file is written.
+ * A record torn by a crash at the end of the log is dropped on read.
+ *
+ * Not thread safe; {@link SyncStorageEngine} guards it with its authorities lock.
+ */
+class SyncJournal {
+    private static final String TAG = "SyncManager";
+
+    private final File mFile;
+    private int mRecordCount;
+
+    SyncJournal(File file) {
+        mFile = file;
+    }
+
+    /** Number of records in the log, known once it was read or appended to. */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Appends {@code record} and syncs it to disk. */
+    void append(byte[] record) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(record.length);
+            out.write(record);
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            fos.close();
+        }
+        mRecordCount++;
+    }
+
+    /** Returns all complete records in the order they were appended. */
+    ArrayList<byte[]> readAll() {
+        final ArrayList<byte[]> records = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (true) {
+                final int length = in.readInt();
+                if (length < 0) {
+                    Slog.w(TAG, "Bad record length " + length + " in " + mFile);
+                    break;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                records.add(record);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing changed since the state file was written.
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a torn record.
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading " + mFile, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        mRecordCount = records.size();
+        return records;
+    }
+
+    /** Drops all records, after their changes were written to the state file. */
+    void reset() {
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.w(TAG, "Failed to delete " + mFile);
+        }
+        mRecordCount = 0;
+    }
+}
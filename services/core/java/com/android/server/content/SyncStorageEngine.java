@@ -153,6 +153,14 @@ public class SyncStorageEngine {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    /** Records a journal may hold before its file is rewritten instead. */
+    private static final int MAX_JOURNAL_RECORDS = 256;
+
+    // Record types of the accounts journal.
+    private static final int ACCOUNTS_JOURNAL_AUTHORITY = 1;
+    private static final int ACCOUNTS_JOURNAL_REMOVE_AUTHORITY = 2;
+    private static final int ACCOUNTS_JOURNAL_MASTER_SYNC = 3;
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -461,6 +469,12 @@ public class SyncStorageEngine {
      */
     private final AtomicFile mAccountInfoFile;
 
+    /**
+     * Settings changes made since {@link #mAccountInfoFile} was written. Appending a
+     * record is much cheaper than rewriting the file for every authority.
+     */
+    private final SyncJournal mAccountInfoJournal;
+
     /**
      * This file contains the current sync status.  We would like to retain
      * it across boots, but its loss is not the end of the world, so we store
@@ -468,6 +482,12 @@ public class SyncStorageEngine {
      */
     private final AtomicFile mStatusFile;
 
+    /**
+     * Statuses that had to be persisted right away since {@link #mStatusFile} was
+     * written, folded into it with the next delayed write.
+     */
+    private final SyncJournal mStatusJournal;
+
     /**
      * This file contains sync statistics.  This is purely debugging information
      * so is written infrequently and can be thrown away at any time.
@@ -505,6 +525,8 @@ public class SyncStorageEngine {
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"), "sync-accounts");
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"), "sync-status");
+        mAccountInfoJournal = new SyncJournal(new File(syncDir, "accounts.journal"));
+        mStatusJournal = new SyncJournal(new File(syncDir, "status.journal"));
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"), "sync-stats");
 
         readAccountInfoLocked();
@@ -705,7 +727,7 @@ public class SyncStorageEngine {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            journalAuthorityLocked(authority);
         }
 
         if (sync) {
@@ -773,7 +795,7 @@ public class SyncStorageEngine {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            journalAuthorityLocked(aInfo);
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle(),
@@ -948,7 +970,7 @@ public class SyncStorageEngine {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            journalMasterSyncLocked(userId, flag);
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1284,8 +1306,9 @@ public class SyncStorageEngine {
             status.addEvent(event.toString());
 
             if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
+                journalStatusLocked(status);
+            }
+            if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
                 mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATUS),
                         WRITE_STATUS_DELAY);
             }
@@ -1513,7 +1536,7 @@ public class SyncStorageEngine {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            journalAuthorityLocked(authority);
         }
         return authority;
     }
@@ -1540,7 +1563,7 @@ public class SyncStorageEngine {
                 }
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    journalRemovedAuthorityLocked(authorityInfo.ident);
                 }
             }
         }
@@ -1608,6 +1631,7 @@ public class SyncStorageEngine {
             }
             if (eventType == XmlPullParser.END_DOCUMENT) {
                 Slog.i(TAG, "No initial accounts");
+                discardAccountInfoJournalLocked();
                 return;
             }
 
@@ -1681,10 +1705,12 @@ public class SyncStorageEngine {
             }
         } catch (XmlPullParserException e) {
             Slog.w(TAG, "Error reading accounts", e);
+            discardAccountInfoJournalLocked();
             return;
         } catch (java.io.IOException e) {
             if (fis == null) Slog.i(TAG, "No initial accounts");
             else Slog.w(TAG, "Error reading accounts", e);
+            discardAccountInfoJournalLocked();
             return;
         } finally {
             mNextAuthorityId = Math.max(highestAuthorityId + 1, mNextAuthorityId);
@@ -1696,6 +1722,7 @@ public class SyncStorageEngine {
             }
         }
 
+        readAccountInfoJournalLocked();
         maybeMigrateSettingsForRenamedAuthorities();
     }
 
@@ -1941,6 +1968,125 @@ public class SyncStorageEngine {
         }
     }
 
+    private void journalAuthorityLocked(AuthorityInfo authority) {
+        final Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_AUTHORITY);
+        out.writeInt(authority.ident);
+        out.writeInt(authority.target.userId);
+        out.writeString(authority.target.account.name);
+        out.writeString(authority.target.account.type);
+        out.writeString(authority.target.provider);
+        out.writeInt(authority.enabled ? 1 : 0);
+        out.writeInt(authority.syncable);
+        appendAccountInfoJournalLocked(out);
+    }
+
+    private void journalRemovedAuthorityLocked(int ident) {
+        final Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_REMOVE_AUTHORITY);
+        out.writeInt(ident);
+        appendAccountInfoJournalLocked(out);
+    }
+
+    private void journalMasterSyncLocked(int userId, boolean enabled) {
+        final Parcel out = Parcel.obtain();
+        out.writeInt(ACCOUNTS_JOURNAL_MASTER_SYNC);
+        out.writeInt(userId);
+        out.writeInt(enabled ? 1 : 0);
+        appendAccountInfoJournalLocked(out);
+    }
+
+    /**
+     * Persist a settings change that was already applied, by appending {@code record} to
+     * {@link #mAccountInfoJournal}. Rewrites the account file instead if the journal is full
+     * or can't be written, since these settings must never be lost.
+     */
+    private void appendAccountInfoJournalLocked(Parcel record) {
+        try {
+            if (mAccountInfoJournal.getRecordCount() >= MAX_JOURNAL_RECORDS) {
+                writeAccountInfoLocked();
+            } else {
+                mAccountInfoJournal.append(record.marshall());
+            }
+        } catch (java.io.IOException e) {
+            Slog.w(TAG, "Error journaling accounts", e);
+            writeAccountInfoLocked();
+        } finally {
+            record.recycle();
+        }
+    }
+
+    /**
+     * Replay the settings changes journaled since the account file was written. Like
+     * authorities read from the file, new ones are dropped if their account or provider
+     * is gone.
+     */
+    private void readAccountInfoJournalLocked() {
+        final ArrayList<byte[]> records = mAccountInfoJournal.readAll();
+        final int N = records.size();
+        if (N == 0) {
+            return;
+        }
+        final AccountAuthorityValidator validator = new AccountAuthorityValidator(mContext);
+        for (int i = 0; i < N; i++) {
+            final byte[] record = records.get(i);
+            final Parcel in = Parcel.obtain();
+            in.unmarshall(record, 0, record.length);
+            in.setDataPosition(0);
+            final int type = in.readInt();
+            switch (type) {
+                case ACCOUNTS_JOURNAL_AUTHORITY: {
+                    final int ident = in.readInt();
+                    final int userId = in.readInt();
+                    final Account account = new Account(in.readString(), in.readString());
+                    final String provider = in.readString();
+                    mNextAuthorityId = Math.max(mNextAuthorityId, ident + 1);
+                    AuthorityInfo authority = mAuthorities.get(ident);
+                    if (authority == null) {
+                        if (!validator.isAccountValid(account, userId)
+                                || !validator.isAuthorityValid(provider, userId)) {
+                            break;
+                        }
+                        authority = getOrCreateAuthorityLocked(
+                                new EndPoint(account, provider, userId), ident, false);
+                    }
+                    authority.enabled = in.readInt() != 0;
+                    authority.syncable = in.readInt();
+                    break;
+                }
+                case ACCOUNTS_JOURNAL_REMOVE_AUTHORITY: {
+                    final AuthorityInfo authority = mAuthorities.get(in.readInt());
+                    if (authority != null) {
+                        removeAuthorityLocked(authority.target.account, authority.target.userId,
+                                authority.target.provider, false /* doWrite */);
+                    }
+                    break;
+                }
+                case ACCOUNTS_JOURNAL_MASTER_SYNC: {
+                    final int userId = in.readInt();
+                    mMasterSyncAutomatically.put(userId, in.readInt() != 0);
+                    break;
+                }
+                default:
+                    Slog.w(TAG, "Unknown accounts journal record: " + type);
+                    break;
+            }
+            in.recycle();
+        }
+    }
+
+    /**
+     * Drop the journaled settings changes because the account file they were made on top of
+     * could not be read. Replaying them on an empty state would only restore part of it.
+     */
+    private void discardAccountInfoJournalLocked() {
+        final int N = mAccountInfoJournal.readAll().size();
+        if (N > 0) {
+            Slog.w(TAG, "Discarding " + N + " journaled account changes");
+        }
+        mAccountInfoJournal.reset();
+    }
+
     /**
      * Write all account information to the account file.
      */
@@ -1990,6 +2136,7 @@ public class SyncStorageEngine {
             out.endTag(null, "accounts");
             out.endDocument();
             mAccountInfoFile.finishWrite(fos);
+            mAccountInfoJournal.reset();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing accounts", e1);
             if (fos != null) {
@@ -2173,6 +2320,26 @@ public class SyncStorageEngine {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
+
+        final ArrayList<byte[]> records = mStatusJournal.readAll();
+        final int N = records.size();
+        for (int i = 0; i < N; i++) {
+            final byte[] record = records.get(i);
+            final Parcel in = Parcel.obtain();
+            in.unmarshall(record, 0, record.length);
+            in.setDataPosition(0);
+            final int token = in.readInt();
+            if (token == STATUS_FILE_ITEM) {
+                SyncStatusInfo status = new SyncStatusInfo(in);
+                if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                    status.pending = false;
+                    mSyncStatus.put(status.authorityId, status);
+                }
+            } else {
+                Slog.w(TAG, "Unknown status journal token: " + token);
+            }
+            in.recycle();
+        }
     }
 
     /**
@@ -2202,6 +2369,7 @@ public class SyncStorageEngine {
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+            mStatusJournal.reset();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing status", e1);
             if (fos != null) {
@@ -2210,6 +2378,28 @@ public class SyncStorageEngine {
         }
     }
 
+    /**
+     * Persist a single status right away by appending it to {@link #mStatusJournal},
+     * rewriting the whole status file if the journal is full or can't be written.
+     */
+    private void journalStatusLocked(SyncStatusInfo status) {
+        if (mStatusJournal.getRecordCount() >= MAX_JOURNAL_RECORDS) {
+            writeStatusLocked();
+            return;
+        }
+        final Parcel out = Parcel.obtain();
+        try {
+            out.writeInt(STATUS_FILE_ITEM);
+            status.writeToParcel(out, 0);
+            mStatusJournal.append(out.marshall());
+        } catch (java.io.IOException e) {
+            Slog.w(TAG, "Error journaling status", e);
+            writeStatusLocked();
+        } finally {
+            out.recycle();
+        }
+    }
+
     private void requestSync(AuthorityInfo authorityInfo, int reason, Bundle extras,
             @SyncExemption int syncExemptionFlag) {
         if (android.os.Process.myUid() == android.os.Process.SYSTEM_UID
@@ -97,6 +97,7 @@ import com.android.server.job.controllers.DeviceIdleJobsController;
 import com.android.server.job.controllers.IdleController;
 import com.android.server.job.controllers.JobStatus;
 import com.android.server.job.controllers.StateController;
+import com.android.server.job.controllers.StateController.EvaluationStats;
 import com.android.server.job.controllers.StorageController;
 import com.android.server.job.controllers.TimeController;
 
@@ -1694,8 +1695,10 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
+        final long start = EvaluationStats.start();
         mJobs.forEachJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
+        mReadyQueueEvaluationStats.noteEvaluation(start, mJobs.size());
 
         if (DEBUG) {
             final int queuedJobs = mPendingJobs.size();
@@ -1736,6 +1739,10 @@ public class JobSchedulerService extends com.android.server.SystemService
     }
     private final ReadyJobQueueFunctor mReadyQueueFunctor = new ReadyJobQueueFunctor();
 
+    /** Time spent scanning every job for ready ones, and assigning pending jobs to contexts. */
+    private final EvaluationStats mReadyQueueEvaluationStats = new EvaluationStats();
+    private final EvaluationStats mPendingAssignmentStats = new EvaluationStats();
+
     /**
      * The state of at least one job has changed. Here is where we could enforce various
      * policies on when we want to execute jobs.
@@ -1848,8 +1855,10 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
+        final long start = EvaluationStats.start();
         mJobs.forEachJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
+        mReadyQueueEvaluationStats.noteEvaluation(start, mJobs.size());
     }
 
     /**
@@ -2056,7 +2065,10 @@ public class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, "pending queue: " + mPendingJobs.size() + " jobs.");
         }
+        final long start = EvaluationStats.start();
+        final int pendingCount = mPendingJobs.size();
         assignJobsToContextsLocked();
+        mPendingAssignmentStats.noteEvaluation(start, pendingCount);
         reportActiveLocked();
     }
 
@@ -3120,9 +3132,19 @@ public class JobSchedulerService extends com.android.server.SystemService
                 pw.println(mControllers.get(i).getClass().getSimpleName() + ":");
                 pw.increaseIndent();
                 mControllers.get(i).dumpControllerStateLocked(pw, predicate);
+                mControllers.get(i).dumpEvaluationStatsLocked(pw);
                 pw.decreaseIndent();
             }
             pw.println();
+            pw.println("Ready queue:");
+            pw.increaseIndent();
+            mReadyQueueEvaluationStats.dump(pw);
+            pw.decreaseIndent();
+            pw.println("Pending assignment:");
+            pw.increaseIndent();
+            mPendingAssignmentStats.dump(pw);
+            pw.decreaseIndent();
+            pw.println();
             pw.println("Uid priority overrides:");
             for (int i=0; i< mUidPriorityOverride.size(); i++) {
                 int uid = mUidPriorityOverride.keyAt(i);
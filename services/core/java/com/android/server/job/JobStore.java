@@ -27,6 +27,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.net.NetworkRequest;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
@@ -40,6 +41,7 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
@@ -53,7 +55,12 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -71,6 +78,10 @@ import java.util.function.Predicate;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs are stored as a full XML snapshot in jobs.xml plus a binary journal of the jobs
+ * added and removed since that snapshot, so that a single change does not rewrite every job.
+ * The journal is folded into a new snapshot once it holds more records than there are jobs.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -99,6 +110,21 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
+
+    /** Persisted-job changes since the last write, in order, to be appended to the journal. */
+    @GuardedBy("mLock")
+    private final ArrayList<JournalRecord> mJournalPendingRecords = new ArrayList<>();
+
+    /** Whether the next write has to be a full snapshot rather than a journal append. */
+    @GuardedBy("mLock")
+    private boolean mSnapshotRequired;
+
+    // Only touched by the write runnable on the IoThread once the store is constructed.
+    /** Generation of the current snapshot; only a journal with the same generation applies. */
+    private long mJournalGeneration;
+    private int mJournalRecordCount;
+
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +164,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournalFile = new File(jobDir, JOURNAL_FILE_NAME);
 
         mJobSet = new JobSet();
 
@@ -155,7 +182,14 @@ public final class JobStore {
         mXmlTimestamp = mJobsFile.getLastModifiedTime();
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
-        readJobMapFromDisk(mJobSet, mRtcGood);
+        final ReadJobMapFromDiskRunnable reader =
+                new ReadJobMapFromDiskRunnable(mJobSet, mRtcGood);
+        reader.run();
+        // Without a readable snapshot there is nothing for a journal to apply to, and a replayed
+        // journal is folded into a fresh snapshot by the first write.
+        mJournalGeneration = Math.max(reader.journalGeneration, 0);
+        mJournalRecordCount = reader.journalRecordCount;
+        mSnapshotRequired = reader.journalGeneration < 0 || reader.journalRecordCount > 0;
     }
 
     public boolean jobTimesInflatedValid() {
@@ -200,6 +234,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mJournalPendingRecords.add(new JournalRecord(jobStatus, false));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +272,13 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Journal the removal even if it is not written back right away, so the next write
+            // does not leave the job behind on disk.
+            mJournalPendingRecords.add(new JournalRecord(jobStatus, true));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,11 +289,13 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mSnapshotRequired = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mSnapshotRequired = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -313,10 +355,33 @@ public final class JobStore {
     private static final String XML_TAG_PERIODIC = "periodic";
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
+    private static final String XML_ATTR_JOURNAL_GENERATION = "journalGeneration";
+
+    private static final String JOURNAL_FILE_NAME = "jobs.journal";
+    private static final int JOURNAL_MAGIC = 0x4a4a524e; // "JJRN"
+    private static final byte JOURNAL_RECORD_ADD = 1;
+    private static final byte JOURNAL_RECORD_REMOVE = 2;
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * The journal is compacted into a new snapshot once it would hold more records than this or
+     * than the number of jobs, whichever is larger.
+     */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 128;
+
+    /** A persisted job that was added or removed since the last write. */
+    private static final class JournalRecord {
+        final JobStatus job;
+        final boolean removed;
+
+        JournalRecord(JobStatus job, boolean removed) {
+            this.job = job;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Every time the state changes we append the added and removed jobs to the journal, or
+     * write all the jobs in one swath once the journal has grown too large.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -335,7 +400,7 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes {@link #mJobSet} out to xml, or appends the changes to the journal.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
@@ -343,25 +408,77 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final List<JournalRecord> records = new ArrayList<JournalRecord>();
+            final JobStorePersistStats saved = new JobStorePersistStats();
+            final boolean snapshot;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                snapshot = mSnapshotRequired
+                        || mJournalRecordCount + mJournalPendingRecords.size() > Math.max(
+                                MIN_JOURNAL_RECORDS_BEFORE_COMPACTION, mJobSet.size());
+                if (snapshot) {
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                    });
+                } else {
+                    for (int i = 0; i < mJournalPendingRecords.size(); i++) {
+                        final JournalRecord record = mJournalPendingRecords.get(i);
+                        records.add(record.removed ? record
+                                : new JournalRecord(new JobStatus(record.job), false));
                     }
-                });
+                    saved.countAllJobsSaved = 0;
+                    saved.countSystemServerJobsSaved = 0;
+                    saved.countSystemSyncManagerJobsSaved = 0;
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            countSavedJob(saved, job);
+                        }
+                    });
+                }
+                mJournalPendingRecords.clear();
+                mSnapshotRequired = false;
+            }
+            final boolean written;
+            if (snapshot) {
+                written = writeJobsMapImpl(storeCopy);
+            } else {
+                written = appendJournalImpl(records);
+                if (written) {
+                    mPersistInfo.countAllJobsSaved = saved.countAllJobsSaved;
+                    mPersistInfo.countSystemServerJobsSaved = saved.countSystemServerJobsSaved;
+                    mPersistInfo.countSystemSyncManagerJobsSaved =
+                            saved.countSystemSyncManagerJobsSaved;
+                }
+            }
+            if (!written) {
+                synchronized (mLock) {
+                    // The dropped changes are covered by the next full snapshot.
+                    mSnapshotRequired = true;
+                }
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished " + (snapshot ? "writing" : "journaling") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private void countSavedJob(JobStorePersistStats saved, JobStatus jobStatus) {
+            saved.countAllJobsSaved++;
+            if (jobStatus.getUid() == Process.SYSTEM_UID) {
+                saved.countSystemServerJobsSaved++;
+                if (isSyncJob(jobStatus)) {
+                    saved.countSystemSyncManagerJobsSaved++;
+                }
+            }
+        }
+
+        private boolean writeJobsMapImpl(List<JobStatus> jobList) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
+            final long generation = mJournalGeneration + 1;
             try {
                 final long startTime = SystemClock.uptimeMillis();
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -372,17 +489,13 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, XML_ATTR_JOURNAL_GENERATION, Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -400,6 +513,12 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+
+                // The journal belongs to the previous generation and is now folded in.
+                mJournalGeneration = generation;
+                mJournalRecordCount = 0;
+                mJournalFile.delete();
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +532,70 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return false;
+        }
+
+        /**
+         * Appends one record per added or removed job to the journal and syncs it to disk.
+         * Added jobs carry the same "<job/>" tag that a snapshot would hold for them.
+         */
+        private boolean appendJournalImpl(List<JournalRecord> records) {
+            if (records.isEmpty()) {
+                return true;
+            }
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(baos);
+            try {
+                if (mJournalRecordCount == 0) {
+                    data.writeInt(JOURNAL_MAGIC);
+                    data.writeLong(mJournalGeneration);
+                }
+                final ByteArrayOutputStream jobBytes = new ByteArrayOutputStream();
+                for (int i = 0; i < records.size(); i++) {
+                    final JournalRecord record = records.get(i);
+                    final JobStatus jobStatus = record.job;
+                    data.writeByte(record.removed ? JOURNAL_RECORD_REMOVE : JOURNAL_RECORD_ADD);
+                    data.writeInt(jobStatus.getUid());
+                    data.writeInt(jobStatus.getJobId());
+                    if (!record.removed) {
+                        jobBytes.reset();
+                        XmlSerializer out = new FastXmlSerializer();
+                        out.setOutput(jobBytes, StandardCharsets.UTF_8.name());
+                        out.startDocument(null, true);
+                        writeJobToXml(out, jobStatus);
+                        out.endDocument();
+                        data.writeInt(jobBytes.size());
+                        jobBytes.writeTo(data);
+                    }
+                }
+                data.flush();
+            } catch (IOException | XmlPullParserException e) {
+                Slog.e(TAG, "Error serializing job journal records.", e);
+                return false;
+            }
+
+            // A new journal overwrites whatever an older generation left behind.
+            try (FileOutputStream fos = new FileOutputStream(mJournalFile,
+                    mJournalRecordCount != 0)) {
+                baos.writeTo(fos);
+                FileUtils.sync(fos);
+            } catch (IOException e) {
+                Slog.e(TAG, "Error appending to job journal.", e);
+                return false;
+            }
+            mJournalRecordCount += records.size();
+            mDirtyOperations = 0;
+            return true;
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -578,6 +761,15 @@ public final class JobStore {
         private final JobSet jobSet;
         private final boolean rtcGood;
 
+        /** Journal generation of the snapshot that was loaded, or -1 if none could be loaded. */
+        long journalGeneration = -1;
+        /** Number of journal records replayed on top of the snapshot. */
+        int journalRecordCount;
+
+        // Generation attribute of the snapshot being parsed; absent in stores written before
+        // the journal existed, which then start out at generation 0.
+        private long mParsedGeneration;
+
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
          *               so that after disk read we can populate it directly.
@@ -605,7 +797,13 @@ public final class JobStore {
                             js.prepareLocked(am);
                             js.enqueueTime = now;
                             this.jobSet.add(js);
+                        }
+                        journalGeneration = mParsedGeneration;
+                        replayJournalLocked(am, now);
 
+                        final List<JobStatus> loaded = this.jobSet.getAllJobs();
+                        for (int i = 0; i < loaded.size(); i++) {
+                            final JobStatus js = loaded.get(i);
                             numJobs++;
                             if (js.getUid() == Process.SYSTEM_UID) {
                                 numSystemJobs++;
@@ -633,6 +831,75 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Applies the journal written since the loaded snapshot to {@link #jobSet}. A journal
+         * of another generation is stale and ignored; a torn last record is dropped.
+         */
+        private void replayJournalLocked(IActivityManager am, long now) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+                if (in.readInt() != JOURNAL_MAGIC || in.readLong() != journalGeneration) {
+                    Slog.i(TAG, "Ignoring stale job journal.");
+                    return;
+                }
+                while (true) {
+                    final int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    final int uid = in.readInt();
+                    final int jobId = in.readInt();
+                    JobStatus restored = null;
+                    if (type == JOURNAL_RECORD_ADD) {
+                        final byte[] payload = new byte[in.readInt()];
+                        in.readFully(payload);
+                        restored = restoreJobFromJournal(payload);
+                        if (restored == null) {
+                            Slog.d(TAG, "Error reading job from journal.");
+                        }
+                    } else if (type != JOURNAL_RECORD_REMOVE) {
+                        Slog.w(TAG, "Unknown job journal record " + type + ", ignoring rest.");
+                        break;
+                    }
+                    journalRecordCount++;
+
+                    final JobStatus existing = this.jobSet.get(uid, jobId);
+                    if (existing != null) {
+                        this.jobSet.remove(existing);
+                    }
+                    if (restored != null) {
+                        restored.prepareLocked(am);
+                        restored.enqueueTime = now;
+                        this.jobSet.add(restored);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Nothing changed since the snapshot was written.
+            } catch (EOFException e) {
+                Slog.w(TAG, "Job journal ends in a partial record.");
+            } catch (XmlPullParserException | IOException e) {
+                Slog.e(TAG, "Error replaying job journal.", e);
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Replayed " + journalRecordCount + " job journal records.");
+            }
+        }
+
+        private JobStatus restoreJobFromJournal(byte[] payload)
+                throws XmlPullParserException, IOException {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(payload), StandardCharsets.UTF_8.name());
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG &&
+                    eventType != XmlPullParser.END_DOCUMENT) {
+                eventType = parser.next();
+            }
+            if (eventType != XmlPullParser.START_TAG || !"job".equals(parser.getName())) {
+                return null;
+            }
+            return restoreJobFromXml(rtcGood, parser);
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
@@ -665,6 +932,14 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                final String generation =
+                        parser.getAttributeValue(null, XML_ATTR_JOURNAL_GENERATION);
+                try {
+                    mParsedGeneration = generation != null ? Long.parseLong(generation) : 0;
+                } catch (NumberFormatException e) {
+                    Slog.e(TAG, "Invalid journal generation, aborting jobs file read.");
+                    return null;
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
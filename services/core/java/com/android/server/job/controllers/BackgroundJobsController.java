@@ -162,7 +162,7 @@ public final class BackgroundJobsController extends StateController {
     private void updateJobRestrictionsLocked(int filterUid, int newActiveState) {
         final UpdateJobFunctor updateTrackedJobs = new UpdateJobFunctor(newActiveState);
 
-        final long start = DEBUG ? SystemClock.elapsedRealtimeNanos() : 0;
+        final long start = EvaluationStats.start();
 
         final JobStore store = mService.getJobStore();
         if (filterUid > 0) {
@@ -171,6 +171,7 @@ public final class BackgroundJobsController extends StateController {
             store.forEachJob(updateTrackedJobs);
         }
 
+        mEvaluationStats.noteEvaluation(start, updateTrackedJobs.mCheckedCount);
         final long time = DEBUG ? (SystemClock.elapsedRealtimeNanos() - start) : 0;
         if (DEBUG) {
             Slog.d(TAG, String.format(
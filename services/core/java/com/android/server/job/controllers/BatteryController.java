@@ -86,6 +86,7 @@ public final class BatteryController extends StateController {
             Slog.d(TAG, "maybeReportNewChargingStateLocked: " + stablePower);
         }
         boolean reportChange = false;
+        final long start = EvaluationStats.start();
         for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
             final JobStatus ts = mTrackedTasks.valueAt(i);
             boolean previous = ts.setChargingConstraintSatisfied(stablePower);
@@ -97,6 +98,7 @@ public final class BatteryController extends StateController {
                 reportChange = true;
             }
         }
+        mEvaluationStats.noteEvaluation(start, mTrackedTasks.size());
         if (stablePower || batteryNotLow) {
             // If one of our conditions has been satisfied, always schedule any newly ready jobs.
             mStateChangedListener.onRunJobNow(null);
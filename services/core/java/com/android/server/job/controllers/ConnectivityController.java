@@ -65,8 +65,12 @@ public final class ConnectivityController extends StateController implements
     private final ConnectivityManager mConnManager;
     private final NetworkPolicyManager mNetPolicyManager;
 
+    /**
+     * Tracked jobs keyed by source UID, since network and policy changes are evaluated per UID
+     * and a policy change for one UID should not visit the jobs of every other app.
+     */
     @GuardedBy("mLock")
-    private final ArraySet<JobStatus> mTrackedJobs = new ArraySet<>();
+    private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
     public ConnectivityController(JobSchedulerService service) {
         super(service);
@@ -87,7 +91,12 @@ public final class ConnectivityController extends StateController implements
     public void maybeStartTrackingJobLocked(JobStatus jobStatus, JobStatus lastJob) {
         if (jobStatus.hasConnectivityConstraint()) {
             updateConstraintsSatisfied(jobStatus);
-            mTrackedJobs.add(jobStatus);
+            ArraySet<JobStatus> jobs = mTrackedJobs.get(jobStatus.getSourceUid());
+            if (jobs == null) {
+                jobs = new ArraySet<>();
+                mTrackedJobs.put(jobStatus.getSourceUid(), jobs);
+            }
+            jobs.add(jobStatus);
             jobStatus.setTrackingController(JobStatus.TRACKING_CONNECTIVITY);
         }
     }
@@ -97,7 +106,10 @@ public final class ConnectivityController extends StateController implements
     public void maybeStopTrackingJobLocked(JobStatus jobStatus, JobStatus incomingJob,
             boolean forUpdate) {
         if (jobStatus.clearTrackingController(JobStatus.TRACKING_CONNECTIVITY)) {
-            mTrackedJobs.remove(jobStatus);
+            final ArraySet<JobStatus> jobs = mTrackedJobs.get(jobStatus.getSourceUid());
+            if (jobs != null && jobs.remove(jobStatus) && jobs.isEmpty()) {
+                mTrackedJobs.remove(jobStatus.getSourceUid());
+            }
         }
     }
 
@@ -244,45 +256,60 @@ public final class ConnectivityController extends StateController implements
         synchronized (mLock) {
             // Since this is a really hot codepath, temporarily cache any
             // answers that we get from ConnectivityManager.
-            final SparseArray<Network> uidToNetwork = new SparseArray<>();
             final SparseArray<NetworkCapabilities> networkToCapabilities = new SparseArray<>();
+            final long start = EvaluationStats.start();
+            int checked = 0;
 
             boolean changed = false;
-            for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                final int uid = js.getSourceUid();
-
-                final boolean uidMatch = (filterUid == -1 || filterUid == uid);
-                if (uidMatch) {
-                    Network network = uidToNetwork.get(uid);
-                    if (network == null) {
-                        network = mConnManager.getActiveNetworkForUid(uid);
-                        uidToNetwork.put(uid, network);
-                    }
-
-                    // Update either when we have a network match, or when the
-                    // job hasn't yet been evaluated against the currently
-                    // active network; typically when we just lost a network.
-                    final boolean networkMatch = (filterNetwork == null
-                            || Objects.equals(filterNetwork, network));
-                    final boolean forceUpdate = !Objects.equals(js.network, network);
-                    if (networkMatch || forceUpdate) {
-                        final int netId = network != null ? network.netId : -1;
-                        NetworkCapabilities capabilities = networkToCapabilities.get(netId);
-                        if (capabilities == null) {
-                            capabilities = mConnManager.getNetworkCapabilities(network);
-                            networkToCapabilities.put(netId, capabilities);
-                        }
-                        changed |= updateConstraintsSatisfied(js, network, capabilities);
-                    }
+            if (filterUid == -1) {
+                for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
+                    final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                    changed |= updateTrackedJobsForUidLocked(mTrackedJobs.keyAt(i), jobs,
+                            filterNetwork, networkToCapabilities);
+                    checked += jobs.size();
+                }
+            } else {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.get(filterUid);
+                if (jobs != null) {
+                    changed = updateTrackedJobsForUidLocked(filterUid, jobs, filterNetwork,
+                            networkToCapabilities);
+                    checked = jobs.size();
                 }
             }
+            mEvaluationStats.noteEvaluation(start, checked);
             if (changed) {
                 mStateChangedListener.onControllerStateChanged();
             }
         }
     }
 
+    @GuardedBy("mLock")
+    private boolean updateTrackedJobsForUidLocked(int uid, ArraySet<JobStatus> jobs,
+            Network filterNetwork, SparseArray<NetworkCapabilities> networkToCapabilities) {
+        final Network network = mConnManager.getActiveNetworkForUid(uid);
+        boolean changed = false;
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            final JobStatus js = jobs.valueAt(i);
+
+            // Update either when we have a network match, or when the
+            // job hasn't yet been evaluated against the currently
+            // active network; typically when we just lost a network.
+            final boolean networkMatch = (filterNetwork == null
+                    || Objects.equals(filterNetwork, network));
+            final boolean forceUpdate = !Objects.equals(js.network, network);
+            if (networkMatch || forceUpdate) {
+                final int netId = network != null ? network.netId : -1;
+                NetworkCapabilities capabilities = networkToCapabilities.get(netId);
+                if (capabilities == null) {
+                    capabilities = mConnManager.getNetworkCapabilities(network);
+                    networkToCapabilities.put(netId, capabilities);
+                }
+                changed |= updateConstraintsSatisfied(js, network, capabilities);
+            }
+        }
+        return changed;
+    }
+
     /**
      * We know the network has just come up. We want to run any jobs that are ready.
      */
@@ -290,12 +317,15 @@ public final class ConnectivityController extends StateController implements
     public void onNetworkActive() {
         synchronized (mLock) {
             for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (js.isReady()) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "Running " + js + " due to network activity.");
+                final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                for (int j = jobs.size() - 1; j >= 0; j--) {
+                    final JobStatus js = jobs.valueAt(j);
+                    if (js.isReady()) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Running " + js + " due to network activity.");
+                        }
+                        mStateChangedListener.onRunJobNow(js);
                     }
-                    mStateChangedListener.onRunJobNow(js);
                 }
             }
         }
@@ -334,15 +364,18 @@ public final class ConnectivityController extends StateController implements
     public void dumpControllerStateLocked(IndentingPrintWriter pw,
             Predicate<JobStatus> predicate) {
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (predicate.test(js)) {
-                pw.print("#");
-                js.printUniqueId(pw);
-                pw.print(" from ");
-                UserHandle.formatUid(pw, js.getSourceUid());
-                pw.print(": ");
-                pw.print(js.getJob().getRequiredNetwork());
-                pw.println();
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (predicate.test(js)) {
+                    pw.print("#");
+                    js.printUniqueId(pw);
+                    pw.print(" from ");
+                    UserHandle.formatUid(pw, js.getSourceUid());
+                    pw.print(": ");
+                    pw.print(js.getJob().getRequiredNetwork());
+                    pw.println();
+                }
             }
         }
     }
@@ -355,20 +388,25 @@ public final class ConnectivityController extends StateController implements
         final long mToken = proto.start(StateControllerProto.CONNECTIVITY);
 
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (!predicate.test(js)) {
-                continue;
-            }
-            final long jsToken = proto.start(StateControllerProto.ConnectivityController.TRACKED_JOBS);
-            js.writeToShortProto(proto, StateControllerProto.ConnectivityController.TrackedJob.INFO);
-            proto.write(StateControllerProto.ConnectivityController.TrackedJob.SOURCE_UID,
-                    js.getSourceUid());
-            NetworkRequest rn = js.getJob().getRequiredNetwork();
-            if (rn != null) {
-                rn.writeToProto(proto,
-                        StateControllerProto.ConnectivityController.TrackedJob.REQUIRED_NETWORK);
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (!predicate.test(js)) {
+                    continue;
+                }
+                final long jsToken =
+                        proto.start(StateControllerProto.ConnectivityController.TRACKED_JOBS);
+                js.writeToShortProto(proto,
+                        StateControllerProto.ConnectivityController.TrackedJob.INFO);
+                proto.write(StateControllerProto.ConnectivityController.TrackedJob.SOURCE_UID,
+                        js.getSourceUid());
+                NetworkRequest rn = js.getJob().getRequiredNetwork();
+                if (rn != null) {
+                    rn.writeToProto(proto, StateControllerProto.ConnectivityController
+                            .TrackedJob.REQUIRED_NETWORK);
+                }
+                proto.end(jsToken);
             }
-            proto.end(jsToken);
         }
 
         proto.end(mToken);
@@ -104,9 +104,11 @@ public final class DeviceIdleJobsController extends StateController {
                                     + Arrays.toString(mPowerSaveTempWhitelistAppIds));
                         }
                         boolean changed = false;
+                        final long start = EvaluationStats.start();
                         for (int i = 0; i < mAllowInIdleJobs.size(); i++) {
                             changed |= updateTaskStateLocked(mAllowInIdleJobs.valueAt(i));
                         }
+                        mEvaluationStats.noteEvaluation(start, mAllowInIdleJobs.size());
                         if (changed) {
                             mStateChangedListener.onControllerStateChanged();
                         }
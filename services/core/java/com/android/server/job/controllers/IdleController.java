@@ -78,9 +78,11 @@ public final class IdleController extends StateController {
      */
     void reportNewIdleState(boolean isIdle) {
         synchronized (mLock) {
+            final long start = EvaluationStats.start();
             for (int i = mTrackedTasks.size()-1; i >= 0; i--) {
                 mTrackedTasks.valueAt(i).setIdleConstraintSatisfied(isIdle);
             }
+            mEvaluationStats.noteEvaluation(start, mTrackedTasks.size());
         }
         mStateChangedListener.onControllerStateChanged();
     }
@@ -17,6 +17,7 @@
 package com.android.server.job.controllers;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.util.IndentingPrintWriter;
@@ -38,6 +39,9 @@ public abstract class StateController {
     protected final Object mLock;
     protected final Constants mConstants;
 
+    /** Time spent re-evaluating tracked jobs after state changes, guarded by mLock. */
+    protected final EvaluationStats mEvaluationStats = new EvaluationStats();
+
     StateController(JobSchedulerService service) {
         mService = service;
         mStateChangedListener = service;
@@ -73,4 +77,53 @@ public abstract class StateController {
             Predicate<JobStatus> predicate);
     public abstract void dumpControllerStateLocked(ProtoOutputStream proto, long fieldId,
             Predicate<JobStatus> predicate);
+
+    /** Prints how often and for how long this controller re-evaluated its jobs. */
+    public void dumpEvaluationStatsLocked(IndentingPrintWriter pw) {
+        mEvaluationStats.dump(pw);
+    }
+
+    /**
+     * Count, total and maximum duration of passes over jobs, reported in dumpsys so that the
+     * cost of a state change can be attributed to whoever evaluates the affected jobs.
+     */
+    public static final class EvaluationStats {
+        private long mCount;
+        private long mJobCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        /** Returns the start time to later pass to {@link #noteEvaluation}. */
+        public static long start() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        /**
+         * Records one pass that started at {@code startNanos} and looked at {@code jobCount} jobs.
+         */
+        public void noteEvaluation(long startNanos, int jobCount) {
+            final long duration = SystemClock.elapsedRealtimeNanos() - startNanos;
+            mCount++;
+            mJobCount += jobCount;
+            mTotalNanos += duration;
+            if (duration > mMaxNanos) {
+                mMaxNanos = duration;
+            }
+        }
+
+        public void dump(IndentingPrintWriter pw) {
+            pw.print("Evaluations: ");
+            pw.print(mCount);
+            if (mCount > 0) {
+                pw.print(", avg jobs=");
+                pw.print(mJobCount / mCount);
+                pw.print(", avg=");
+                pw.print(mTotalNanos / mCount / 1000);
+                pw.print("us, max=");
+                pw.print(mMaxNanos / 1000);
+                pw.print("us");
+            }
+            pw.println();
+        }
+    }
 }
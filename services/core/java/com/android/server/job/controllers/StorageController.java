@@ -79,6 +79,7 @@ public final class StorageController extends StateController {
         final boolean storageNotLow = mStorageTracker.isStorageNotLow();
         boolean reportChange = false;
         synchronized (mLock) {
+            final long start = EvaluationStats.start();
             for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
                 final JobStatus ts = mTrackedTasks.valueAt(i);
                 boolean previous = ts.setStorageNotLowConstraintSatisfied(storageNotLow);
@@ -86,6 +87,7 @@ public final class StorageController extends StateController {
                     reportChange = true;
                 }
             }
+            mEvaluationStats.noteEvaluation(start, mTrackedTasks.size());
         }
         // Let the scheduler know that state has changed. This may or may not result in an
         // execution.
@@ -162,6 +162,8 @@ public final class TimeController extends StateController {
             int nextExpiryUid = 0;
             String nextExpiryPackageName = null;
             final long nowElapsedMillis = sElapsedRealtimeClock.millis();
+            final long start = EvaluationStats.start();
+            int checked = 0;
 
             Iterator<JobStatus> it = mTrackedJobs.iterator();
             while (it.hasNext()) {
@@ -169,6 +171,7 @@ public final class TimeController extends StateController {
                 if (!job.hasDeadlineConstraint()) {
                     continue;
                 }
+                checked++;
 
                 if (evaluateDeadlineConstraint(job, nowElapsedMillis)) {
                     mStateChangedListener.onRunJobNow(job);
@@ -180,6 +183,7 @@ public final class TimeController extends StateController {
                     break;
                 }
             }
+            mEvaluationStats.noteEvaluation(start, checked);
             setDeadlineExpiredAlarmLocked(nextExpiryTime,
                     deriveWorkSource(nextExpiryUid, nextExpiryPackageName));
         }
@@ -209,12 +213,15 @@ public final class TimeController extends StateController {
             int nextDelayUid = 0;
             String nextDelayPackageName = null;
             boolean ready = false;
+            final long start = EvaluationStats.start();
+            int checked = 0;
             Iterator<JobStatus> it = mTrackedJobs.iterator();
             while (it.hasNext()) {
                 final JobStatus job = it.next();
                 if (!job.hasTimingDelayConstraint()) {
                     continue;
                 }
+                checked++;
                 if (evaluateTimingDelayConstraint(job, nowElapsedMillis)) {
                     if (canStopTrackingJobLocked(job)) {
                         it.remove();
@@ -233,6 +240,7 @@ public final class TimeController extends StateController {
                     }
                 }
             }
+            mEvaluationStats.noteEvaluation(start, checked);
             if (ready) {
                 mStateChangedListener.onControllerStateChanged();
             }
@@ -49,6 +49,7 @@ import android.util.IntArray;
 import android.util.MathUtils;
 import android.util.Range;
 import android.util.Slog;
+import android.util.SparseLongArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -654,6 +655,43 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Like {@link #removeUids(int[])}, but only for buckets up to the one containing the time
+     * each UID was removed, given in {@code removedMillis} by UID. Later buckets belong to a
+     * new app that was assigned the same UID, and are kept.
+     */
+    public void removeUidsBefore(SparseLongArray removedMillis) {
+        if (removedMillis.size() == 0) return;
+        final ArrayList<Key> knownKeys = Lists.newArrayList();
+        knownKeys.addAll(mStats.keySet());
+
+        for (Key key : knownKeys) {
+            final int index = removedMillis.indexOfKey(key.uid);
+            if (index < 0) continue;
+            final NetworkStatsHistory uidHistory = mStats.get(key);
+            // the bucket the UID was removed in is attributed to the removed app
+            final long duration = uidHistory.getBucketDuration();
+            final long removed = (removedMillis.valueAt(index) / duration + 1) * duration;
+            if (uidHistory.getStart() >= removed) continue;
+
+            // only migrate combined TAG_NONE history
+            if (key.tag == TAG_NONE) {
+                final NetworkStatsHistory removedHistory = findOrCreateHistory(
+                        key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
+                removedHistory.recordHistory(uidHistory, Long.MIN_VALUE, removed);
+            }
+            final NetworkStatsHistory kept = new NetworkStatsHistory(
+                    uidHistory.getBucketDuration(), uidHistory.size());
+            kept.recordHistory(uidHistory, removed, Long.MAX_VALUE);
+            if (kept.size() > 0) {
+                mStats.put(key, kept);
+            } else {
+                mStats.remove(key);
+            }
+            mDirty = true;
+        }
+    }
+
     private void noteRecordedHistory(long startMillis, long endMillis, long totalBytes) {
         if (startMillis < mStartMillis) mStartMillis = startMillis;
         if (endMillis > mEndMillis) mEndMillis = endMillis;
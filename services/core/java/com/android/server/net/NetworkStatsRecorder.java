@@ -32,9 +32,11 @@ import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
 import android.service.NetworkStatsRecorderProto;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
+import android.util.SparseLongArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.net.VpnInfo;
@@ -45,14 +47,19 @@ import libcore.io.IoUtils;
 
 import com.google.android.collect.Sets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.net.ProtocolException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
@@ -63,6 +70,10 @@ import java.util.Map;
  * Keeps pending changes in memory until they pass a specific threshold, in
  * bytes. Uses {@link FileRotator} for persistence logic if present.
  * <p>
+ * Persisted history keeps the {@link NetworkStatsCollection} file format. Only UID
+ * removal differs when a removed UIDs file is given: removed UIDs are kept as tombstones
+ * and filtered out as history is loaded, instead of rewriting every file.
+ * <p>
  * Not inherently thread safe.
  */
 public class NetworkStatsRecorder {
@@ -75,6 +86,10 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverFromWtf()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    private static final int REMOVED_UIDS_VERSION = 1;
+    /** Removed UIDs kept as tombstones before persisted history is rewritten without them. */
+    private static final int MAX_REMOVED_UIDS = 64;
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -83,6 +98,13 @@ public class NetworkStatsRecorder {
     private final long mBucketDuration;
     private final boolean mOnlyTags;
 
+    /**
+     * UIDs removed since persisted history was last rewritten, with the time of removal.
+     * Their history is migrated to {@link TrafficStats#UID_REMOVED} as it is loaded.
+     */
+    private final SparseLongArray mRemovedUids = new SparseLongArray();
+    private final AtomicFile mRemovedUidsFile;
+
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
 
@@ -106,6 +128,7 @@ public class NetworkStatsRecorder {
         // slack to avoid overflow
         mBucketDuration = YEAR_IN_MILLIS;
         mOnlyTags = false;
+        mRemovedUidsFile = null;
 
         mPending = null;
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
@@ -114,10 +137,21 @@ public class NetworkStatsRecorder {
     }
 
     /**
-     * Persisted recorder.
+     * Persisted recorder, rewriting all persisted history whenever UIDs are removed.
      */
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags) {
+        this(rotator, observer, dropBox, cookie, bucketDuration, onlyTags, null);
+    }
+
+    /**
+     * Persisted recorder. When {@code removedUidsFile} is given, removed UIDs are recorded
+     * there and filtered out of history as it is loaded, and persisted history is only
+     * rewritten once {@link #MAX_REMOVED_UIDS} have accumulated.
+     */
+    public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            @Nullable File removedUidsFile) {
         mRotator = checkNotNull(rotator, "missing FileRotator");
         mObserver = checkNotNull(observer, "missing NonMonotonicObserver");
         mDropBox = checkNotNull(dropBox, "missing DropBoxManager");
@@ -125,6 +159,8 @@ public class NetworkStatsRecorder {
 
         mBucketDuration = bucketDuration;
         mOnlyTags = onlyTags;
+        mRemovedUidsFile = removedUidsFile != null ? new AtomicFile(removedUidsFile) : null;
+        readRemovedUidsLocked();
 
         mPending = new NetworkStatsCollection(bucketDuration);
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
@@ -190,6 +226,7 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
             mRotator.readMatching(res, start, end);
+            res.removeUidsBefore(mRemovedUids);
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -329,16 +366,36 @@ public class NetworkStatsRecorder {
      * to {@link TrafficStats#UID_REMOVED}.
      */
     public void removeUidsLocked(int[] uids) {
+        removeUidsLocked(uids, System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the given UID from all {@link FileRotator} history, migrating it
+     * to {@link TrafficStats#UID_REMOVED}. With a removed UIDs file the persisted
+     * history is left alone and the UIDs are filtered out when it is loaded.
+     */
+    public void removeUidsLocked(int[] uids, long currentTimeMillis) {
         if (mRotator != null) {
-            try {
-                // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverFromWtf();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverFromWtf();
+            if (mRemovedUidsFile != null) {
+                for (int uid : uids) {
+                    mRemovedUids.put(uid, currentTimeMillis);
+                }
+                if (mRemovedUids.size() > MAX_REMOVED_UIDS) {
+                    compactRemovedUidsLocked();
+                } else {
+                    writeRemovedUidsLocked();
+                }
+            } else {
+                try {
+                    // Rewrite all persisted data to migrate UID stats
+                    mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                    recoverFromWtf();
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                    recoverFromWtf();
+                }
             }
         }
 
@@ -361,6 +418,65 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Rewrite all persisted history without the UIDs removed so far, after which
+     * they no longer need to be filtered on load.
+     */
+    private void compactRemovedUidsLocked() {
+        if (LOGD) Slog.d(TAG, "compactRemovedUidsLocked() for " + mRemovedUids.size() + " UIDs");
+        try {
+            mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, mRemovedUids));
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem removing UIDs " + mRemovedUids, e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem removing UIDs " + mRemovedUids, e);
+            recoverFromWtf();
+        }
+        mRemovedUids.clear();
+        writeRemovedUidsLocked();
+    }
+
+    private void readRemovedUidsLocked() {
+        if (mRemovedUidsFile == null || !mRemovedUidsFile.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mRemovedUidsFile.openRead()));
+            final int version = in.readInt();
+            if (version != REMOVED_UIDS_VERSION) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final int uid = in.readInt();
+                mRemovedUids.put(uid, in.readLong());
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "problem reading removed UIDs for " + mCookie, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeRemovedUidsLocked() {
+        FileOutputStream fos = null;
+        try {
+            fos = mRemovedUidsFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(REMOVED_UIDS_VERSION);
+            out.writeInt(mRemovedUids.size());
+            for (int i = 0; i < mRemovedUids.size(); i++) {
+                out.writeInt(mRemovedUids.keyAt(i));
+                out.writeLong(mRemovedUids.valueAt(i));
+            }
+            out.flush();
+            mRemovedUidsFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "problem writing removed UIDs for " + mCookie, e);
+            mRemovedUidsFile.failWrite(fos);
+        }
+    }
+
     /**
      * Rewriter that will combine current {@link NetworkStatsCollection} values
      * with anything read from disk, and write combined set to disk. Clears the
@@ -402,10 +518,19 @@ public class NetworkStatsRecorder {
     public static class RemoveUidRewriter implements FileRotator.Rewriter {
         private final NetworkStatsCollection mTemp;
         private final int[] mUids;
+        private final SparseLongArray mRemovedMillis;
 
         public RemoveUidRewriter(long bucketDuration, int[] uids) {
             mTemp = new NetworkStatsCollection(bucketDuration);
             mUids = uids;
+            mRemovedMillis = null;
+        }
+
+        /** Only removes history recorded before each UID was removed, by UID. */
+        public RemoveUidRewriter(long bucketDuration, SparseLongArray removedMillis) {
+            mTemp = new NetworkStatsCollection(bucketDuration);
+            mUids = null;
+            mRemovedMillis = removedMillis;
         }
 
         @Override
@@ -417,7 +542,11 @@ public class NetworkStatsRecorder {
         public void read(InputStream in) throws IOException {
             mTemp.read(in);
             mTemp.clearDirty();
-            mTemp.removeUids(mUids);
+            if (mRemovedMillis != null) {
+                mTemp.removeUidsBefore(mRemovedMillis);
+            } else {
+                mTemp.removeUids(mUids);
+            }
         }
 
         @Override
@@ -475,6 +604,9 @@ public class NetworkStatsRecorder {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (mRemovedUidsFile != null) {
+            pw.print("Removed UIDs pending rewrite: "); pw.println(mRemovedUids.size());
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
@@ -517,5 +649,9 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        if (mRemovedUidsFile != null) {
+            mRemovedUids.clear();
+            mRemovedUidsFile.delete();
+        }
     }
 }
@@ -211,6 +211,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private static final String PREFIX_UID = "uid";
     private static final String PREFIX_UID_TAG = "uid_tag";
 
+    /** Suffix of the file each recorder keeps its removed UIDs in, see NetworkStatsRecorder. */
+    private static final String SUFFIX_REMOVED_UIDS = ".removed";
+
     /**
      * Virtual network interface for video telephony. This is for VT data usage counting purpose.
      */
@@ -439,7 +442,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 Context.DROPBOX_SERVICE);
         return new NetworkStatsRecorder(new FileRotator(
                 mBaseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
-                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags);
+                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
+                new File(mBaseDir, prefix + SUFFIX_REMOVED_UIDS));
     }
 
     @GuardedBy("mStatsLock")
@@ -1381,8 +1385,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // Perform one last poll before removing
         performPollLocked(FLAG_PERSIST_ALL);
 
-        mUidRecorder.removeUidsLocked(uids);
-        mUidTagRecorder.removeUidsLocked(uids);
+        final long currentTime = mClock.millis();
+        mUidRecorder.removeUidsLocked(uids, currentTime);
+        mUidTagRecorder.removeUidsLocked(uids, currentTime);
 
         // Clear kernel stats associated with UID
         for (int uid : uids) {
@@ -232,6 +232,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -363,6 +364,9 @@ public class NotificationManagerService extends SystemService {
     final ArrayList<NotificationRecord> mNotificationList = new ArrayList<>();
     @GuardedBy("mNotificationLock")
     final ArrayMap<String, NotificationRecord> mNotificationsByKey = new ArrayMap<>();
+    // Indexes the records in mNotificationList; updated wherever that list is.
+    @GuardedBy("mNotificationLock")
+    final NotificationRecordIndex mNotificationIndex = new NotificationRecordIndex();
     @GuardedBy("mNotificationLock")
     final ArrayList<NotificationRecord> mEnqueuedNotifications = new ArrayList<>();
     @GuardedBy("mNotificationLock")
@@ -1289,6 +1293,7 @@ public class NotificationManagerService extends SystemService {
         mEnqueuedNotifications.clear();
         mNotificationList.clear();
         mNotificationsByKey.clear();
+        mNotificationIndex.clear();
         mSummaryByGroupKey.clear();
     }
 
@@ -1296,6 +1301,7 @@ public class NotificationManagerService extends SystemService {
     void addNotification(NotificationRecord r) {
         mNotificationList.add(r);
         mNotificationsByKey.put(r.sbn.getKey(), r);
+        mNotificationIndex.add(r);
         if (r.sbn.isGroup()) {
             mSummaryByGroupKey.put(r.getGroupKey(), r);
         }
@@ -3943,6 +3949,7 @@ public class NotificationManagerService extends SystemService {
                     r.dump(pw, "      ", getContext(), filter.redact);
                 }
             }
+            mNotificationIndex.dump(pw, "  ");
 
             if (!zenOnly) {
                 pw.println("\n  Usage Stats:");
@@ -4243,11 +4250,11 @@ public class NotificationManagerService extends SystemService {
     protected int getNotificationCountLocked(String pkg, int userId, int excludedId,
             String excludedTag) {
         int count = 0;
-        final int N = mNotificationList.size();
+        final ArraySet<NotificationRecord> posted = mNotificationIndex.getByPackage(pkg);
+        final int N = posted != null ? posted.size() : 0;
         for (int i = 0; i < N; i++) {
-            final NotificationRecord existing = mNotificationList.get(i);
-            if (existing.sbn.getPackageName().equals(pkg)
-                    && existing.sbn.getUserId() == userId) {
+            final NotificationRecord existing = posted.valueAt(i);
+            if (existing.sbn.getUserId() == userId) {
                 if (existing.sbn.getId() == excludedId
                         && TextUtils.equals(existing.sbn.getTag(), excludedTag)) {
                     continue;
@@ -4474,6 +4481,7 @@ public class NotificationManagerService extends SystemService {
                     } else {
                         old = mNotificationList.get(index);
                         mNotificationList.set(index, r);
+                        mNotificationIndex.remove(old);
                         mUsageStats.registerUpdatedByApp(r, old);
                         // Make sure we don't lose the foreground service state.
                         notification.flags |=
@@ -4483,6 +4491,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     mNotificationsByKey.put(n.getKey(), r);
+                    mNotificationIndex.add(r);
 
                     // Ensure if this is a foreground service that the proper additional
                     // flags are set.
@@ -4492,7 +4501,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.sort(mNotificationList, r);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -5225,7 +5234,7 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            mRankingHelper.sort(mNotificationList, record);
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             float contactAffinityAfter = record.getContactAffinity();
@@ -5268,6 +5277,8 @@ public class NotificationManagerService extends SystemService {
                 userSentimentBefore.add(r.getUserSentiment());
                 suppressVisuallyBefore.add(r.getSuppressedVisualEffects());
                 mRankingHelper.extractSignals(r);
+                // Adjustments may have overridden the group key
+                mNotificationIndex.update(r);
             }
             mRankingHelper.sort(mNotificationList);
             for (int i = 0; i < N; i++) {
@@ -5452,10 +5463,10 @@ public class NotificationManagerService extends SystemService {
         // effectively the same notification.
         boolean wasPosted = false;
         NotificationRecord recordInList = null;
-        if ((recordInList = findNotificationByListLocked(mNotificationList, r.getKey()))
-                != null) {
+        if ((recordInList = mNotificationsByKey.get(r.getKey())) != null) {
             mNotificationList.remove(recordInList);
             mNotificationsByKey.remove(recordInList.sbn.getKey());
+            mNotificationIndex.remove(recordInList);
             wasPosted = true;
         }
         while ((recordInList = findNotificationByListLocked(mEnqueuedNotifications, r.getKey()))
@@ -5847,35 +5858,55 @@ public class NotificationManagerService extends SystemService {
             String channelId, FlagChecker flagChecker, boolean includeCurrentProfiles, int userId,
             boolean sendDelete, int reason, String listenerName, boolean wasPosted) {
         ArrayList<NotificationRecord> canceledNotifications = null;
-        for (int i = notificationList.size() - 1; i >= 0; --i) {
-            NotificationRecord r = notificationList.get(i);
-            if (includeCurrentProfiles) {
-                if (!notificationMatchesCurrentProfiles(r, userId)) {
-                    continue;
-                }
-            } else if (!notificationMatchesUserId(r, userId)) {
-                continue;
-            }
-            // Don't remove notifications to all, if there's no package name specified
-            if (nullPkgIndicatesUserSwitch && pkg == null && r.getUserId() == UserHandle.USER_ALL) {
-                continue;
+        if (notificationList == mNotificationList && pkg != null) {
+            // Only match the package's (or channel's) posted notifications, then take the hits
+            // out of the list in one pass, newest first like the scan below.
+            final ArraySet<NotificationRecord> indexed = channelId != null
+                    ? mNotificationIndex.getByChannel(pkg, channelId)
+                    : mNotificationIndex.getByPackage(pkg);
+            if (indexed == null) {
+                return;
             }
-            if (!flagChecker.apply(r.getFlags())) {
-                continue;
+            ArraySet<NotificationRecord> hits = null;
+            for (int i = 0; i < indexed.size(); i++) {
+                final NotificationRecord r = indexed.valueAt(i);
+                if (shouldCancelLocked(r, pkg, nullPkgIndicatesUserSwitch, channelId,
+                        flagChecker, includeCurrentProfiles, userId)) {
+                    if (hits == null) {
+                        hits = new ArraySet<>();
+                    }
+                    hits.add(r);
+                }
             }
-            if (pkg != null && !r.sbn.getPackageName().equals(pkg)) {
-                continue;
+            if (hits == null) {
+                return;
             }
-            if (channelId != null && !channelId.equals(r.getChannel().getId())) {
-                continue;
+            canceledNotifications = removeInPostOrderLocked(notificationList, hits);
+            for (int i = 0; i < canceledNotifications.size(); i++) {
+                final NotificationRecord r = canceledNotifications.get(i);
+                mNotificationsByKey.remove(r.getKey());
+                mNotificationIndex.remove(r);
+                cancelNotificationLocked(r, sendDelete, reason, wasPosted, listenerName);
             }
-            if (canceledNotifications == null) {
-                canceledNotifications = new ArrayList<>();
+        } else {
+            for (int i = notificationList.size() - 1; i >= 0; --i) {
+                NotificationRecord r = notificationList.get(i);
+                if (!shouldCancelLocked(r, pkg, nullPkgIndicatesUserSwitch, channelId,
+                        flagChecker, includeCurrentProfiles, userId)) {
+                    continue;
+                }
+                if (canceledNotifications == null) {
+                    canceledNotifications = new ArrayList<>();
+                }
+                notificationList.remove(i);
+                if (notificationList == mNotificationList) {
+                    // Enqueued records are not in mNotificationsByKey, don't drop a posted one
+                    mNotificationsByKey.remove(r.getKey());
+                    mNotificationIndex.remove(r);
+                }
+                canceledNotifications.add(r);
+                cancelNotificationLocked(r, sendDelete, reason, wasPosted, listenerName);
             }
-            notificationList.remove(i);
-            mNotificationsByKey.remove(r.getKey());
-            canceledNotifications.add(r);
-            cancelNotificationLocked(r, sendDelete, reason, wasPosted, listenerName);
         }
         if (canceledNotifications != null) {
             final int M = canceledNotifications.size();
@@ -5887,6 +5918,54 @@ public class NotificationManagerService extends SystemService {
         }
     }
 
+    /**
+     * Takes {@code records} out of {@code notificationList} in one pass and returns them newest
+     * first, the order a scan from the end of the list would cancel them in.
+     */
+    private ArrayList<NotificationRecord> removeInPostOrderLocked(
+            ArrayList<NotificationRecord> notificationList, ArraySet<NotificationRecord> records) {
+        final ArrayList<NotificationRecord> removed = new ArrayList<>(records.size());
+        final int N = notificationList.size();
+        int kept = 0;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord r = notificationList.get(i);
+            if (records.contains(r)) {
+                removed.add(r);
+            } else {
+                notificationList.set(kept++, r);
+            }
+        }
+        notificationList.subList(kept, N).clear();
+        Collections.reverse(removed);
+        return removed;
+    }
+
+    private boolean shouldCancelLocked(NotificationRecord r, String pkg,
+            boolean nullPkgIndicatesUserSwitch, String channelId, FlagChecker flagChecker,
+            boolean includeCurrentProfiles, int userId) {
+        if (includeCurrentProfiles) {
+            if (!notificationMatchesCurrentProfiles(r, userId)) {
+                return false;
+            }
+        } else if (!notificationMatchesUserId(r, userId)) {
+            return false;
+        }
+        // Don't remove notifications to all, if there's no package name specified
+        if (nullPkgIndicatesUserSwitch && pkg == null && r.getUserId() == UserHandle.USER_ALL) {
+            return false;
+        }
+        if (!flagChecker.apply(r.getFlags())) {
+            return false;
+        }
+        if (pkg != null && !r.sbn.getPackageName().equals(pkg)) {
+            return false;
+        }
+        if (channelId != null && !channelId.equals(r.getChannel().getId())) {
+            return false;
+        }
+        return true;
+    }
+
     void snoozeNotificationInt(String key, long duration, String snoozeCriterionId,
             ManagedServiceInfo listener) {
         String listenerName = listener == null ? null : listener.component.toShortString();
@@ -5974,22 +6053,61 @@ public class NotificationManagerService extends SystemService {
         final String pkg = parentNotification.sbn.getPackageName();
         final int userId = parentNotification.getUserId();
         final int reason = REASON_GROUP_SUMMARY_CANCELED;
+        final String groupKey = parentNotification.getGroupKey();
+        if (notificationList == mNotificationList) {
+            // Only match the group's posted notifications, then take the hits out of the list
+            // in one pass, newest first like the scan below.
+            final ArraySet<NotificationRecord> indexed = mNotificationIndex.getByGroupKey(groupKey);
+            if (indexed == null) {
+                return;
+            }
+            ArraySet<NotificationRecord> hits = null;
+            for (int i = 0; i < indexed.size(); i++) {
+                final NotificationRecord childR = indexed.valueAt(i);
+                if (shouldCancelGroupChildLocked(childR, groupKey, flagChecker)) {
+                    if (hits == null) {
+                        hits = new ArraySet<>();
+                    }
+                    hits.add(childR);
+                }
+            }
+            if (hits == null) {
+                return;
+            }
+            final ArrayList<NotificationRecord> children =
+                    removeInPostOrderLocked(notificationList, hits);
+            for (int i = 0; i < children.size(); i++) {
+                final NotificationRecord childR = children.get(i);
+                EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg,
+                        childR.sbn.getId(), childR.sbn.getTag(), userId, 0, 0, reason,
+                        listenerName);
+                mNotificationsByKey.remove(childR.getKey());
+                mNotificationIndex.remove(childR);
+                cancelNotificationLocked(childR, sendDelete, reason, wasPosted, listenerName);
+            }
+            return;
+        }
         for (int i = notificationList.size() - 1; i >= 0; i--) {
             final NotificationRecord childR = notificationList.get(i);
             final StatusBarNotification childSbn = childR.sbn;
-            if ((childSbn.isGroup() && !childSbn.getNotification().isGroupSummary()) &&
-                    childR.getGroupKey().equals(parentNotification.getGroupKey())
-                    && (childR.getFlags() & FLAG_FOREGROUND_SERVICE) == 0
-                    && (flagChecker == null || flagChecker.apply(childR.getFlags()))) {
+            if (shouldCancelGroupChildLocked(childR, groupKey, flagChecker)) {
                 EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg, childSbn.getId(),
                         childSbn.getTag(), userId, 0, 0, reason, listenerName);
                 notificationList.remove(i);
-                mNotificationsByKey.remove(childR.getKey());
                 cancelNotificationLocked(childR, sendDelete, reason, wasPosted, listenerName);
             }
         }
     }
 
+    private boolean shouldCancelGroupChildLocked(NotificationRecord childR, String groupKey,
+            FlagChecker flagChecker) {
+        final StatusBarNotification childSbn = childR.sbn;
+        return (childSbn.isGroup() && !childSbn.getNotification().isGroupSummary())
+                && childR.getGroupKey().equals(groupKey)
+                && (childR.getFlags() & FLAG_FOREGROUND_SERVICE) == 0
+                && (flagChecker == null || flagChecker.apply(childR.getFlags()));
+    }
+
     @GuardedBy("mNotificationLock")
     void updateLightsLocked()
     {
@@ -6021,7 +6139,16 @@ public class NotificationManagerService extends SystemService {
     @NonNull List<NotificationRecord> findGroupNotificationsLocked(String pkg,
             String groupKey, int userId) {
         List<NotificationRecord> records = new ArrayList<>();
-        records.addAll(findGroupNotificationByListLocked(mNotificationList, pkg, groupKey, userId));
+        final ArraySet<NotificationRecord> posted = mNotificationIndex.getByGroupKey(groupKey);
+        if (posted != null) {
+            for (int i = posted.size() - 1; i >= 0; i--) {
+                final NotificationRecord r = posted.valueAt(i);
+                if (notificationMatchesUserId(r, userId)
+                        && r.sbn.getPackageName().equals(pkg)) {
+                    records.add(r);
+                }
+            }
+        }
         records.addAll(
                 findGroupNotificationByListLocked(mEnqueuedNotifications, pkg, groupKey, userId));
         return records;
@@ -6049,7 +6176,7 @@ public class NotificationManagerService extends SystemService {
     @GuardedBy("mNotificationLock")
     private NotificationRecord findNotificationByKeyLocked(String key) {
         NotificationRecord r;
-        if ((r = findNotificationByListLocked(mNotificationList, key)) != null) {
+        if ((r = mNotificationsByKey.get(key)) != null) {
             return r;
         }
         if ((r = findNotificationByListLocked(mEnqueuedNotifications, key)) != null) {
@@ -6061,8 +6188,24 @@ public class NotificationManagerService extends SystemService {
     @GuardedBy("mNotificationLock")
     NotificationRecord findNotificationLocked(String pkg, String tag, int id, int userId) {
         NotificationRecord r;
-        if ((r = findNotificationByListLocked(mNotificationList, pkg, tag, id, userId)) != null) {
-            return r;
+        final ArraySet<NotificationRecord> posted = mNotificationIndex.getByPackage(pkg);
+        if (posted != null) {
+            NotificationRecord found = null;
+            for (int i = 0; i < posted.size(); i++) {
+                r = posted.valueAt(i);
+                if (notificationMatchesUserId(r, userId) && r.sbn.getId() == id
+                        && TextUtils.equals(r.sbn.getTag(), tag)) {
+                    // Both a USER_ALL and a per-user record may match; like a scan of the
+                    // list, return the one posted first.
+                    if (found == null || mNotificationList.indexOf(r)
+                            < mNotificationList.indexOf(found)) {
+                        found = r;
+                    }
+                }
+            }
+            if (found != null) {
+                return found;
+            }
         }
         if ((r = findNotificationByListLocked(mEnqueuedNotifications, pkg, tag, id, userId))
                 != null) {
@@ -6099,13 +6242,8 @@ public class NotificationManagerService extends SystemService {
 
     @GuardedBy("mNotificationLock")
     int indexOfNotificationLocked(String key) {
-        final int N = mNotificationList.size();
-        for (int i = 0; i < N; i++) {
-            if (key.equals(mNotificationList.get(i).getKey())) {
-                return i;
-            }
-        }
-        return -1;
+        final NotificationRecord r = mNotificationsByKey.get(key);
+        return r != null ? mNotificationList.indexOf(r) : -1;
     }
 
     @VisibleForTesting
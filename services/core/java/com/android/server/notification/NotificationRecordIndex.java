@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * Secondary indexes over the posted notifications, by package, by group key and by channel.
+ * <p>
+ * Buckets are keyed by package rather than package and user so that records posted to
+ * {@link android.os.UserHandle#USER_ALL} are found for any user; callers still match users.
+ * Records are filed under the keys they had when added, so a record whose group key may
+ * have changed must be passed to {@link #update} to be moved.
+ * </p>
+ * Not thread safe; NotificationManagerService guards it with its notification lock.
+ */
+final class NotificationRecordIndex {
+    private final ArrayMap<String, ArraySet<NotificationRecord>> mByPackage = new ArrayMap<>();
+    private final ArrayMap<String, ArraySet<NotificationRecord>> mByGroupKey = new ArrayMap<>();
+    private final ArrayMap<String, ArraySet<NotificationRecord>> mByChannel = new ArrayMap<>();
+    // The group and channel keys each record is currently filed under.
+    private final ArrayMap<NotificationRecord, IndexedKeys> mIndexedKeys = new ArrayMap<>();
+
+    void add(NotificationRecord r) {
+        if (mIndexedKeys.containsKey(r)) {
+            return;
+        }
+        final IndexedKeys keys = new IndexedKeys(r.getGroupKey(),
+                channelKey(r.sbn.getPackageName(), r.getChannel().getId()));
+        mIndexedKeys.put(r, keys);
+        addToBucket(mByPackage, r.sbn.getPackageName(), r);
+        addToBucket(mByGroupKey, keys.groupKey, r);
+        addToBucket(mByChannel, keys.channelKey, r);
+    }
+
+    void remove(NotificationRecord r) {
+        final IndexedKeys keys = mIndexedKeys.remove(r);
+        if (keys == null) {
+            return;
+        }
+        removeFromBucket(mByPackage, r.sbn.getPackageName(), r);
+        removeFromBucket(mByGroupKey, keys.groupKey, r);
+        removeFromBucket(mByChannel, keys.channelKey, r);
+    }
+
+    /** Refiles {@code r} if its group key or channel changed since it was added. */
+    void update(NotificationRecord r) {
+        final IndexedKeys keys = mIndexedKeys.get(r);
+        if (keys == null) {
+            return;
+        }
+        if (!Objects.equals(keys.groupKey, r.getGroupKey())
+                || !Objects.equals(keys.channelKey,
+                        channelKey(r.sbn.getPackageName(), r.getChannel().getId()))) {
+            remove(r);
+            add(r);
+        }
+    }
+
+    void clear() {
+        mByPackage.clear();
+        mByGroupKey.clear();
+        mByChannel.clear();
+        mIndexedKeys.clear();
+    }
+
+    int size() {
+        return mIndexedKeys.size();
+    }
+
+    /**
+     * Returns the posted records of {@code pkg}, for all users, or {@code null} if there are
+     * none. The set must not be modified, nor used after the index changes.
+     */
+    ArraySet<NotificationRecord> getByPackage(String pkg) {
+        return mByPackage.get(pkg);
+    }
+
+    /** Returns the posted records with the given group key, or {@code null}. */
+    ArraySet<NotificationRecord> getByGroupKey(String groupKey) {
+        return mByGroupKey.get(groupKey);
+    }
+
+    /** Returns the posted records of {@code pkg} in the given channel, or {@code null}. */
+    ArraySet<NotificationRecord> getByChannel(String pkg, String channelId) {
+        return mByChannel.get(channelKey(pkg, channelId));
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Indexed notifications: ");
+        pw.print(mIndexedKeys.size());
+        pw.print(" packages=");
+        pw.print(mByPackage.size());
+        pw.print(" groups=");
+        pw.print(mByGroupKey.size());
+        pw.print(" channels=");
+        pw.println(mByChannel.size());
+    }
+
+    private static String channelKey(String pkg, String channelId) {
+        return pkg + "|" + channelId;
+    }
+
+    private static void addToBucket(ArrayMap<String, ArraySet<NotificationRecord>> index,
+            String key, NotificationRecord r) {
+        ArraySet<NotificationRecord> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new ArraySet<>();
+            index.put(key, bucket);
+        }
+        bucket.add(r);
+    }
+
+    private static void removeFromBucket(ArrayMap<String, ArraySet<NotificationRecord>> index,
+            String key, NotificationRecord r) {
+        final ArraySet<NotificationRecord> bucket = index.get(key);
+        if (bucket != null && bucket.remove(r) && bucket.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static final class IndexedKeys {
+        final String groupKey;
+        final String channelKey;
+
+        IndexedKeys(String groupKey, String channelKey) {
+            this.groupKey = groupKey;
+            this.channelKey = channelKey;
+        }
+    }
+}
@@ -111,6 +111,11 @@ public class RankingHelper implements RankingConfig {
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    private final ArrayList<NotificationRecord> mPreliminaryOrderTmp = new ArrayList<>();
+    // Set when the ranks and sort keys of the last sort can't be reused by the next one.
+    private boolean mFullSortRequired = true;
+    private final SortStats mFullSortStats = new SortStats();
+    private final SortStats mIncrementalSortStats = new SortStats();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -454,10 +459,12 @@ public class RankingHelper implements RankingConfig {
         for (int i = 0; i < N; i++) {
             mSignalExtractors[i].setConfig(this);
         }
+        mFullSortRequired = true;
         mRankingHandler.requestSort();
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        final long startNanos = System.nanoTime();
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
@@ -467,6 +474,88 @@ public class RankingHelper implements RankingConfig {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
+        assignGlobalSortKeys(notificationList);
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+        mFullSortRequired = false;
+        mFullSortStats.noteSort(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Sorts {@code notificationList} after {@code changed} was added to it, or its ranking
+     * signals changed, when every other record is unchanged since the last sort. Only
+     * {@code changed} is compared with the preliminary comparator; the others keep the
+     * relative order of their last authoritative ranks. Falls back to a full
+     * {@link #sort(ArrayList)} when the previous ranking can't be reused.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed) {
+        if (mFullSortRequired) {
+            sort(notificationList);
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        final int N = notificationList.size();
+
+        // Put the other records back in their preliminary order by their previous rank
+        int maxRank = -1;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) {
+                continue;
+            }
+            if (record.getGlobalSortKey() == null || record.getAuthoritativeRank() < 0) {
+                sort(notificationList);
+                return;
+            }
+            maxRank = Math.max(maxRank, record.getAuthoritativeRank());
+        }
+        final NotificationRecord[] byRank = new NotificationRecord[maxRank + 1];
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) {
+                continue;
+            }
+            final int rank = record.getAuthoritativeRank();
+            if (byRank[rank] != null) {
+                sort(notificationList);
+                return;
+            }
+            byRank[rank] = record;
+        }
+
+        final ArrayList<NotificationRecord> preliminaryOrder = mPreliminaryOrderTmp;
+        preliminaryOrder.ensureCapacity(N);
+        for (NotificationRecord record : byRank) {
+            if (record != null) {
+                preliminaryOrder.add(record);
+            }
+        }
+        if (notificationList.contains(changed)) {
+            int index = Collections.binarySearch(preliminaryOrder, changed,
+                    mPreliminaryComparator);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            preliminaryOrder.add(index, changed);
+        }
+
+        assignGlobalSortKeys(preliminaryOrder);
+        preliminaryOrder.clear();
+
+        // Only the changed record and its group moved, so this is close to a single pass.
+        Collections.sort(notificationList, mFinalComparator);
+        mIncrementalSortStats.noteSort(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records each record's position in {@code notificationList}, which must be in
+     * preliminary order, as its authoritative rank, nominates group proxies and assigns the
+     * global sort keys.
+     */
+    private void assignGlobalSortKeys(ArrayList<NotificationRecord> notificationList) {
+        final int N = notificationList.size();
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
@@ -512,9 +601,6 @@ public class RankingHelper implements RankingConfig {
             }
             mProxyByGroupTmp.clear();
         }
-
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -1096,6 +1182,13 @@ public class RankingHelper implements RankingConfig {
             pw.println(mSignalExtractors[i].getClass().getSimpleName());
         }
 
+        pw.print(prefix);
+        pw.print("full sorts: ");
+        mFullSortStats.dump(pw);
+        pw.print(prefix);
+        pw.print("incremental sorts: ");
+        mIncrementalSortStats.dump(pw);
+
         pw.print(prefix);
         pw.println("per-package config:");
 
@@ -1469,6 +1562,31 @@ public class RankingHelper implements RankingConfig {
     }
 
 
+    /** Number and duration of sorts of one kind. */
+    private static final class SortStats {
+        int count;
+        long totalNanos;
+        long maxNanos;
+
+        void noteSort(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        void dump(PrintWriter pw) {
+            pw.print(count);
+            if (count > 0) {
+                pw.print(", avg ");
+                pw.print(totalNanos / count / 1000);
+                pw.print("us, max ");
+                pw.print(maxNanos / 1000);
+                pw.print("us");
+            }
+            pw.println();
+        }
+    }
+
     private static class Record {
         static int UNKNOWN_UID = UserHandle.USER_NULL;
 
@@ -34,13 +34,15 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized from the number of available cores,
+ * bounded by {@link #MIN_THREADS} and {@link #MAX_THREADS}. At any time, at most
+ * {@link #QUEUE_CAPACITY_PER_THREAD} results per parsing thread are kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 3;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 8;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,18 +51,39 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final ExecutorService mService;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback,
+                computeThreadCount(Runtime.getRuntime().availableProcessors(), cacheDir != null));
+    }
+
+    @VisibleForTesting
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            int threadCount) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mQueue = new ArrayBlockingQueue<>(threadCount * QUEUE_CAPACITY_PER_THREAD);
+        mService = ConcurrentUtils.newFixedThreadPool(threadCount,
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Returns the number of parsing threads to use on a device with {@code cpuCount} cores.
+     * When results may come from the package cache, parsing is dominated by small file reads
+     * rather than CPU, so one extra thread is allowed to keep the I/O queue busy.
+     */
+    @VisibleForTesting
+    static int computeThreadCount(int cpuCount, boolean usesCache) {
+        final int threads = usesCache ? cpuCount + 1 : cpuCount;
+        return Math.max(MIN_THREADS, Math.min(MAX_THREADS, threads));
     }
 
     static class ParseResult {
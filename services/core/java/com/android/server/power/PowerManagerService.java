@@ -74,6 +74,8 @@ import android.service.dreams.DreamManagerInternal;
 import android.service.vr.IVrManager;
 import android.service.vr.IVrStateCallbacks;
 import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.KeyValueListParser;
 import android.util.PrintWriterPrinter;
@@ -292,9 +294,21 @@ public final class PowerManagerService extends SystemService
     // There should only be a few of these.
     private final ArrayList<SuspendBlocker> mSuspendBlockers = new ArrayList<SuspendBlocker>();
 
-    // Table of all wake locks acquired by applications.
+    // Table of all wake locks acquired by applications, in no particular order.
     protected final ArrayList<WakeLock> mWakeLocks = new ArrayList<WakeLock>();
 
+    // The same wake locks by the binder they were acquired with.
+    private final ArrayMap<IBinder, WakeLock> mWakeLocksByBinder = new ArrayMap<>();
+
+    // For each WAKE_LOCK_* bit, the number of wake locks whose summary flags have it.
+    // Kept up to date by updateWakeLockSummaryFlagsLocked().
+    private final int[] mWakeLockSummaryCounts = new int[Integer.SIZE];
+
+    // How many times mWakeLockSummary was taken from mWakeLockSummaryCounts, and how many
+    // times it was recomputed from every wake lock because of per-profile timeouts.
+    private long mWakeLockSummaryCountedUpdates;
+    private long mWakeLockSummaryRecomputations;
+
     // A bitfield that summarizes the state of all active wakelocks.
     private int mWakeLockSummary;
 
@@ -563,8 +577,8 @@ public final class PowerManagerService extends SystemService
     // We are currently in the middle of a batch change of uids.
     private boolean mUidsChanging;
 
-    // Some uids have actually changed while mUidsChanging was true.
-    private boolean mUidsChanged;
+    // The uids that have actually changed while mUidsChanging was true.
+    private final ArraySet<UidState> mChangedUidStates = new ArraySet<>();
     private QCNsrmPowerExtension qcNsrmPowExt;
 
     private CerberusService mCerberusService;
@@ -768,6 +782,8 @@ public final class PowerManagerService extends SystemService
                 BackgroundThread.getHandler().getLooper(), batterySaverPolicy, mBatterySavingStats);
         mBatterySaverStateMachine = new BatterySaverStateMachine(
                 mLock, mContext, mBatterySaverController);
+
+        qcNsrmPowExt = new QCNsrmPowerExtension(this);
     }
 
     @Override
@@ -1115,7 +1131,8 @@ public final class PowerManagerService extends SystemService
         updatePowerStateLocked();
     }
 
-    private void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
+    @VisibleForTesting
+    void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
             WorkSource ws, String historyTag, int uid, int pid) {
         synchronized (mLock) {
             if (DEBUG_SPEW) {
@@ -1124,11 +1141,9 @@ public final class PowerManagerService extends SystemService
                         + ", tag=\"" + tag + "\", ws=" + ws + ", uid=" + uid + ", pid=" + pid);
             }
 
-            WakeLock wakeLock;
-            int index = findWakeLockIndexLocked(lock);
+            WakeLock wakeLock = mWakeLocksByBinder.get(lock);
             boolean notifyAcquire;
-            if (index >= 0) {
-                wakeLock = mWakeLocks.get(index);
+            if (wakeLock != null) {
                 if (!wakeLock.hasSameProperties(flags, tag, ws, uid, pid)) {
                     // Update existing wake lock.  This shouldn't happen but is harmless.
                     notifyWakeLockChangingLocked(wakeLock, flags, tag, packageName,
@@ -1143,7 +1158,6 @@ public final class PowerManagerService extends SystemService
                     state.mProcState = ActivityManager.PROCESS_STATE_NONEXISTENT;
                     mUidState.put(uid, state);
                 }
-                state.mNumWakeLocks++;
                 wakeLock = new WakeLock(lock, flags, tag, packageName, ws, historyTag, uid, pid,
                         state);
                 try {
@@ -1151,11 +1165,15 @@ public final class PowerManagerService extends SystemService
                 } catch (RemoteException ex) {
                     throw new IllegalArgumentException("Wake lock is already dead.");
                 }
+                state.mWakeLocks.add(wakeLock);
+                wakeLock.mIndex = mWakeLocks.size();
                 mWakeLocks.add(wakeLock);
+                mWakeLocksByBinder.put(lock, wakeLock);
                 setWakeLockDisabledStateLocked(wakeLock);
                 qcNsrmPowExt.checkPmsBlockedWakelocks(uid, pid, flags, tag, wakeLock);
                 notifyAcquire = true;
             }
+            updateWakeLockSummaryFlagsLocked(wakeLock);
 
             applyWakeLockFlagsOnAcquireLocked(wakeLock, uid);
             mDirty |= DIRTY_WAKE_LOCKS;
@@ -1200,10 +1218,11 @@ public final class PowerManagerService extends SystemService
         }
     }
 
-    private void releaseWakeLockInternal(IBinder lock, int flags) {
+    @VisibleForTesting
+    void releaseWakeLockInternal(IBinder lock, int flags) {
         synchronized (mLock) {
-            int index = findWakeLockIndexLocked(lock);
-            if (index < 0) {
+            WakeLock wakeLock = mWakeLocksByBinder.get(lock);
+            if (wakeLock == null) {
                 if (DEBUG_SPEW) {
                     Slog.d(TAG, "releaseWakeLockInternal: lock=" + Objects.hashCode(lock)
                             + " [not found], flags=0x" + Integer.toHexString(flags));
@@ -1211,7 +1230,6 @@ public final class PowerManagerService extends SystemService
                 return;
             }
 
-            WakeLock wakeLock = mWakeLocks.get(index);
             if (DEBUG_SPEW) {
                 Slog.d(TAG, "releaseWakeLockInternal: lock=" + Objects.hashCode(lock)
                         + " [" + wakeLock.mTag + "], flags=0x" + Integer.toHexString(flags));
@@ -1222,7 +1240,7 @@ public final class PowerManagerService extends SystemService
             }
 
             wakeLock.mLock.unlinkToDeath(wakeLock, 0);
-            removeWakeLockLocked(wakeLock, index);
+            removeWakeLockLocked(wakeLock);
         }
     }
 
@@ -1233,20 +1251,28 @@ public final class PowerManagerService extends SystemService
                         + " [" + wakeLock.mTag + "]");
             }
 
-            int index = mWakeLocks.indexOf(wakeLock);
-            if (index < 0) {
+            if (mWakeLocksByBinder.get(wakeLock.mLock) != wakeLock) {
                 return;
             }
 
-            removeWakeLockLocked(wakeLock, index);
+            removeWakeLockLocked(wakeLock);
         }
     }
 
-    private void removeWakeLockLocked(WakeLock wakeLock, int index) {
-        mWakeLocks.remove(index);
+    private void removeWakeLockLocked(WakeLock wakeLock) {
+        // Move the last wake lock into the removed one's slot rather than shifting the list.
+        final WakeLock last = mWakeLocks.remove(mWakeLocks.size() - 1);
+        if (last != wakeLock) {
+            mWakeLocks.set(wakeLock.mIndex, last);
+            last.mIndex = wakeLock.mIndex;
+        }
+        wakeLock.mIndex = -1;
+        mWakeLocksByBinder.remove(wakeLock.mLock);
+        countWakeLockSummaryFlagsLocked(wakeLock.mSummaryFlags, -1);
+        wakeLock.mSummaryFlags = 0;
         UidState state = wakeLock.mUidState;
-        state.mNumWakeLocks--;
-        if (state.mNumWakeLocks <= 0 &&
+        state.mWakeLocks.remove(wakeLock);
+        if (state.mWakeLocks.isEmpty() &&
                 state.mProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
             mUidState.remove(state.mUid);
         }
@@ -1270,8 +1296,8 @@ public final class PowerManagerService extends SystemService
     private void updateWakeLockWorkSourceInternal(IBinder lock, WorkSource ws, String historyTag,
             int callingUid) {
         synchronized (mLock) {
-            int index = findWakeLockIndexLocked(lock);
-            if (index < 0) {
+            WakeLock wakeLock = mWakeLocksByBinder.get(lock);
+            if (wakeLock == null) {
                 if (DEBUG_SPEW) {
                     Slog.d(TAG, "updateWakeLockWorkSourceInternal: lock=" + Objects.hashCode(lock)
                             + " [not found], ws=" + ws);
@@ -1280,7 +1306,6 @@ public final class PowerManagerService extends SystemService
                         + " from uid " + callingUid);
             }
 
-            WakeLock wakeLock = mWakeLocks.get(index);
             if (DEBUG_SPEW) {
                 Slog.d(TAG, "updateWakeLockWorkSourceInternal: lock=" + Objects.hashCode(lock)
                         + " [" + wakeLock.mTag + "], ws=" + ws);
@@ -1296,14 +1321,80 @@ public final class PowerManagerService extends SystemService
         }
     }
 
-    private int findWakeLockIndexLocked(IBinder lock) {
-        final int count = mWakeLocks.size();
-        for (int i = 0; i < count; i++) {
-            if (mWakeLocks.get(i).mLock == lock) {
-                return i;
+    /**
+     * Brings {@link #mWakeLockSummaryCounts} up to date after the summary flags of
+     * {@code wakeLock} may have changed, that is after its level or disabled state changed.
+     */
+    void updateWakeLockSummaryFlagsLocked(WakeLock wakeLock) {
+        final int summaryFlags = getWakeLockSummaryFlags(wakeLock);
+        if (wakeLock.mIndex >= 0 && summaryFlags != wakeLock.mSummaryFlags) {
+            countWakeLockSummaryFlagsLocked(wakeLock.mSummaryFlags, -1);
+            countWakeLockSummaryFlagsLocked(summaryFlags, 1);
+            wakeLock.mSummaryFlags = summaryFlags;
+        }
+    }
+
+    private void countWakeLockSummaryFlagsLocked(int summaryFlags, int delta) {
+        countSummaryFlags(mWakeLockSummaryCounts, summaryFlags, delta);
+    }
+
+    private static void countSummaryFlags(int[] counts, int summaryFlags, int delta) {
+        while (summaryFlags != 0) {
+            final int bit = Integer.numberOfTrailingZeros(summaryFlags);
+            counts[bit] += delta;
+            summaryFlags &= ~(1 << bit);
+        }
+    }
+
+    /**
+     * Checks the wake lock indexes and {@link #mWakeLockSummaryCounts} against a recount
+     * from {@link #mWakeLocks}.
+     *
+     * @return a description of the first mismatch, or null if everything agrees.
+     */
+    @VisibleForTesting
+    String checkWakeLockIndexes() {
+        synchronized (mLock) {
+            if (mWakeLocksByBinder.size() != mWakeLocks.size()) {
+                return mWakeLocksByBinder.size() + " wake locks by binder, "
+                        + mWakeLocks.size() + " in total";
+            }
+            final int[] counts = new int[Integer.SIZE];
+            final int numWakeLocks = mWakeLocks.size();
+            for (int i = 0; i < numWakeLocks; i++) {
+                final WakeLock wakeLock = mWakeLocks.get(i);
+                if (wakeLock.mIndex != i) {
+                    return wakeLock + " at " + i + " has index " + wakeLock.mIndex;
+                }
+                if (mWakeLocksByBinder.get(wakeLock.mLock) != wakeLock) {
+                    return wakeLock + " is not found by its binder";
+                }
+                if (!wakeLock.mUidState.mWakeLocks.contains(wakeLock)) {
+                    return wakeLock + " is missing from its uid state";
+                }
+                final int summaryFlags = getWakeLockSummaryFlags(wakeLock);
+                if (wakeLock.mSummaryFlags != summaryFlags) {
+                    return wakeLock + " is counted with summary flags 0x"
+                            + Integer.toHexString(wakeLock.mSummaryFlags) + ", not 0x"
+                            + Integer.toHexString(summaryFlags);
+                }
+                countSummaryFlags(counts, summaryFlags, 1);
+            }
+            for (int i = 0; i < mUidState.size(); i++) {
+                final UidState state = mUidState.valueAt(i);
+                for (int j = 0; j < state.mWakeLocks.size(); j++) {
+                    if (state.mWakeLocks.valueAt(j).mIndex < 0) {
+                        return "uid " + state.mUid + " still has released "
+                                + state.mWakeLocks.valueAt(j);
+                    }
+                }
+            }
+            if (!Arrays.equals(counts, mWakeLockSummaryCounts)) {
+                return "summary counts " + Arrays.toString(mWakeLockSummaryCounts)
+                        + ", recounted " + Arrays.toString(counts);
             }
+            return null;
         }
-        return -1;
     }
 
     protected void notifyWakeLockAcquiredLocked(WakeLock wakeLock) {
@@ -2029,21 +2120,32 @@ public final class PowerManagerService extends SystemService
             mWakeLockSummary = 0;
 
             final int numProfiles = mProfilePowerState.size();
-            for (int i = 0; i < numProfiles; i++) {
-                mProfilePowerState.valueAt(i).mWakeLockSummary = 0;
-            }
+            if (numProfiles == 0) {
+                // Only the union of all the summary flags is needed, which the counts give.
+                for (int i = 0; i < mWakeLockSummaryCounts.length; i++) {
+                    if (mWakeLockSummaryCounts[i] > 0) {
+                        mWakeLockSummary |= 1 << i;
+                    }
+                }
+                mWakeLockSummaryCountedUpdates++;
+            } else {
+                for (int i = 0; i < numProfiles; i++) {
+                    mProfilePowerState.valueAt(i).mWakeLockSummary = 0;
+                }
 
-            final int numWakeLocks = mWakeLocks.size();
-            for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
-                final int wakeLockFlags = getWakeLockSummaryFlags(wakeLock);
-                mWakeLockSummary |= wakeLockFlags;
-                for (int j = 0; j < numProfiles; j++) {
-                    final ProfilePowerState profile = mProfilePowerState.valueAt(j);
-                    if (wakeLockAffectsUser(wakeLock, profile.mUserId)) {
-                        profile.mWakeLockSummary |= wakeLockFlags;
+                final int numWakeLocks = mWakeLocks.size();
+                for (int i = 0; i < numWakeLocks; i++) {
+                    final WakeLock wakeLock = mWakeLocks.get(i);
+                    final int wakeLockFlags = getWakeLockSummaryFlags(wakeLock);
+                    mWakeLockSummary |= wakeLockFlags;
+                    for (int j = 0; j < numProfiles; j++) {
+                        final ProfilePowerState profile = mProfilePowerState.valueAt(j);
+                        if (wakeLockAffectsUser(wakeLock, profile.mUserId)) {
+                            profile.mWakeLockSummary |= wakeLockFlags;
+                        }
                     }
                 }
+                mWakeLockSummaryRecomputations++;
             }
 
             mWakeLockSummary = adjustWakeLockSummaryLocked(mWakeLockSummary);
@@ -2153,6 +2255,7 @@ public final class PowerManagerService extends SystemService
                             notifyWakeLockLongStartedLocked(wakeLock);
                             if( mDeviceIdleMode ) {
                                 wakeLock.mDisabled = true;
+                                updateWakeLockSummaryFlagsLocked(wakeLock);
                                 updatePowerStateLocked();
                             }
                         } else {
@@ -3260,18 +3363,26 @@ public final class PowerManagerService extends SystemService
     void finishUidChangesInternal() {
         synchronized (mLock) {
             mUidsChanging = false;
-            if (mUidsChanged) {
-                updateWakeLockDisabledStatesLocked();
-                mUidsChanged = false;
+            if (!mChangedUidStates.isEmpty()) {
+                boolean changed = false;
+                for (int i = 0; i < mChangedUidStates.size(); i++) {
+                    changed |= updateWakeLockDisabledStatesLocked(mChangedUidStates.valueAt(i));
+                }
+                mChangedUidStates.clear();
+                if (changed) {
+                    mDirty |= DIRTY_WAKE_LOCKS;
+                    updatePowerStateLocked();
+                }
             }
         }
     }
 
-    private void handleUidStateChangeLocked() {
+    private void handleUidStateChangeLocked(UidState state) {
         if (mUidsChanging) {
-            mUidsChanged = true;
-        } else {
-            updateWakeLockDisabledStatesLocked();
+            mChangedUidStates.add(state);
+        } else if (updateWakeLockDisabledStatesLocked(state)) {
+            mDirty |= DIRTY_WAKE_LOCKS;
+            updatePowerStateLocked();
         }
     }
 
@@ -3285,14 +3396,14 @@ public final class PowerManagerService extends SystemService
             final boolean oldShouldAllow = state.mProcState
                     <= ActivityManager.PROCESS_STATE_RECEIVER;
             state.mProcState = procState;
-            if (state.mNumWakeLocks > 0) {
+            if (!state.mWakeLocks.isEmpty()) {
                 if (mDeviceIdleMode) {
-                    handleUidStateChangeLocked();
+                    handleUidStateChangeLocked(state);
                 } else if (!state.mActive && oldShouldAllow !=
                         (procState <= ActivityManager.PROCESS_STATE_RECEIVER)) {
                     // If this uid is not active, but the process state has changed such
                     // that we may still want to allow it to hold a wake lock, then take care of it.
-                    handleUidStateChangeLocked();
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
@@ -3306,8 +3417,8 @@ public final class PowerManagerService extends SystemService
                 state.mProcState = ActivityManager.PROCESS_STATE_NONEXISTENT;
                 state.mActive = false;
                 mUidState.removeAt(index);
-                if (mDeviceIdleMode && state.mNumWakeLocks > 0) {
-                    handleUidStateChangeLocked();
+                if (mDeviceIdleMode && !state.mWakeLocks.isEmpty()) {
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
@@ -3322,8 +3433,8 @@ public final class PowerManagerService extends SystemService
                 mUidState.put(uid, state);
             }
             state.mActive = true;
-            if (state.mNumWakeLocks > 0) {
-                handleUidStateChangeLocked();
+            if (!state.mWakeLocks.isEmpty()) {
+                handleUidStateChangeLocked(state);
             }
         }
     }
@@ -3333,8 +3444,8 @@ public final class PowerManagerService extends SystemService
             UidState state = mUidState.get(uid);
             if (state != null) {
                 state.mActive = false;
-                if (state.mNumWakeLocks > 0) {
-                    handleUidStateChangeLocked();
+                if (!state.mWakeLocks.isEmpty()) {
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
@@ -3344,19 +3455,7 @@ public final class PowerManagerService extends SystemService
         boolean changed = false;
         final int numWakeLocks = mWakeLocks.size();
         for (int i = 0; i < numWakeLocks; i++) {
-            final WakeLock wakeLock = mWakeLocks.get(i);
-            if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
-                    == PowerManager.PARTIAL_WAKE_LOCK) {
-                if (setWakeLockDisabledStateLocked(wakeLock)) {
-                    changed = true;
-                    if (wakeLock.mDisabled) {
-                        // This wake lock is no longer being respected.
-                        notifyWakeLockReleasedLocked(wakeLock);
-                    } else {
-                        notifyWakeLockAcquiredLocked(wakeLock);
-                    }
-                }
-            }
+            changed |= updateWakeLockDisabledStateLocked(mWakeLocks.get(i));
         }
         if (changed) {
             mDirty |= DIRTY_WAKE_LOCKS;
@@ -3364,6 +3463,32 @@ public final class PowerManagerService extends SystemService
         }
     }
 
+    /** Only looks at the wake locks of one uid, for changes to that uid's state. */
+    private boolean updateWakeLockDisabledStatesLocked(UidState state) {
+        boolean changed = false;
+        for (int i = 0; i < state.mWakeLocks.size(); i++) {
+            changed |= updateWakeLockDisabledStateLocked(state.mWakeLocks.valueAt(i));
+        }
+        return changed;
+    }
+
+    private boolean updateWakeLockDisabledStateLocked(WakeLock wakeLock) {
+        if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
+                == PowerManager.PARTIAL_WAKE_LOCK) {
+            if (setWakeLockDisabledStateLocked(wakeLock)) {
+                updateWakeLockSummaryFlagsLocked(wakeLock);
+                if (wakeLock.mDisabled) {
+                    // This wake lock is no longer being respected.
+                    notifyWakeLockReleasedLocked(wakeLock);
+                } else {
+                    notifyWakeLockAcquiredLocked(wakeLock);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean setWakeLockDisabledStateLocked(WakeLock wakeLock) {
         if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
                 == PowerManager.PARTIAL_WAKE_LOCK) {
@@ -3758,7 +3883,7 @@ public final class PowerManagerService extends SystemService
             pw.print("UID states (changing=");
             pw.print(mUidsChanging);
             pw.print(" changed=");
-            pw.print(mUidsChanged);
+            pw.print(mChangedUidStates.size());
             pw.println("):");
             for (int i=0; i<mUidState.size(); i++) {
                 final UidState state = mUidState.valueAt(i);
@@ -3767,7 +3892,7 @@ public final class PowerManagerService extends SystemService
                 if (state.mActive) pw.print("  ACTIVE ");
                 else pw.print("INACTIVE ");
                 pw.print(" count=");
-                pw.print(state.mNumWakeLocks);
+                pw.print(state.mWakeLocks.size());
                 pw.print(" state=");
                 pw.println(state.mProcState);
             }
@@ -3778,6 +3903,8 @@ public final class PowerManagerService extends SystemService
 
             pw.println();
             pw.println("Wake Locks: size=" + mWakeLocks.size());
+            pw.println("  summary updates: counted=" + mWakeLockSummaryCountedUpdates
+                    + " recomputed=" + mWakeLockSummaryRecomputations);
             for (WakeLock wl : mWakeLocks) {
                 pw.println("  " + wl);
             }
@@ -4104,7 +4231,8 @@ public final class PowerManagerService extends SystemService
             proto.write(PowerManagerServiceDumpProto.SCREEN_OFF_TIMEOUT_MS, screenOffTimeout);
             proto.write(PowerManagerServiceDumpProto.SCREEN_DIM_DURATION_MS, screenDimDuration);
             proto.write(PowerManagerServiceDumpProto.ARE_UIDS_CHANGING, mUidsChanging);
-            proto.write(PowerManagerServiceDumpProto.ARE_UIDS_CHANGED, mUidsChanged);
+            proto.write(PowerManagerServiceDumpProto.ARE_UIDS_CHANGED,
+                    !mChangedUidStates.isEmpty());
 
             for (int i = 0; i < mUidState.size(); i++) {
                 final UidState state = mUidState.valueAt(i);
@@ -4113,7 +4241,8 @@ public final class PowerManagerService extends SystemService
                 proto.write(PowerManagerServiceDumpProto.UidStateProto.UID, uid);
                 proto.write(PowerManagerServiceDumpProto.UidStateProto.UID_STRING, UserHandle.formatUid(uid));
                 proto.write(PowerManagerServiceDumpProto.UidStateProto.IS_ACTIVE, state.mActive);
-                proto.write(PowerManagerServiceDumpProto.UidStateProto.NUM_WAKE_LOCKS, state.mNumWakeLocks);
+                proto.write(PowerManagerServiceDumpProto.UidStateProto.NUM_WAKE_LOCKS,
+                        state.mWakeLocks.size());
                 proto.write(PowerManagerServiceDumpProto.UidStateProto.PROCESS_STATE,
                         ActivityManager.processStateAmToProto(state.mProcState));
                 proto.end(uIDToken);
@@ -4174,6 +4303,7 @@ public final class PowerManagerService extends SystemService
                     if( mReaderModeActive != readerModeActive ) {
                         Slog.d(TAG, "ReaderMode changed to " + readerModeActive);
                         mReaderModeActive = readerModeActive;
+                        updateWakeLockDisabledStatesLocked();
 
                         lastInteractiveHint = SystemClock.elapsedRealtime();
                         updateDisplayPowerStateLocked(DIRTY_READER_MODE_CHANGED);
@@ -4325,6 +4455,10 @@ public final class PowerManagerService extends SystemService
         public boolean mNotifiedAcquired;
         public boolean mNotifiedLong;
         public boolean mDisabled;
+        // Position in mWakeLocks, or -1 once released.
+        int mIndex = -1;
+        // The summary flags counted in mWakeLockSummaryCounts for this wake lock.
+        int mSummaryFlags;
 
         public WakeLock(IBinder lock, int flags, String tag, String packageName,
                 WorkSource workSource, String historyTag, int ownerUid, int ownerPid,
@@ -4550,7 +4684,7 @@ public final class PowerManagerService extends SystemService
 
     static final class UidState {
         final int mUid;
-        int mNumWakeLocks;
+        final ArraySet<WakeLock> mWakeLocks = new ArraySet<>();
         int mProcState;
         boolean mActive;
 
@@ -17,39 +17,90 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
- * Access to this class should be guarded by the global window manager lock.
+ * Snapshots are kept in two tiers sharing one byte budget. The running cache holds the
+ * snapshots of tasks whose top app is still alive; they are never evicted, since starting
+ * windows and the recents animation read them without going to disk, and they may not have
+ * been persisted yet. Reduced resolution snapshots restored from disk for Recents are kept in
+ * whatever the running cache leaves of the budget. Anything else is loaded from the JPEGs
+ * written by {@link TaskSnapshotPersister}.
+ * <p>
+ * Access to this class should be guarded by the global window manager lock, except for the
+ * reduced cache and the statistics, which are safe to use from any thread.
  */
 class TaskSnapshotCache {
 
+    /** Bytes of snapshots kept in memory, across both tiers. */
+    private static final long CACHE_BYTES_BUDGET =
+            (ActivityManager.isLowRamDeviceStatic() ? 32 : 96) * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final long mCacheBudget;
+    private long mRunningCacheBytes;
+
+    /** Reduced resolution snapshots restored from disk by task id, sized in KB. */
+    private final LruCache<Integer, TaskSnapshot> mReducedCache;
+
+    private final AtomicLong mRunningHits = new AtomicLong();
+    private final AtomicLong mReducedHits = new AtomicLong();
+    private final AtomicLong mDiskLoads = new AtomicLong();
+    private final AtomicLong mDiskLoadNanos = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, CACHE_BYTES_BUDGET);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader, long budget) {
         mService = service;
         mLoader = loader;
+        mCacheBudget = budget;
+        mReducedCache = new LruCache<Integer, TaskSnapshot>(getReducedCacheMaxSize()) {
+            @Override
+            protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                return (int) Math.max(getSnapshotBytes(snapshot) / 1024, 1);
+            }
+        };
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
         final CacheEntry entry = mRunningCache.get(task.mTaskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
+            mRunningCacheBytes -= entry.bytes;
         }
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        final CacheEntry newEntry = new CacheEntry(snapshot, task.getTopChild());
+        mRunningCache.put(task.mTaskId, newEntry);
+        mRunningCacheBytes += newEntry.bytes;
+
+        // The reduced snapshot on disk is about to be replaced as well.
+        mReducedCache.remove(task.mTaskId);
+        mReducedCache.resize(getReducedCacheMaxSize());
+    }
+
+    /** Returns the room in KB the running snapshots leave to the reduced cache. */
+    private int getReducedCacheMaxSize() {
+        return (int) Math.max((mCacheBudget - mRunningCacheBytes) / 1024, 1);
     }
 
     /**
@@ -62,6 +113,7 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningHits.incrementAndGet();
                 return entry.snapshot;
             }
         }
@@ -70,6 +122,13 @@ class TaskSnapshotCache {
         if (!restoreFromDisk) {
             return null;
         }
+        if (reducedResolution) {
+            final TaskSnapshot snapshot = mReducedCache.get(taskId);
+            if (snapshot != null) {
+                mReducedHits.incrementAndGet();
+                return snapshot;
+            }
+        }
         return tryRestoreFromDisk(taskId, userId, reducedResolution);
     }
 
@@ -77,10 +136,17 @@ class TaskSnapshotCache {
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
+        mDiskLoads.incrementAndGet();
+        mDiskLoadNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - startTime);
         if (snapshot == null) {
+            mMisses.incrementAndGet();
             return null;
         }
+        if (reducedResolution) {
+            mReducedCache.put(taskId, snapshot);
+        }
         return snapshot;
     }
 
@@ -106,6 +172,7 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mReducedCache.remove(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
@@ -113,13 +180,29 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            mRunningCacheBytes -= entry.bytes;
+            mReducedCache.resize(getReducedCacheMaxSize());
         }
     }
 
+    private static long getSnapshotBytes(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        return buffer != null ? 4L * buffer.getWidth() * buffer.getHeight() : 0;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        pw.println(doublePrefix + "runningBytes=" + mRunningCacheBytes + "/" + mCacheBudget
+                + " reducedKB=" + mReducedCache.size() + "/" + mReducedCache.maxSize()
+                + " reducedCount=" + mReducedCache.snapshot().size());
+        final long diskLoads = mDiskLoads.get();
+        final long avgDiskLoadUs = diskLoads > 0 ? mDiskLoadNanos.get() / diskLoads / 1000 : 0;
+        pw.println(doublePrefix + "runningHits=" + mRunningHits.get()
+                + " reducedHits=" + mReducedHits.get() + " diskLoads=" + diskLoads
+                + " misses=" + mMisses.get() + " reducedEvictions=" + mReducedCache.evictionCount()
+                + " avgDiskLoadUs=" + avgDiskLoadUs);
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
@@ -136,9 +219,13 @@ class TaskSnapshotCache {
         /** The app token that was on top of the task when the snapshot was taken */
         final AppWindowToken topApp;
 
+        /** Estimated size of the snapshot buffer. */
+        final long bytes;
+
         CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.bytes = getSnapshotBytes(snapshot);
         }
     }
 }
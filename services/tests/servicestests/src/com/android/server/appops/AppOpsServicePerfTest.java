@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server;
+
+import static android.app.AppOpsManager.MODE_ALLOWED;
+import static android.app.AppOpsManager.OP_READ_SMS;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures checkOperation and noteOperation of an allowed op on an AppOpsService in the test
+ * process, without the binder call that {@code android.app.AppOpsPerfTest} includes.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AppOpsServicePerfTest {
+
+    private static final String TAG = AppOpsServicePerfTest.class.getSimpleName();
+    private static final String APP_OPS_FILENAME = "appops-service-perf-test.xml";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mHandlerThread;
+    private AppOpsService mAppOpsService;
+    private String mMyPackageName;
+    private int mMyUid;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File appOpsFile = new File(context.getFilesDir(), APP_OPS_FILENAME);
+        appOpsFile.delete();
+        new File(context.getFilesDir(), APP_OPS_FILENAME + ".journal").delete();
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mMyPackageName = context.getOpPackageName();
+        mMyUid = Process.myUid();
+
+        mAppOpsService = new AppOpsService(appOpsFile, new Handler(mHandlerThread.getLooper()));
+        mAppOpsService.mContext = context;
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        // Make sure the op exists so the loops measure the steady state.
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void timeCheckOperation() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOperation() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        }
+    }
+}
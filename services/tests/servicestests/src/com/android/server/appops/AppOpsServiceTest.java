@@ -17,6 +17,7 @@ package com.android.server;
 
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_ERRORED;
+import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OP_READ_SMS;
 import static android.app.AppOpsManager.OP_WRITE_SMS;
 
@@ -69,6 +70,7 @@ public class AppOpsServiceTest {
             // Start with a clean state (persisted into XML).
             mAppOpsFile.delete();
         }
+        new File(mContext.getFilesDir(), APP_OPS_FILENAME + ".journal").delete();
 
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -140,6 +142,28 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
     }
 
+    // Tests that changes appended to the journal are replayed on top of the XML.
+    @Test
+    public void testJournalPersistence() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeState();
+        assertThat(mAppOpsService.mJournalFile.exists()).isFalse();
+
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeJournal();
+        assertThat(mAppOpsService.mJournalFile.exists()).isTrue();
+
+        // Create a new app ops service, and initialize its state from XML and the journal.
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
+        mAppOpsService.mContext = mContext;
+
+        List<PackageOps> loggedOps = getLoggedOps();
+        assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
+        assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
     @Test
     public void testGetOpsForPackage() {
         mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
@@ -193,6 +217,50 @@ public class AppOpsServiceTest {
         assertThat(getLoggedOps()).isNull();
     }
 
+    // Tests that the results cached by checkOperation follow every kind of mode change.
+    @Test
+    public void testCheckOperation_seesModeChanges() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_ALLOWED);
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+        mAppOpsService.packageRemoved(mMyUid, mMyPackageName);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+    }
+
+    // Tests that noting an op again before the journal is written doesn't queue it twice.
+    @Test
+    public void testNoteOperation_journalsOpOnce() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.writeJournal();
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mJournalOps).hasSize(1);
+        }
+
+        mAppOpsService.writeJournal();
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mJournalOps).hasSize(1);
+        }
+    }
+
     private List<PackageOps> getLoggedOps() {
         return mAppOpsService.getOpsForPackage(mMyUid, mMyPackageName, null /* all ops */);
     }
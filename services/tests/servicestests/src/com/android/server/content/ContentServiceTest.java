@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManagerInternal;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManagerInternal;
+import android.database.ContentObserver;
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for batched change notification in {@link ContentService}.
+ *
+ * bit FrameworksServicesTests:com.android.server.content.ContentServiceTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContentServiceTest {
+    private static final Uri URI_A = Uri.parse("content://c/a/1");
+    private static final Uri URI_B = Uri.parse("content://c/a/2");
+    private static final Uri URI_OTHER = Uri.parse("content://c/b/1");
+
+    @Mock private Context mContext;
+    @Mock private PackageManager mPackageManager;
+    @Mock private PackageManagerInternal mPackageManagerInternal;
+    @Mock private ActivityManagerInternal mActivityManagerInternal;
+
+    private ContentService mService;
+    private int mUserId;
+
+    /** Records the batches it is called back with. */
+    private static class BatchObserver extends IContentObserver.Stub {
+        final List<List<Uri>> mBatches = new ArrayList<>();
+        int mChangeCount;
+
+        @Override
+        public void onChange(boolean selfUpdate, Uri uri, int userId) {
+            mChangeCount++;
+        }
+
+        @Override
+        public void onChangeBatch(boolean selfUpdate, Uri[] uris, int userId) {
+            mBatches.add(Arrays.asList(uris));
+        }
+    }
+
+    /** Only knows about single changes, delivered without a handler. */
+    private static class SingleObserver extends ContentObserver {
+        final List<Uri> mUris = new ArrayList<>();
+
+        SingleObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri, int userId) {
+            mUris.add(uri);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getPackageManager()).thenReturn(mPackageManager);
+        when(mActivityManagerInternal.checkContentProviderAccess(anyString(), anyInt()))
+                .thenReturn(null);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, mPackageManagerInternal);
+        LocalServices.removeServiceForTest(ActivityManagerInternal.class);
+        LocalServices.addService(ActivityManagerInternal.class, mActivityManagerInternal);
+
+        mService = new ContentService(mContext, false);
+        // Tests deliver pending changes themselves unless they set a window of 0.
+        mService.mNotifyBatchWindowMillisOverride = 60 * 60 * 1000;
+        mUserId = UserHandle.myUserId();
+    }
+
+    @After
+    public void tearDown() {
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.removeServiceForTest(ActivityManagerInternal.class);
+    }
+
+    private void register(Uri uri, IContentObserver observer) {
+        mService.registerContentObserver(uri, true, observer, mUserId,
+                Build.VERSION_CODES.CUR_DEVELOPMENT);
+    }
+
+    private void notifyBatch(Uri... uris) {
+        mService.notifyChangeBatch(uris, null, false, 0, mUserId,
+                Build.VERSION_CODES.CUR_DEVELOPMENT);
+    }
+
+    @Test
+    public void testNotifyChangeBatch_deliversOneBatchPerObserver() {
+        final BatchObserver observer = new BatchObserver();
+        final BatchObserver other = new BatchObserver();
+        register(Uri.parse("content://c/a"), observer);
+        register(URI_OTHER, other);
+
+        notifyBatch(URI_A, URI_B, URI_OTHER);
+        assertEquals(0, observer.mBatches.size());
+        mService.deliverPendingChanges();
+
+        assertEquals(1, observer.mBatches.size());
+        assertEquals(new HashSet<>(Arrays.asList(URI_A, URI_B)),
+                new HashSet<>(observer.mBatches.get(0)));
+        assertEquals(0, observer.mChangeCount);
+        assertEquals(1, other.mBatches.size());
+        assertEquals(Arrays.asList(URI_OTHER), other.mBatches.get(0));
+    }
+
+    @Test
+    public void testNotifyChangeBatch_noWindowDeliversImmediately() {
+        final BatchObserver observer = new BatchObserver();
+        register(URI_A, observer);
+        mService.mNotifyBatchWindowMillisOverride = 0;
+
+        notifyBatch(URI_A);
+
+        assertEquals(1, observer.mBatches.size());
+        assertEquals(Arrays.asList(URI_A), observer.mBatches.get(0));
+    }
+
+    @Test
+    public void testNotifyChangeBatch_fallsBackToOnChangePerUri() {
+        final SingleObserver observer = new SingleObserver();
+        register(Uri.parse("content://c/a"), observer.getContentObserver());
+
+        notifyBatch(URI_A, URI_B);
+        mService.deliverPendingChanges();
+
+        assertEquals(2, observer.mUris.size());
+        assertEquals(new HashSet<>(Arrays.asList(URI_A, URI_B)),
+                new HashSet<>(observer.mUris));
+    }
+
+    @Test
+    public void testNotifyChangeBatch_coalescesDuplicatesWithinWindow() {
+        final BatchObserver observer = new BatchObserver();
+        register(Uri.parse("content://c/a"), observer);
+
+        notifyBatch(URI_A, URI_A, URI_B);
+        notifyBatch(URI_B, URI_A);
+        mService.deliverPendingChanges();
+
+        assertEquals(1, observer.mBatches.size());
+        final List<Uri> batch = observer.mBatches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(new HashSet<>(Arrays.asList(URI_A, URI_B)), new HashSet<>(batch));
+
+        // Nothing is left for the next window.
+        mService.deliverPendingChanges();
+        assertEquals(1, observer.mBatches.size());
+    }
+
+    @Test
+    public void testNotifyChangeBatch_skipsUnrelatedObservers() {
+        final BatchObserver observer = new BatchObserver();
+        register(URI_OTHER, observer);
+
+        notifyBatch(URI_A, URI_B);
+        mService.deliverPendingChanges();
+
+        assertTrue(observer.mBatches.isEmpty());
+    }
+}
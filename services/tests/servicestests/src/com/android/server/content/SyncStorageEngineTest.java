@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.os.FileUtils;
+import android.os.Process;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.server.content.SyncStorageEngine.AuthorityInfo;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test for SyncStorageEngine persistence.
+ *
+ * atest ${ANDROID_BUILD_TOP}/frameworks/base/services/tests/servicestests/src/com/android/server/content/SyncStorageEngineTest.java
+ */
+public class SyncStorageEngineTest extends AndroidTestCase {
+    private static final String TAG = "SyncStorageEngineTest";
+
+    private static final int ACCOUNT_COUNT = 50;
+    private static final int AUTHORITY_COUNT = 40;
+
+    private final int mUid = Process.myUid();
+    private File mSyncDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mSyncDir = new File(new File(getContext().getFilesDir(), "system"), "sync");
+        FileUtils.deleteContents(mSyncDir);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtils.deleteContents(mSyncDir);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSettingsJournalReplayed() {
+        SyncStorageEngine engine = SyncStorageEngine.newTestInstance(getContext());
+        engine.setMasterSyncAutomatically(false, 0, ContentResolver.SYNC_EXEMPTION_NONE, mUid);
+        assertTrue(new File(mSyncDir, "accounts.journal").exists());
+
+        engine = SyncStorageEngine.newTestInstance(getContext());
+        assertFalse(engine.getMasterSyncAutomatically(0));
+        // Replayed changes are written back to the accounts file.
+        assertFalse(new File(mSyncDir, "accounts.journal").exists());
+    }
+
+    @SmallTest
+    public void testSettingsJournalDiscardedWithUnreadableAccounts() throws IOException {
+        SyncStorageEngine engine = SyncStorageEngine.newTestInstance(getContext());
+        engine.setMasterSyncAutomatically(false, 0, ContentResolver.SYNC_EXEMPTION_NONE, mUid);
+        assertTrue(new File(mSyncDir, "accounts.journal").exists());
+        FileUtils.stringToFile(new File(mSyncDir, "accounts.xml"), "<accounts version=");
+
+        // The journaled change is not replayed on top of the defaults.
+        engine = SyncStorageEngine.newTestInstance(getContext());
+        assertTrue(engine.getMasterSyncAutomatically(0));
+        assertFalse(new File(mSyncDir, "accounts.journal").exists());
+    }
+
+    @LargeTest
+    public void testManyAccountsAndAuthorities() {
+        final SyncStorageEngine engine = SyncStorageEngine.newTestInstance(getContext());
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < ACCOUNT_COUNT; i++) {
+            final Account account = new Account("account" + i, "type");
+            for (int j = 0; j < AUTHORITY_COUNT; j++) {
+                engine.setIsSyncable(account, 0, "authority" + j, AuthorityInfo.NOT_SYNCABLE,
+                        mUid);
+            }
+        }
+        final long elapsedNanos = System.nanoTime() - startTime;
+        assertEquals(ACCOUNT_COUNT * AUTHORITY_COUNT, engine.getAuthorityCount());
+        assertEquals(AuthorityInfo.NOT_SYNCABLE, engine.getIsSyncable(
+                new Account("account" + (ACCOUNT_COUNT - 1), "type"), 0,
+                "authority" + (AUTHORITY_COUNT - 1)));
+
+        Log.i(TAG, ACCOUNT_COUNT + " accounts x " + AUTHORITY_COUNT + " authorities: "
+                + elapsedNanos / (ACCOUNT_COUNT * AUTHORITY_COUNT) / 1000 + "us per change");
+    }
+}
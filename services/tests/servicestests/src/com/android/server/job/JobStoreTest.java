@@ -5,6 +5,7 @@ import static android.net.NetworkCapabilities.NET_CAPABILITY_OEM_PAID;
 import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -22,7 +23,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
 import android.os.SystemClock;
+import android.os.UserHandle;
 import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.RenamingDelegatingContext;
 import android.util.Log;
@@ -39,6 +42,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -57,6 +61,8 @@ public class JobStoreTest {
     private static final String TEST_PREFIX = "_test_";
 
     private static final int SOME_UID = android.os.Process.FIRST_APPLICATION_UID;
+    private static final int LARGE_STORE_JOB_COUNT = 10000;
+    private static final int UPDATE_COUNT = 100;
     private ComponentName mComponent;
 
     JobStore mTaskStoreUnderTest;
@@ -95,6 +101,16 @@ public class JobStoreTest {
         mTaskStoreUnderTest.clear();
     }
 
+    private File getJournalFile() {
+        return new File(new File(new File(mTestContext.getFilesDir(), "system"), "job"),
+                "jobs.journal");
+    }
+
+    private File getJobsFile() {
+        return new File(new File(new File(mTestContext.getFilesDir(), "system"), "job"),
+                "jobs.xml");
+    }
+
     private void waitForPendingIo() throws Exception {
         final CountDownLatch latch = new CountDownLatch(1);
         IoThread.getHandler().post(() -> {
@@ -338,6 +354,96 @@ public class JobStoreTest {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    @Test
+    public void testJournalReplaysAddsAndRemovals() throws Exception {
+        final JobInfo kept = new Builder(50, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo removed = new Builder(51, mComponent)
+                .setOverrideDeadline(10000)
+                .setPersisted(true)
+                .build();
+        final JobStatus keptStatus = JobStatus.createFromJobInfo(kept, SOME_UID, null, -1, null);
+        final JobStatus removedStatus =
+                JobStatus.createFromJobInfo(removed, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(keptStatus);
+        waitForPendingIo();
+        mTaskStoreUnderTest.add(removedStatus);
+        waitForPendingIo();
+        mTaskStoreUnderTest.remove(removedStatus, true);
+        waitForPendingIo();
+
+        final File journal = getJournalFile();
+        assertTrue("Changes were not journaled.", journal.exists());
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Journal replayed incorrectly.", 1, jobStatusSet.size());
+        assertTasksEqual(kept, jobStatusSet.getAllJobs().get(0).getJob());
+
+        // A full snapshot folds the journal in.
+        mTaskStoreUnderTest.clear();
+        waitForPendingIo();
+        assertFalse("Journal survived a snapshot.", journal.exists());
+    }
+
+    /**
+     * Measures the I/O cost of single job updates and the boot-time load of a large store.
+     */
+    @LargeTest
+    @Test
+    public void testWriteAndLoadCostForManyJobs() throws Exception {
+        for (int i = 0; i < LARGE_STORE_JOB_COUNT; i++) {
+            mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(new Builder(i, mComponent)
+                    .setRequiresCharging(true)
+                    .setPersisted(true)
+                    .build(), SOME_UID, null, -1, null));
+        }
+        waitForPendingIo();
+        final File journal = getJournalFile();
+        final long journalBytesBefore = journal.length();
+
+        long startTime = SystemClock.uptimeMillis();
+        for (int i = 0; i < UPDATE_COUNT; i++) {
+            mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(
+                    new Builder(LARGE_STORE_JOB_COUNT + i, mComponent)
+                            .setOverrideDeadline(10000)
+                            .setPersisted(true)
+                            .build(), SOME_UID, null, -1, null));
+            waitForPendingIo();
+        }
+        final long journalMillisPerUpdate = (SystemClock.uptimeMillis() - startTime)
+                / UPDATE_COUNT;
+        final long journalBytesPerUpdate = (journal.length() - journalBytesBefore) / UPDATE_COUNT;
+
+        // Keeps every job, but forces the next write to be a full snapshot.
+        mTaskStoreUnderTest.removeJobsOfNonUsers(new int[] {UserHandle.getUserId(SOME_UID)});
+        startTime = SystemClock.uptimeMillis();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(
+                new Builder(LARGE_STORE_JOB_COUNT + UPDATE_COUNT, mComponent)
+                        .setOverrideDeadline(10000)
+                        .setPersisted(true)
+                        .build(), SOME_UID, null, -1, null));
+        waitForPendingIo();
+        final long snapshotMillis = SystemClock.uptimeMillis() - startTime;
+        final long snapshotBytes = getJobsFile().length();
+
+        startTime = SystemClock.uptimeMillis();
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        final long loadMillis = SystemClock.uptimeMillis() - startTime;
+
+        Log.i(TAG, "Journal update: " + journalMillisPerUpdate + "ms, "
+                + journalBytesPerUpdate + " bytes; snapshot: " + snapshotMillis + "ms, "
+                + snapshotBytes + " bytes; load of " + jobStatusSet.size() + " jobs: "
+                + loadMillis + "ms");
+        assertEquals("Incorrect # of persisted tasks.",
+                LARGE_STORE_JOB_COUNT + UPDATE_COUNT + 1, jobStatusSet.size());
+        assertTrue("Journal records are not smaller than the snapshot.",
+                journalBytesPerUpdate < snapshotBytes);
+    }
+
     @Test
     public void testRequiredNetworkType() throws Exception {
         assertPersistedEquals(new JobInfo.Builder(0, mComponent)
@@ -29,7 +29,9 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.job.JobInfo;
@@ -38,6 +40,7 @@ import android.content.Context;
 import android.content.pm.PackageManagerInternal;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
+import android.net.INetworkPolicyListener;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
@@ -272,6 +275,47 @@ public class ConnectivityControllerTest {
         }
     }
 
+    @Test
+    public void testUidRulesChangeOnlyEvaluatesThatUid() throws Exception {
+        final ArgumentCaptor<INetworkPolicyListener> listener = ArgumentCaptor
+                .forClass(INetworkPolicyListener.class);
+        doNothing().when(mNetPolicyManager).registerListener(listener.capture());
+
+        final ConnectivityController controller = new ConnectivityController(mService);
+
+        final Network net = new Network(101);
+        final NetworkCapabilities caps = createCapabilities()
+                .addCapability(NET_CAPABILITY_NOT_METERED);
+
+        final JobStatus red = createJobStatus(createJob()
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY), UID_RED);
+        final JobStatus blue = createJobStatus(createJob()
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY), UID_BLUE);
+
+        answerNetwork(UID_RED, net, caps);
+        answerNetwork(UID_BLUE, net, caps);
+        controller.maybeStartTrackingJobLocked(red, null);
+        controller.maybeStartTrackingJobLocked(blue, null);
+        assertTrue(red.isConstraintSatisfied(JobStatus.CONSTRAINT_CONNECTIVITY));
+        assertTrue(blue.isConstraintSatisfied(JobStatus.CONSTRAINT_CONNECTIVITY));
+
+        // Red was blocked; blue's jobs must not even be looked at.
+        reset(mConnManager);
+        answerNetwork(UID_RED, null, null);
+        answerNetwork(UID_BLUE, net, caps);
+        listener.getValue().onUidRulesChanged(UID_RED, 0);
+
+        assertFalse(red.isConstraintSatisfied(JobStatus.CONSTRAINT_CONNECTIVITY));
+        assertTrue(blue.isConstraintSatisfied(JobStatus.CONSTRAINT_CONNECTIVITY));
+        verify(mConnManager, never()).getActiveNetworkForUid(eq(UID_BLUE));
+
+        // Once red no longer has jobs, its rules changes are a no-op.
+        controller.maybeStopTrackingJobLocked(red, null, false);
+        reset(mConnManager);
+        listener.getValue().onUidRulesChanged(UID_RED, 0);
+        verify(mConnManager, never()).getActiveNetworkForUid(eq(UID_RED));
+    }
+
     private void answerNetwork(int uid, Network net, NetworkCapabilities caps) {
         when(mConnManager.getActiveNetworkForUid(eq(uid))).thenReturn(net);
         when(mConnManager.getNetworkCapabilities(eq(net))).thenReturn(caps);
@@ -66,6 +66,15 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testComputeThreadCount() {
+        Assert.assertEquals(2, ParallelPackageParser.computeThreadCount(1, false));
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(4, false));
+        Assert.assertEquals(5, ParallelPackageParser.computeThreadCount(4, true));
+        Assert.assertEquals(8, ParallelPackageParser.computeThreadCount(8, true));
+        Assert.assertEquals(8, ParallelPackageParser.computeThreadCount(64, false));
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
@@ -25,9 +25,13 @@ import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 
+import android.app.ActivityManager;
 import android.hardware.display.DisplayManagerInternal.DisplayPowerRequest;
+import android.os.Binder;
+import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerSaveState;
+import android.os.Process;
 import android.os.SystemProperties;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -46,6 +50,8 @@ public class PowerManagerServiceTest extends AndroidTestCase {
     private static final float BRIGHTNESS_FACTOR = 0.7f;
     private static final boolean BATTERY_SAVER_ENABLED = true;
     private static final String TEST_LAST_REBOOT_PROPERTY = "test.sys.boot.reason";
+    private static final int APP_UID = Process.FIRST_APPLICATION_UID + 1;
+    private static final int OTHER_APP_UID = Process.FIRST_APPLICATION_UID + 2;
 
     private @Mock BatterySaverPolicy mBatterySaverPolicy;
     private PowerManagerService mService;
@@ -112,4 +118,90 @@ public class PowerManagerServiceTest extends AndroidTestCase {
                 DisplayPowerRequest.POLICY_BRIGHT);
 
     }
+
+    @SmallTest
+    public void testWakeLockIndexes_matchRecount() throws Exception {
+        final IBinder partial = acquireWakeLock(PowerManager.PARTIAL_WAKE_LOCK, APP_UID);
+        final IBinder screen = acquireWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, APP_UID);
+        final IBinder dying = acquireWakeLock(PowerManager.PARTIAL_WAKE_LOCK, APP_UID);
+        final IBinder other = acquireWakeLock(PowerManager.PARTIAL_WAKE_LOCK, OTHER_APP_UID);
+        final IBinder system = acquireWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                Process.SYSTEM_UID);
+        final IBinder full = acquireWakeLock(PowerManager.FULL_WAKE_LOCK, OTHER_APP_UID);
+        assertWakeLockIndexesMatchRecount();
+
+        // A cached, inactive uid loses its partial wake locks, and gets them back.
+        mService.updateUidProcStateInternal(APP_UID,
+                ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertThat(findWakeLock(partial).mDisabled).isTrue();
+        assertWakeLockIndexesMatchRecount();
+        mService.uidActiveInternal(APP_UID);
+        assertThat(findWakeLock(partial).mDisabled).isFalse();
+        assertWakeLockIndexesMatchRecount();
+
+        // Batched uid changes are applied when the batch finishes.
+        mService.startUidChangesInternal();
+        mService.uidIdleInternal(APP_UID);
+        mService.updateUidProcStateInternal(OTHER_APP_UID,
+                ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertWakeLockIndexesMatchRecount();
+        mService.finishUidChangesInternal();
+        assertThat(findWakeLock(partial).mDisabled).isTrue();
+        assertThat(findWakeLock(other).mDisabled).isTrue();
+        assertWakeLockIndexesMatchRecount();
+        mService.updateUidProcStateInternal(APP_UID,
+                ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE);
+        mService.updateUidProcStateInternal(OTHER_APP_UID,
+                ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE);
+        assertWakeLockIndexesMatchRecount();
+
+        // Device idle disables non-whitelisted partial wake locks of apps.
+        mService.setDeviceIdleModeInternal(true);
+        assertWakeLockIndexesMatchRecount();
+        mService.setDeviceIdleWhitelistInternal(new int[] { APP_UID });
+        assertWakeLockIndexesMatchRecount();
+        mService.updateUidProcStateInternal(OTHER_APP_UID,
+                ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertThat(findWakeLock(other).mDisabled).isTrue();
+        assertThat(findWakeLock(system).mDisabled).isFalse();
+        assertWakeLockIndexesMatchRecount();
+        mService.uidGoneInternal(OTHER_APP_UID);
+        assertWakeLockIndexesMatchRecount();
+        mService.setDeviceIdleModeInternal(false);
+        assertWakeLockIndexesMatchRecount();
+
+        // Removing from the middle moves the last wake lock into the freed slot.
+        findWakeLock(dying).binderDied();
+        assertThat(findWakeLock(dying)).isNull();
+        assertWakeLockIndexesMatchRecount();
+        mService.releaseWakeLockInternal(partial, 0);
+        assertWakeLockIndexesMatchRecount();
+        mService.releaseWakeLockInternal(full, 0);
+        mService.releaseWakeLockInternal(screen, 0);
+        assertWakeLockIndexesMatchRecount();
+        mService.releaseWakeLockInternal(other, 0);
+        mService.releaseWakeLockInternal(system, 0);
+        assertThat(mService.mWakeLocks).isEmpty();
+        assertWakeLockIndexesMatchRecount();
+    }
+
+    private IBinder acquireWakeLock(int flags, int uid) {
+        final IBinder lock = new Binder();
+        mService.acquireWakeLockInternal(lock, flags, "test", "test.package", null, null, uid,
+                0);
+        return lock;
+    }
+
+    private PowerManagerService.WakeLock findWakeLock(IBinder lock) {
+        for (PowerManagerService.WakeLock wakeLock : mService.mWakeLocks) {
+            if (wakeLock.mLock == lock) {
+                return wakeLock;
+            }
+        }
+        return null;
+    }
+
+    private void assertWakeLockIndexesMatchRecount() {
+        assertThat(mService.checkWakeLockIndexes()).isNull();
+    }
 }
@@ -18,8 +18,11 @@ package com.android.server.wm;
 
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 
+import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -108,4 +111,65 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testReduced_cachedAfterRestore() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot snapshot = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(snapshot);
+
+        // The second restore doesn't go to disk.
+        assertSame(snapshot, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        final TaskSnapshot reloaded = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reloaded);
+        assertNotSame(snapshot, reloaded);
+    }
+
+    @Test
+    public void testBudget_keepsRunningSnapshots() throws Exception {
+        // Each snapshot is 100x100 RGBA, so two of them are over the budget.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* budget */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+
+        // Starting windows read them without going to disk, so neither may be evicted.
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testBudget_runningSnapshotsEvictReduced() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* budget */);
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot reduced = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reduced);
+
+        // One running snapshot leaves room for the reduced one.
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        assertSame(reduced, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+
+        // Two running snapshots fill the budget, which evicts it.
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        assertNotSame(reduced, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
 }
@@ -144,6 +144,9 @@ import java.util.Set;
 @RunWithLooper
 public class NotificationManagerServiceTest extends UiServiceTestCase {
     private static final String TEST_CHANNEL_ID = "NotificationManagerServiceTestChannelId";
+    private static final int MANY_NOTIFICATIONS_COUNT = 1000;
+    private static final int MANY_NOTIFICATIONS_PACKAGES = 25;
+    private static final int ROUND_COUNT = 40;
     private final int mUid = Binder.getCallingUid();
     private TestableNotificationManagerService mService;
     private INotificationManager mBinderService;
@@ -349,6 +352,43 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         return new NotificationRecord(mContext, sbn, channel);
     }
 
+    private NotificationRecord generateNotificationRecordForUser(UserHandle user) {
+        Notification.Builder nb = new Notification.Builder(mContext,
+                mTestNotificationChannel.getId())
+                .setContentTitle("foo")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon);
+        StatusBarNotification sbn = new StatusBarNotification(PKG, PKG, 1, "tag", mUid, 0,
+                nb.build(), user, null, 0);
+        return new NotificationRecord(mContext, sbn, mTestNotificationChannel);
+    }
+
+    // Posts count notifications spread over MANY_NOTIFICATIONS_PACKAGES other packages.
+    private void addOtherPackagesNotifications(int count) {
+        for (int i = 0; i < count; i++) {
+            final String pkg = "other.pkg" + (i % MANY_NOTIFICATIONS_PACKAGES);
+            Notification.Builder nb = new Notification.Builder(mContext,
+                    mTestNotificationChannel.getId())
+                    .setContentTitle("foo")
+                    .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                    .setGroup("group" + (i % 4));
+            StatusBarNotification sbn = new StatusBarNotification(pkg, pkg, i, "tag", mUid, 0,
+                    nb.build(), new UserHandle(mUid), null, 0);
+            mService.addNotification(
+                    new NotificationRecord(mContext, sbn, mTestNotificationChannel));
+        }
+    }
+
+    private void assertNotificationIndexConsistent() {
+        assertEquals(mService.mNotificationList.size(), mService.mNotificationIndex.size());
+        for (NotificationRecord r : mService.mNotificationList) {
+            assertTrue(mService.mNotificationIndex.getByPackage(r.sbn.getPackageName())
+                    .contains(r));
+            assertTrue(mService.mNotificationIndex.getByGroupKey(r.getGroupKey()).contains(r));
+            assertTrue(mService.mNotificationIndex.getByChannel(r.sbn.getPackageName(),
+                    r.getChannel().getId()).contains(r));
+        }
+    }
+
     private Map<String, Answer> getSignalExtractorSideEffects() {
         Map<String, Answer> answers = new ArrayMap<>();
 
@@ -3103,4 +3143,151 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         verify(mAppUsageStats, times(1)).reportInterruptiveNotification(
                 anyString(), anyString(), anyInt());
     }
+
+    @Test
+    public void testNotificationIndex_tracksPostAndCancel() throws Exception {
+        addOtherPackagesNotifications(MANY_NOTIFICATIONS_PACKAGES * 2);
+        final NotificationRecord parent = generateNotificationRecord(
+                mTestNotificationChannel, 1, "group", true);
+        final NotificationRecord child = generateNotificationRecord(
+                mTestNotificationChannel, 2, "group", false);
+        mService.addNotification(parent);
+        mService.addNotification(child);
+        assertNotificationIndexConsistent();
+        assertEquals(2, mService.mNotificationIndex.getByGroupKey(parent.getGroupKey()).size());
+
+        mBinderService.cancelNotificationWithTag(PKG, "tag", parent.sbn.getId(),
+                parent.sbn.getUserId());
+        waitForIdle();
+        assertNull(mService.mNotificationIndex.getByGroupKey(parent.getGroupKey()));
+        assertNull(mService.mNotificationIndex.getByPackage(PKG));
+        assertEquals(MANY_NOTIFICATIONS_PACKAGES * 2, mService.mNotificationList.size());
+        assertNotificationIndexConsistent();
+
+        mService.cancelAllNotificationsInt(mUid, 0, "other.pkg0", null, 0, 0, true, mUid,
+                NotificationListenerService.REASON_APP_CANCEL_ALL, null);
+        waitForIdle();
+        assertNull(mService.mNotificationIndex.getByPackage("other.pkg0"));
+        assertEquals(MANY_NOTIFICATIONS_PACKAGES * 2 - 2, mService.mNotificationList.size());
+        assertNotificationIndexConsistent();
+    }
+
+    @Test
+    public void testNotificationIndex_cancelAllKeepsPostOrder() throws Exception {
+        addOtherPackagesNotifications(MANY_NOTIFICATIONS_PACKAGES * 4);
+        final List<NotificationRecord> expected = new ArrayList<>();
+        for (NotificationRecord r : mService.mNotificationList) {
+            if (!r.sbn.getPackageName().equals("other.pkg1")) {
+                expected.add(r);
+            }
+        }
+
+        mService.cancelAllNotificationsInt(mUid, 0, "other.pkg1", null, 0, 0, true, mUid,
+                NotificationListenerService.REASON_APP_CANCEL_ALL, null);
+        waitForIdle();
+        assertEquals(expected, mService.mNotificationList);
+        assertNotificationIndexConsistent();
+    }
+
+    @Test
+    public void testNotificationIndex_followsGroupKeyOverride() throws Exception {
+        final NotificationRecord r = generateNotificationRecord(
+                mTestNotificationChannel, 1, "group", false);
+        mService.addNotification(r);
+        final String groupKey = r.getGroupKey();
+
+        r.setOverrideGroupKey("bananas");
+        mService.mNotificationIndex.update(r);
+
+        assertNull(mService.mNotificationIndex.getByGroupKey(groupKey));
+        assertEquals(1, mService.findGroupNotificationsLocked(
+                PKG, r.getGroupKey(), r.sbn.getUserId()).size());
+        assertNotificationIndexConsistent();
+    }
+
+    @Test
+    public void testNotificationIndex_cancelGroupChildrenKeepsPostOrder() throws Exception {
+        addOtherPackagesNotifications(MANY_NOTIFICATIONS_PACKAGES);
+        final NotificationRecord parent = generateNotificationRecord(
+                mTestNotificationChannel, 1, "group", true);
+        final NotificationRecord child1 = generateNotificationRecord(
+                mTestNotificationChannel, 2, "group", false);
+        final NotificationRecord child2 = generateNotificationRecord(
+                mTestNotificationChannel, 3, "group", false);
+        mService.addNotification(parent);
+        mService.addNotification(child1);
+        addOtherPackagesNotifications(MANY_NOTIFICATIONS_PACKAGES);
+        mService.addNotification(child2);
+        final List<NotificationRecord> expected = new ArrayList<>();
+        for (NotificationRecord r : mService.mNotificationList) {
+            if (!r.sbn.getPackageName().equals(PKG)) {
+                expected.add(r);
+            }
+        }
+
+        mBinderService.cancelNotificationWithTag(PKG, "tag", parent.sbn.getId(),
+                parent.sbn.getUserId());
+        waitForIdle();
+        assertEquals(expected, mService.mNotificationList);
+        assertNotificationIndexConsistent();
+
+        // Children are canceled newest first, as a scan from the end of the list would.
+        ArgumentCaptor<NotificationRecord> captor =
+                ArgumentCaptor.forClass(NotificationRecord.class);
+        verify(mListeners, times(3)).notifyRemovedLocked(captor.capture(), anyInt(), any());
+        final List<NotificationRecord> canceledChildren = new ArrayList<>();
+        for (NotificationRecord r : captor.getAllValues()) {
+            if (r != parent) {
+                canceledChildren.add(r);
+            }
+        }
+        assertEquals(Arrays.asList(child2, child1), canceledChildren);
+    }
+
+    @Test
+    public void testFindNotificationLocked_allUsersPostedFirstWins() throws Exception {
+        final NotificationRecord allUsers = generateNotificationRecordForUser(UserHandle.ALL);
+        final NotificationRecord user = generateNotificationRecordForUser(new UserHandle(mUid));
+        mService.addNotification(allUsers);
+        mService.addNotification(user);
+
+        assertEquals(allUsers,
+                mService.findNotificationLocked(PKG, "tag", 1, user.sbn.getUserId()));
+    }
+
+    @Test
+    public void testFindNotificationLocked_userPostedFirstWins() throws Exception {
+        final NotificationRecord allUsers = generateNotificationRecordForUser(UserHandle.ALL);
+        final NotificationRecord user = generateNotificationRecordForUser(new UserHandle(mUid));
+        mService.addNotification(user);
+        mService.addNotification(allUsers);
+
+        assertEquals(user,
+                mService.findNotificationLocked(PKG, "tag", 1, user.sbn.getUserId()));
+    }
+
+    @Test
+    public void testNotificationIndex_enqueueAndCancelWithManyActiveNotifications()
+            throws Exception {
+        addOtherPackagesNotifications(MANY_NOTIFICATIONS_COUNT);
+        final List<NotificationRecord> expected = new ArrayList<>(mService.mNotificationList);
+        final StatusBarNotification sbn = generateNotificationRecord(null).sbn;
+
+        for (int i = 0; i < ROUND_COUNT; i++) {
+            mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag",
+                    i, sbn.getNotification(), sbn.getUserId());
+            waitForIdle();
+        }
+        assertEquals(ROUND_COUNT, mBinderService.getActiveNotifications(PKG).length);
+        assertEquals(expected, mService.mNotificationList.subList(0, MANY_NOTIFICATIONS_COUNT));
+        assertNotificationIndexConsistent();
+
+        for (int i = 0; i < ROUND_COUNT; i++) {
+            mBinderService.cancelNotificationWithTag(PKG, "tag", i, sbn.getUserId());
+            waitForIdle();
+        }
+        assertEquals(0, mBinderService.getActiveNotifications(PKG).length);
+        assertEquals(expected, mService.mNotificationList);
+        assertNotificationIndexConsistent();
+    }
 }
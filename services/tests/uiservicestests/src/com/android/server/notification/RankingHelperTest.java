@@ -358,6 +358,41 @@ public class RankingHelperTest extends UiServiceTestCase {
         mHelper.sort(notificationList);
     }
 
+    @Test
+    public void testIncrementalSortMatchesFullSort() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(5);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroupSortA);
+        notificationList.add(mRecordNoGroup2);
+        mHelper.sort(notificationList);
+
+        notificationList.add(mRecordGroupGSortA);
+        mHelper.sort(notificationList, mRecordGroupGSortA);
+        ArrayList<NotificationRecord> incremental = new ArrayList<>(notificationList);
+
+        mHelper.sort(notificationList);
+        assertEquals(notificationList, incremental);
+    }
+
+    @Test
+    public void testIncrementalSortAfterRemoval() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(5);
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroupSortA);
+        mHelper.sort(notificationList);
+
+        notificationList.remove(mRecordNoGroup);
+        notificationList.add(0, mRecordNoGroup2);
+        mHelper.sort(notificationList, mRecordNoGroup2);
+        ArrayList<NotificationRecord> incremental = new ArrayList<>(notificationList);
+
+        mHelper.sort(notificationList);
+        assertEquals(notificationList, incremental);
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
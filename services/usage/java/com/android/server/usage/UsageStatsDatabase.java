@@ -391,6 +391,23 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, combiner, false /* eventsOnly */,
+                null);
+    }
+
+    /**
+     * Find the events in the given range from the daily {@link IntervalStats}, and only those
+     * of {@code packageName} if it isn't null. The stats passed to the combiner hold nothing
+     * but these events, so memory is bounded by the result rather than by the files read.
+     */
+    public <T> List<T> queryEvents(long beginTime, long endTime, String packageName,
+            StatCombiner<T> combiner) {
+        return queryStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, combiner,
+                true /* eventsOnly */, packageName);
+    }
+
+    private <T> List<T> queryStats(int intervalType, long beginTime, long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly, String packageName) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -443,7 +460,11 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    if (eventsOnly) {
+                        UsageStatsXml.readEvents(f, stats, beginTime, endTime, packageName);
+                    } else {
+                        UsageStatsXml.read(f, stats);
+                    }
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -75,6 +75,30 @@ public class UsageStatsXml {
         }
     }
 
+    /**
+     * Reads only the events of {@code file} in [beginTime, endTime), and only those of
+     * {@code packageName} if it isn't null, see {@link UsageStatsXmlV1#readEvents}.
+     */
+    public static void readEvents(AtomicFile file, IntervalStats statsOut, long beginTime,
+            long endTime, String packageName) throws IOException {
+        FileInputStream in = file.openRead();
+        try {
+            statsOut.beginTime = parseBeginTime(file);
+            XmlPullParser parser = beginDocument(in);
+            UsageStatsXmlV1.readEvents(parser, statsOut, beginTime, endTime, packageName);
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+        } catch (XmlPullParserException e) {
+            Slog.e(TAG, "Failed to parse Xml", e);
+            throw new IOException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
     public static void write(AtomicFile file, IntervalStats stats) throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
@@ -88,31 +112,40 @@ public class UsageStatsXml {
     }
 
     static void read(InputStream in, IntervalStats statsOut) throws IOException {
-        XmlPullParser parser = Xml.newPullParser();
         try {
-            parser.setInput(in, "utf-8");
-            XmlUtils.beginDocument(parser, USAGESTATS_TAG);
-            String versionStr = parser.getAttributeValue(null, VERSION_ATTR);
-            try {
-                switch (Integer.parseInt(versionStr)) {
-                    case 1:
-                        UsageStatsXmlV1.read(parser, statsOut);
-                        break;
-
-                    default:
-                        Slog.e(TAG, "Unrecognized version " + versionStr);
-                        throw new IOException("Unrecognized version " + versionStr);
-                }
-            } catch (NumberFormatException e) {
-                Slog.e(TAG, "Bad version");
-                throw new IOException(e);
-            }
+            XmlPullParser parser = beginDocument(in);
+            UsageStatsXmlV1.read(parser, statsOut);
         } catch (XmlPullParserException e) {
             Slog.e(TAG, "Failed to parse Xml", e);
             throw new IOException(e);
         }
     }
 
+    /**
+     * Returns a parser positioned on the <code><usagestats></code> tag, after checking
+     * that the file is in a version {@link UsageStatsXmlV1} can read.
+     */
+    private static XmlPullParser beginDocument(InputStream in)
+            throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, "utf-8");
+        XmlUtils.beginDocument(parser, USAGESTATS_TAG);
+        String versionStr = parser.getAttributeValue(null, VERSION_ATTR);
+        try {
+            switch (Integer.parseInt(versionStr)) {
+                case 1:
+                    return parser;
+
+                default:
+                    Slog.e(TAG, "Unrecognized version " + versionStr);
+                    throw new IOException("Unrecognized version " + versionStr);
+            }
+        } catch (NumberFormatException e) {
+            Slog.e(TAG, "Bad version");
+            throw new IOException(e);
+        }
+    }
+
     static void write(OutputStream out, IntervalStats stats) throws IOException {
         FastXmlSerializer xml = new FastXmlSerializer();
         xml.setOutput(out, "utf-8");
@@ -372,6 +372,54 @@ final class UsageStatsXmlV1 {
         }
     }
 
+    /**
+     * Like {@link #read}, but only loads the events in [beginTime, endTime), and only those of
+     * {@code packageName} if it isn't null. Package and configuration stats are skipped without
+     * being inflated, and since events are written in order, reading stops at the first event
+     * at or after endTime.
+     */
+    public static void readEvents(XmlPullParser parser, IntervalStats statsOut, long beginTime,
+            long endTime, String packageName) throws XmlPullParserException, IOException {
+        statsOut.packageStats.clear();
+        statsOut.configurations.clear();
+        statsOut.activeConfiguration = null;
+
+        if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+
+        statsOut.endTime = statsOut.beginTime + XmlUtils.readLongAttribute(parser, END_TIME_ATTR);
+
+        int eventCode;
+        int outerDepth = parser.getDepth();
+        while ((eventCode = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (eventCode != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (eventCode != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            final String tag = parser.getName();
+            switch (tag) {
+                case PACKAGES_TAG:
+                case CONFIGURATIONS_TAG:
+                    XmlUtils.skipCurrentTag(parser);
+                    break;
+
+                case EVENT_TAG:
+                    final long time = statsOut.beginTime
+                            + XmlUtils.readLongAttribute(parser, TIME_ATTR);
+                    if (time >= endTime) {
+                        return;
+                    }
+                    if (time >= beginTime && (packageName == null || packageName.equals(
+                            XmlUtils.readStringAttribute(parser, PACKAGE_ATTR)))) {
+                        loadEvent(parser, statsOut);
+                    }
+                    break;
+            }
+        }
+    }
+
     /**
      * Writes the stats object to an XML file. The {@link XmlSerializer}
      * has already written the <code><usagestats></code> tag, but attributes may still
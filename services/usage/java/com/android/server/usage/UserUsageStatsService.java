@@ -278,6 +278,23 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, combiner, false /* eventsOnly */,
+                null);
+    }
+
+    /**
+     * Same as {@link #queryStats(int, long, long, StatCombiner)} for the daily events in the
+     * range, only those of {@code packageName} if it isn't null. The stats read from disk hold
+     * nothing but the matching events.
+     */
+    private <T> List<T> queryDailyEvents(final long beginTime, final long endTime,
+            String packageName, StatCombiner<T> combiner) {
+        return queryStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, combiner,
+                true /* eventsOnly */, packageName);
+    }
+
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly, String packageName) {
         if (intervalType == UsageStatsManager.INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -316,8 +333,9 @@ class UserUsageStatsService {
         final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
 
         // Get the stats from disk.
-        List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+        List<T> results = eventsOnly
+                ? mDatabase.queryEvents(beginTime, truncatedEndTime, packageName, combiner)
+                : mDatabase.queryUsageStats(intervalType, beginTime, truncatedEndTime, combiner);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -357,8 +375,8 @@ class UserUsageStatsService {
     UsageEvents queryEvents(final long beginTime, final long endTime,
             boolean obfuscateInstantApps) {
         final ArraySet<String> names = new ArraySet<>();
-        List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
+        List<UsageEvents.Event> results = queryDailyEvents(beginTime, endTime, null,
+                new StatCombiner<UsageEvents.Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
                             List<UsageEvents.Event> accumulatedResult) {
@@ -399,8 +417,8 @@ class UserUsageStatsService {
             final String packageName) {
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
-        final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
+        final List<UsageEvents.Event> results = queryDailyEvents(beginTime, endTime, packageName,
+                (stats, mutable, accumulatedResult) -> {
                     if (stats.events == null) {
                         return;
                     }
@@ -615,8 +633,8 @@ class UserUsageStatsService {
 
         final long beginTime = yesterday.getTimeInMillis();
 
-        List<UsageEvents.Event> events = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
+        List<UsageEvents.Event> events = queryDailyEvents(beginTime, endTime, pkg,
+                new StatCombiner<UsageEvents.Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
                             List<UsageEvents.Event> accumulatedResult) {
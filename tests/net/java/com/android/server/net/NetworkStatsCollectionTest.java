@@ -23,6 +23,7 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -48,6 +49,7 @@ import android.telephony.TelephonyManager;
 import android.test.MoreAsserts;
 import android.text.format.DateUtils;
 import android.util.RecurrenceRule;
+import android.util.SparseLongArray;
 
 import com.android.frameworks.tests.net.R;
 
@@ -265,6 +267,30 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testRemoveUidsBefore() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        final int uid = Process.myUid() + 1;
+
+        // Traffic of the removed app, then of a new app that was given the same UID.
+        entry.rxBytes = 32;
+        collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 3 * HOUR_IN_MILLIS,
+                4 * HOUR_IN_MILLIS, entry);
+
+        final SparseLongArray removed = new SparseLongArray();
+        removed.put(uid, 90 * MINUTE_IN_MILLIS);
+        collection.removeUidsBefore(removed);
+
+        assertEquals(64, getUidHistory(collection, uid).getTotalBytes());
+        assertEquals(32, getUidHistory(collection, UID_REMOVED).getTotalBytes());
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =
@@ -545,6 +571,13 @@ public class NetworkStatsCollectionTest {
                 SET_ALL, TAG_NONE, FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE, myUid());
     }
 
+    private static NetworkStatsHistory getUidHistory(NetworkStatsCollection collection,
+            int uid) {
+        return collection.getHistory(buildTemplateMobileAll(TEST_IMSI), null, uid, SET_ALL,
+                TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid());
+    }
+
     private static void assertSummaryTotal(NetworkStatsCollection collection,
             NetworkTemplate template, long rxBytes, long rxPackets, long txBytes, long txPackets,
             @NetworkStatsAccess.Level int accessLevel) {
@@ -46,6 +46,7 @@ public class TestLooper {
     private static final Field MESSAGE_NEXT_FIELD;
     private static final Field MESSAGE_WHEN_FIELD;
     private static final Method MESSAGE_MARK_IN_USE_METHOD;
+    private static final Method MESSAGE_QUEUE_UNLINK_METHOD;
     private static final String TAG = "TestLooper";
 
     private AutoDispatchThread mAutoDispatchThread;
@@ -64,6 +65,9 @@ public class TestLooper {
             MESSAGE_WHEN_FIELD.setAccessible(true);
             MESSAGE_MARK_IN_USE_METHOD = Message.class.getDeclaredMethod("markInUse");
             MESSAGE_MARK_IN_USE_METHOD.setAccessible(true);
+            MESSAGE_QUEUE_UNLINK_METHOD = MessageQueue.class.getDeclaredMethod(
+                    "unlinkMessageLocked", Message.class, Message.class);
+            MESSAGE_QUEUE_UNLINK_METHOD.setAccessible(true);
         } catch (NoSuchFieldException | NoSuchMethodException e) {
             throw new RuntimeException("Failed to initialize TestLooper", e);
         }
@@ -132,14 +136,12 @@ public class TestLooper {
             }
             if (msg != null) {
                 if (now >= msg.getWhen()) {
-                    // Got a message.
-                    if (prevMsg != null) {
-                        MESSAGE_NEXT_FIELD.set(prevMsg, MESSAGE_NEXT_FIELD.get(msg));
-                    } else {
-                        MESSAGE_QUEUE_MESSAGES_FIELD.set(mLooper.getQueue(),
-                                MESSAGE_NEXT_FIELD.get(msg));
+                    // Got a message.  Unlinked by the queue, which also keeps its tail and
+                    // per-handler counts.
+                    final MessageQueue queue = mLooper.getQueue();
+                    synchronized (queue) {
+                        MESSAGE_QUEUE_UNLINK_METHOD.invoke(queue, prevMsg, msg);
                     }
-                    MESSAGE_NEXT_FIELD.set(msg, null);
                     MESSAGE_MARK_IN_USE_METHOD.invoke(msg);
                     return msg;
                 }